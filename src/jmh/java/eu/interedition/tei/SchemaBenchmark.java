@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.rng.RelaxCompactSerializer;
+import eu.interedition.tei.util.Adjacency;
+import eu.interedition.tei.util.ChannelWriter;
+import eu.interedition.tei.util.XML;
+import eu.interedition.tei.util.XMLEventBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Throughput of reading schemata, compiling content models, building specification graphs and serializing content
+ * models as RELAX NG compact syntax.
+ * <p>
+ * Run via <code>mvn -P benchmark verify</code>; JMH options can be passed in the <code>jmh.args</code> property,
+ * which by default enables the GC profiler for allocation rates.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(SchemaBenchmark.class.getName());
+
+    static final String TEI_ALL = "tei-all.xml";
+
+    /**
+     * A schema source, either the compiled TEI-All schema on the classpath or one of the customizations in the
+     * directory given by the system property <code>tei.data</code>.
+     * <p>
+     * Sources that cannot be read are skipped: their setup logs the reason and fails, upon which JMH moves on to the
+     * next one. This currently applies to <code>tei_allPlus.odd</code> and <code>tei_xinclude.odd</code>, whose
+     * content models contain <code>&lt;?NameList?&gt;</code> placeholders instead of patterns.
+     */
+    @State(Scope.Benchmark)
+    public static class Source {
+
+        @Param({
+                TEI_ALL,
+                "tei_all.odd", "tei_allPlus.odd", "tei_bare.odd", "tei_corpus.odd", "tei_drama.odd",
+                "tei-epidoc-full.odd", "tei_lite.odd", "tei_math.odd", "tei_ms.odd", "tei_odds.odd",
+                "tei_speech.odd", "tei_svg.odd", "tei_tite.odd", "tei_xinclude.odd"
+        })
+        public String source;
+
+        byte[] xml;
+
+        @Setup
+        public void read() throws Exception {
+            xml = (TEI_ALL.equals(source)
+                    ? teiAll()
+                    : Files.readAllBytes(Paths.get(System.getProperty("tei.data", "data"), source)));
+            try {
+                Schema.read(new ByteArrayInputStream(xml));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e, () -> "Skipping " + source + ", which cannot be read");
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The TEI-All schema, read in full, along with the recorded content elements of all its specifications.
+     */
+    @State(Scope.Benchmark)
+    public static class Compiled {
+
+        Schema schema;
+        SpecificationGraph graph;
+        SchemaValidator validator;
+        byte[] xml;
+        final List<ContentModel> contentModels = new ArrayList<>();
+        final List<XMLEventBuffer> contentEvents = new ArrayList<>();
+
+        @Setup
+        public void compile() throws Exception {
+            xml = teiAll();
+            schema = Schema.read(new ByteArrayInputStream(xml));
+            graph = SpecificationGraph.create(schema);
+            validator = SchemaValidator.create(schema, graph);
+            schema.getSpecifications().values().stream()
+                    .map(Specification::getContent)
+                    .filter(Objects::nonNull)
+                    .forEach(contentModels::add);
+
+            final XMLEventReader events = XML.inputFactory().createXMLEventReader(new ByteArrayInputStream(xml));
+            try {
+                while (events.hasNext()) {
+                    final XMLEvent event = events.nextEvent();
+                    if (event.isStartElement() && XML.hasName(event.asStartElement(), Namespaceable.DEFAULT_NS_STR, "content")) {
+                        contentEvents.add(XMLEventBuffer.element(event.asStartElement(), events));
+                    }
+                }
+            } finally {
+                events.close();
+            }
+        }
+    }
+
+    /**
+     * The TEI-All schema in a temporary file, along with its specification index.
+     */
+    @State(Scope.Benchmark)
+    public static class Indexed {
+
+        Path file;
+        SpecificationIndex index;
+
+        @Setup
+        public void index() throws IOException {
+            file = Files.createTempFile("tei-all", ".xml");
+            Files.write(file, teiAll());
+            index = SpecificationIndex.scan(file);
+        }
+
+        @TearDown
+        public void delete() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Benchmark
+    public Schema readSchema(Source source) throws Exception {
+        return Schema.read(new ByteArrayInputStream(source.xml));
+    }
+
+    @Benchmark
+    public void parseContentModels(Compiled compiled, Blackhole blackhole) throws Exception {
+        for (XMLEventBuffer events : compiled.contentEvents) {
+            blackhole.consume(ContentModel.parse(events.reader(), "content"));
+        }
+    }
+
+    /**
+     * Creates a graph along with its adjacency structures, which are otherwise only built on first access.
+     */
+    @Benchmark
+    public Adjacency createGraph(Compiled compiled) {
+        return SpecificationGraph.create(compiled.schema).getSpecificationDependencies();
+    }
+
+    /**
+     * Walks each content model for its references, bypassing their memoization.
+     */
+    @Benchmark
+    public void collectReferences(Compiled compiled, Blackhole blackhole) {
+        for (ContentModel contentModel : compiled.contentModels) {
+            blackhole.consume(contentModel.collectReferences());
+        }
+    }
+
+    @Benchmark
+    public void serializeContentModels(Compiled compiled, Blackhole blackhole) {
+        for (ContentModel contentModel : compiled.contentModels) {
+            blackhole.consume(contentModel.toString());
+        }
+    }
+
+    @Benchmark
+    public void writeContentModels(Compiled compiled) throws IOException {
+        try (ChannelWriter writer = new ChannelWriter(DISCARD)) {
+            for (ContentModel contentModel : compiled.contentModels) {
+                contentModel.pattern().accept(new RelaxCompactSerializer(writer));
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeCompactSchema(Compiled compiled) throws IOException {
+        RelaxCompactSchemaWriter.write(compiled.schema, compiled.graph, DISCARD);
+    }
+
+    @Benchmark
+    public void writeCompactSchemaInParallel(Compiled compiled) throws IOException {
+        RelaxCompactSchemaWriter.write(compiled.schema, compiled.graph, DISCARD, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public boolean validateDocument(Compiled compiled) throws Exception {
+        return compiled.validator.isValid(new ByteArrayInputStream(compiled.xml));
+    }
+
+    @Benchmark
+    public void checkAttributes(Compiled compiled, Blackhole blackhole) {
+        final AttributeChecker checker = compiled.validator.getAttributeChecker();
+        for (String[] attribute : ATTRIBUTES) {
+            blackhole.consume(checker.check(attribute[0], attribute[1], attribute[2]));
+        }
+    }
+
+    @Benchmark
+    public SpecificationIndex indexSpecifications(Indexed indexed) throws IOException {
+        return SpecificationIndex.scan(indexed.file);
+    }
+
+    @Benchmark
+    public Specification readIndexedSpecification(Indexed indexed) throws Exception {
+        return indexed.index.specification("p", true).get();
+    }
+
+    static final String[][] ATTRIBUTES = {
+            { "p", "xml:id", "p1" },
+            { "p", "xml:space", "preserve" },
+            { "p", "rend", "italic bold" },
+            { "div", "type", "chapter" },
+            { "date", "when", "2015-03-02" },
+            { "ptr", "target", "#a #b" }
+    };
+
+    static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            final int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static byte[] teiAll() throws IOException {
+        try (InputStream in = SchemaBenchmark.class.getResourceAsStream("/" + TEI_ALL)) {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[8192];
+            for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                buf.write(chunk, 0, read);
+            }
+            return buf.toByteArray();
+        }
+    }
+}
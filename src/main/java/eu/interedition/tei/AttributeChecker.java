@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.rng.Pattern;
+import eu.interedition.tei.rng.ValueMatcher;
+import eu.interedition.tei.util.SymbolTable;
+import org.kohsuke.rngom.nc.NameClass;
+import org.kohsuke.rngom.parse.IllegalSchemaException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks attribute values of elements against the attribute declarations of a compiled schema, including those
+ * inherited from attribute classes.
+ * <p>
+ * Elements are identified by their local name, attributes by their local name if they are not in a namespace, by a
+ * <code>xml:</code>-prefixed name if they are in the XML namespace, and by their name in Clark notation otherwise,
+ * i.e. by the identifiers TEI uses for them. Lookups go through symbol tables and the values are matched by
+ * precompiled {@link ValueMatcher value matchers}, so a check does not allocate unless a value has to be normalized
+ * first or only a wildcard declaration matches the attribute.
+ * <p>
+ * Checkers are immutable and can be shared between threads.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class AttributeChecker {
+
+    final SymbolTable elements;
+    final SymbolTable[] attributes;
+    final ValueMatcher[][] matchers;
+    final Wildcard[][] wildcards;
+
+    AttributeChecker(SymbolTable elements, SymbolTable[] attributes, ValueMatcher[][] matchers, Wildcard[][] wildcards) {
+        this.elements = elements;
+        this.attributes = attributes;
+        this.matchers = matchers;
+        this.wildcards = wildcards;
+    }
+
+    public static AttributeChecker create(Schema schema) throws IllegalSchemaException {
+        return create(schema, SpecificationGraph.create(schema));
+    }
+
+    public static AttributeChecker create(Schema schema, SpecificationGraph graph) throws IllegalSchemaException {
+        return of(SchemaValidator.compile(schema, graph));
+    }
+
+    static AttributeChecker of(Pattern start) {
+        final Map<String, Map<String, ValueMatcher>> declarations = new LinkedHashMap<>();
+        final Map<String, List<Wildcard>> wildcardDeclarations = new LinkedHashMap<>();
+        ValueMatcher.forEachAttribute(start, (element, attribute, value) -> {
+            if (element.isOpen()) {
+                return;
+            }
+            for (QName elementName : element.listNames()) {
+                final Map<String, ValueMatcher> elementAttributes = declarations.computeIfAbsent(elementName.getLocalPart(), e -> new LinkedHashMap<>());
+                if (attribute.isOpen()) {
+                    wildcardDeclarations.computeIfAbsent(elementName.getLocalPart(), e -> new ArrayList<>()).add(new Wildcard(attribute, value));
+                    continue;
+                }
+                for (QName attributeName : attribute.listNames()) {
+                    elementAttributes.merge(key(attributeName), value, ValueMatcher::or);
+                }
+            }
+        });
+
+        final SymbolTable elements = SymbolTable.of(declarations.keySet());
+        final SymbolTable[] attributes = new SymbolTable[elements.size()];
+        final ValueMatcher[][] matchers = new ValueMatcher[elements.size()][];
+        final Wildcard[][] wildcards = new Wildcard[elements.size()][];
+        for (int ec = 0; ec < elements.size(); ec++) {
+            final String element = elements.symbol(ec);
+            final Map<String, ValueMatcher> elementAttributes = declarations.get(element);
+            attributes[ec] = SymbolTable.of(elementAttributes.keySet());
+            matchers[ec] = elementAttributes.values().toArray(new ValueMatcher[elementAttributes.size()]);
+            final List<Wildcard> elementWildcards = wildcardDeclarations.get(element);
+            wildcards[ec] = (elementWildcards == null ? NO_WILDCARDS : elementWildcards.toArray(new Wildcard[elementWildcards.size()]));
+        }
+        return new AttributeChecker(elements, attributes, matchers, wildcards);
+    }
+
+    /**
+     * @param elementIdent the local name of the element
+     * @param attributeName the identifier of the attribute, as described {@link AttributeChecker above}
+     * @return whether the element declares the attribute and allows the given value for it
+     */
+    public boolean check(String elementIdent, String attributeName, CharSequence value) {
+        final int element = elements.id(elementIdent);
+        if (element == SymbolTable.NONE) {
+            return false;
+        }
+        final int attribute = attributes[element].id(attributeName);
+        if (attribute != SymbolTable.NONE) {
+            return matchers[element][attribute].matches(value);
+        }
+        if (wildcards[element].length > 0) {
+            final QName name = name(attributeName);
+            for (Wildcard wildcard : wildcards[element]) {
+                if (wildcard.name.contains(name) && wildcard.value.matches(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the element declares the attribute by its name, not counting wildcard declarations
+     */
+    public boolean isDeclared(String elementIdent, String attributeName) {
+        final int element = elements.id(elementIdent);
+        return element != SymbolTable.NONE && attributes[element].contains(attributeName);
+    }
+
+    public List<String> getElements() {
+        return elements.symbols();
+    }
+
+    /**
+     * @return the attributes declared by name for the given element
+     */
+    public List<String> getAttributes(String elementIdent) {
+        final int element = elements.id(elementIdent);
+        return (element == SymbolTable.NONE ? Collections.<String>emptyList() : attributes[element].symbols());
+    }
+
+    static String key(QName name) {
+        final String ns = name.getNamespaceURI();
+        if (ns.isEmpty()) {
+            return name.getLocalPart();
+        } else if (XMLConstants.XML_NS_URI.equals(ns)) {
+            return XMLConstants.XML_NS_PREFIX + ":" + name.getLocalPart();
+        }
+        return "{" + ns + "}" + name.getLocalPart();
+    }
+
+    static QName name(String key) {
+        if (key.startsWith("{")) {
+            final int nsEnd = key.indexOf('}');
+            return new QName(key.substring(1, nsEnd), key.substring(nsEnd + 1));
+        } else if (key.startsWith(XMLConstants.XML_NS_PREFIX + ":")) {
+            return new QName(XMLConstants.XML_NS_URI, key.substring(XMLConstants.XML_NS_PREFIX.length() + 1));
+        }
+        return new QName(key);
+    }
+
+    static class Wildcard {
+        final NameClass name;
+        final ValueMatcher value;
+
+        Wildcard(NameClass name, ValueMatcher value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static final Wildcard[] NO_WILDCARDS = new Wildcard[0];
+}
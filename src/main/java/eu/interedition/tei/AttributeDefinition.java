@@ -33,6 +33,9 @@ import java.util.Optional;
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
  */
 public class AttributeDefinition implements AttributeNode, Comparable<Identified>, Identified, Combinable {
+
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
     final String ident;
     final Optional<String> module;
     final Optional<String> namespace;
@@ -41,14 +44,38 @@ public class AttributeDefinition implements AttributeNode, Comparable<Identified
     final Values values;
     final LocalizedStrings defaultValues;
     final Combinable.EditOperation editOperation;
+    final int minOccurs;
+    final int maxOccurs;
 
     public AttributeDefinition(StartElement element, ContentModel dataType, Values values, LocalizedStrings defaultValues) {
-        this.ident = XML.requiredAttr(element, "ident");
-        this.module = XML.attr(element, "module");
-        this.usage = XML.attr(element, "usage");
-        this.namespace = XML.attr(element, "ns");
-        this.editOperation = Combinable.EditOperation.from(element).orElse(EditOperation.ADD);
+        this(element, dataType, 1, 1, values, defaultValues);
+    }
+
+    /**
+     * @param minOccurs the minimum number of whitespace-separated values of the given datatype
+     * @param maxOccurs the maximum number of such values, possibly {@link #UNBOUNDED}
+     */
+    public AttributeDefinition(StartElement element, ContentModel dataType, int minOccurs, int maxOccurs, Values values, LocalizedStrings defaultValues) {
+        this(
+                XML.requiredAttr(element, "ident"),
+                XML.attr(element, "module"),
+                XML.attr(element, "ns"),
+                XML.attr(element, "usage"),
+                Combinable.EditOperation.from(element).orElse(EditOperation.ADD),
+                dataType, minOccurs, maxOccurs, values, defaultValues
+        );
+    }
+
+    AttributeDefinition(String ident, Optional<String> module, Optional<String> namespace, Optional<String> usage, EditOperation editOperation,
+                        ContentModel dataType, int minOccurs, int maxOccurs, Values values, LocalizedStrings defaultValues) {
+        this.ident = ident;
+        this.module = module;
+        this.namespace = namespace;
+        this.usage = usage;
+        this.editOperation = editOperation;
         this.dataType = dataType;
+        this.minOccurs = minOccurs;
+        this.maxOccurs = maxOccurs;
         this.values = values;
         this.defaultValues = defaultValues;
     }
@@ -74,6 +101,14 @@ public class AttributeDefinition implements AttributeNode, Comparable<Identified
         return dataType;
     }
 
+    public int getMinOccurs() {
+        return minOccurs;
+    }
+
+    public int getMaxOccurs() {
+        return maxOccurs;
+    }
+
     public LocalizedStrings getDefaultValues() {
         return defaultValues;
     }
@@ -105,11 +140,15 @@ public class AttributeDefinition implements AttributeNode, Comparable<Identified
         final LocalizedStrings defaultValues = new LocalizedStrings();
         Values values = null;
         ContentModel dataType = null;
+        int minOccurs = 1;
+        int maxOccurs = 1;
         while (xml.hasNext()) {
             final XMLEvent event = xml.nextEvent();
             if (event.isStartElement()) {
                 final StartElement element = event.asStartElement();
                 if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "datatype")) {
+                    minOccurs = XML.attr(element, "minOccurs").map(Integer::parseInt).orElse(1);
+                    maxOccurs = XML.attr(element, "maxOccurs").map(max -> "unbounded".equals(max) ? UNBOUNDED : Integer.parseInt(max)).orElse(1);
                     dataType = ContentModel.parse(xml, "datatype");
                 } else if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "defaultVal")) {
                     defaultValues.add(element, xml);
@@ -122,6 +161,6 @@ public class AttributeDefinition implements AttributeNode, Comparable<Identified
                 }
             }
         }
-        return new AttributeDefinition(attDefElement, dataType, values, defaultValues);
+        return new AttributeDefinition(attDefElement, dataType, minOccurs, maxOccurs, values, defaultValues);
     }
 }
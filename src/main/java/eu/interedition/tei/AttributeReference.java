@@ -30,9 +30,22 @@ import java.util.Optional;
 public class AttributeReference implements AttributeNode, Identified, Comparable<Identified> {
 
     final String ident;
+    final Optional<String> classIdent;
 
     public AttributeReference(StartElement element) {
-        this.ident = XML.requiredAttr(element, "name");
+        this(XML.requiredAttr(element, "name"), XML.attr(element, "class"));
+    }
+
+    public AttributeReference(String ident) {
+        this(ident, Optional.empty());
+    }
+
+    /**
+     * @param classIdent the attribute class declaring the referenced attribute, if given
+     */
+    public AttributeReference(String ident, Optional<String> classIdent) {
+        this.ident = ident;
+        this.classIdent = classIdent;
     }
 
     @Override
@@ -40,6 +53,10 @@ public class AttributeReference implements AttributeNode, Identified, Comparable
         return ident;
     }
 
+    public Optional<String> getClassIdent() {
+        return classIdent;
+    }
+
     public Optional<String> getModule() {
         return Optional.empty();
     }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the effective attributes of the specifications in a {@link SpecificationGraph graph}: their own attribute
+ * definitions along with those inherited from the attribute classes they are members of, directly or via other
+ * attribute classes.
+ * <p>
+ * Nested lists of alternatives are flattened and references to attributes of a class are resolved. Own definitions
+ * take precedence over inherited ones: changes are merged into the inherited definition, deletions remove it.
+ * Inherited definitions are taken from classes in lexical order, with the first class declaring an attribute winning.
+ * <p>
+ * Resolved attributes are memoized per specification. When a specification is put into or removed from the graph,
+ * only its attributes and those of specifications inheriting from it are dropped.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class AttributeResolver {
+
+    final SpecificationGraph graph;
+
+    private final ConcurrentMap<String, Map<String, AttributeDefinition>> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Classes mapped to the specifications, which inherit or refer to their attributes; recorded on resolution, so
+     * memberships in classes not specified yet are included.
+     */
+    private final ConcurrentMap<String, Set<String>> referrers = new ConcurrentHashMap<>();
+
+    AttributeResolver(SpecificationGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @return the effective attributes of the given specification by their identifiers, in declaration order; empty
+     * if there is no such specification
+     */
+    public Map<String, AttributeDefinition> getAttributes(String ident) {
+        final Map<String, AttributeDefinition> attributes = resolved.get(ident);
+        return (attributes == null ? resolve(ident, new HashSet<>()) : attributes);
+    }
+
+    public Optional<AttributeDefinition> getAttribute(String ident, String attributeIdent) {
+        return Optional.ofNullable(getAttributes(ident).get(attributeIdent));
+    }
+
+    /**
+     * Drops the memoized attributes of the given specification and of all specifications inheriting from it.
+     */
+    void invalidate(String ident) {
+        final Set<String> invalidated = new HashSet<>();
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.add(ident);
+        while (!pending.isEmpty()) {
+            final String next = pending.remove();
+            if (!invalidated.add(next)) {
+                continue;
+            }
+            resolved.remove(next);
+            pending.addAll(referrers.getOrDefault(next, Collections.emptySet()));
+        }
+    }
+
+    private Map<String, AttributeDefinition> resolve(String ident, Set<String> resolving) {
+        final Map<String, AttributeDefinition> cached = resolved.get(ident);
+        if (cached != null) {
+            return cached;
+        }
+        final Specification specification = graph.specifications.get(ident);
+        if (specification == null) {
+            return Collections.emptyMap();
+        }
+        if (!resolving.add(ident)) {
+            throw new IllegalStateException("Cyclic attribute class membership: " + ident);
+        }
+        final Map<String, AttributeDefinition> attributes = new LinkedHashMap<>();
+        for (String classIdent : new TreeSet<>(specification.classes.keySet())) {
+            referrers.computeIfAbsent(classIdent, c -> ConcurrentHashMap.newKeySet()).add(ident);
+            final Specification classSpec = graph.specifications.get(classIdent);
+            if (classSpec != null && isAttributeClass(classSpec)) {
+                resolve(classIdent, resolving).forEach(attributes::putIfAbsent);
+            }
+        }
+        resolve(specification, specification.attributes, attributes, resolving);
+        resolving.remove(ident);
+
+        final Map<String, AttributeDefinition> result = Collections.unmodifiableMap(attributes);
+        final Map<String, AttributeDefinition> previous = resolved.putIfAbsent(ident, result);
+        return (previous == null ? result : previous);
+    }
+
+    private void resolve(Specification specification, AttributeList list, Map<String, AttributeDefinition> attributes, Set<String> resolving) {
+        for (AttributeNode node : list) {
+            if (node instanceof AttributeList) {
+                resolve(specification, (AttributeList) node, attributes, resolving);
+            } else if (node instanceof AttributeDefinition) {
+                final AttributeDefinition definition = (AttributeDefinition) node;
+                switch (definition.getEditOperation()) {
+                    case DELETE:
+                        attributes.remove(definition.ident);
+                        break;
+                    case CHANGE:
+                        final AttributeDefinition inherited = attributes.get(definition.ident);
+                        attributes.put(definition.ident, inherited == null ? definition : Customization.merge(inherited, definition));
+                        break;
+                    default:
+                        attributes.put(definition.ident, definition);
+                }
+            } else if (node instanceof AttributeReference) {
+                final AttributeReference reference = (AttributeReference) node;
+                if (reference.classIdent.isPresent()) {
+                    final String classIdent = reference.classIdent.get();
+                    referrers.computeIfAbsent(classIdent, c -> ConcurrentHashMap.newKeySet()).add(specification.ident);
+                    final AttributeDefinition referenced = resolve(classIdent, resolving).get(reference.ident);
+                    if (referenced != null) {
+                        attributes.putIfAbsent(reference.ident, referenced);
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean isAttributeClass(Specification specification) {
+        return Specification.Type.CLASS.equals(specification.getType()) && specification.getSpecType().filter("atts"::equals).isPresent();
+    }
+}
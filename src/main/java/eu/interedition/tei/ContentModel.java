@@ -20,6 +20,7 @@
 package eu.interedition.tei;
 
 import eu.interedition.tei.rng.RelaxCompactSerializer;
+import eu.interedition.tei.rng.StaxGrammarReader;
 import eu.interedition.tei.util.XML;
 import org.kohsuke.rngom.ast.builder.BuildException;
 import org.kohsuke.rngom.digested.DDefine;
@@ -33,14 +34,9 @@ import org.kohsuke.rngom.parse.xml.SAXParseable;
 import org.xml.sax.InputSource;
 
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.Location;
 import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.XMLEvent;
-import javax.xml.transform.stream.StreamResult;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -48,8 +44,6 @@ import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
-import static org.kohsuke.rngom.xml.util.WellKnownNamespaces.RELAX_NG;
-
 /**
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
  */
@@ -64,9 +58,23 @@ public class ContentModel {
         this.root = root;
     }
 
+    private volatile SortedSet<String> references;
+
+    /**
+     * @return the names of all definitions and elements referred to, directly or through local definitions; computed
+     * once per content model
+     */
     public SortedSet<String> getReferences() {
+        SortedSet<String> references = this.references;
+        if (references == null) {
+            this.references = references = Collections.unmodifiableSortedSet(collectReferences());
+        }
+        return references;
+    }
+
+    SortedSet<String> collectReferences() {
         final SortedSet<String> references = new TreeSet<>();
-        Optional.ofNullable(root).orElse(grammar).accept(new DPatternWalker() {
+        pattern().accept(new DPatternWalker() {
             @Override
             public Void onElement(DElementPattern p) {
                 for (QName name : p.getName().listNames()) {
@@ -95,70 +103,51 @@ public class ContentModel {
         return references;
     }
 
+    /**
+     * @return the content model's pattern, or its whole grammar if it has got no root definition
+     */
+    DPattern pattern() {
+        return Optional.ofNullable(root).orElse(grammar);
+    }
+
     @Override
     public String toString() {
-        return RelaxCompactSerializer.toString(Optional.ofNullable(root).orElse(grammar));
+        return RelaxCompactSerializer.toString(pattern());
     }
 
-    public static ContentModel parse(XMLEventReader xml, String containerName) throws XMLStreamException, IllegalSchemaException {
-        final StringWriter schema = new StringWriter();
-        final XMLEventFactory xef = XMLEventFactory.newFactory();
-
-        final XMLEventWriter grammar = XML.outputFactory().createXMLEventWriter(new StreamResult(schema));
-        try {
-            grammar.add(xef.createStartDocument());
-            grammar.add(xef.createStartElement("", RELAX_NG, "grammar"));
-            grammar.add(xef.createStartElement("", RELAX_NG, "define",
-                    Collections.singleton(xef.createAttribute("name", CONTENT_MODEL_DEF)).iterator(),
-                    Collections.emptySet().iterator()));
-
-            while (xml.hasNext()) {
-                final XMLEvent event = xml.nextEvent();
-                if (event.isEndElement()) {
-                    if (XML.hasName(event.asEndElement(), Namespaceable.DEFAULT_NS_STR, containerName)) {
-                        break;
-                    }
+    static ContentModel of(DPattern grammar) {
+        final List<DPattern> root = new ArrayList<>();
+        grammar.accept(new DPatternWalker() {
+            @Override
+            public Void onRef(DRefPattern p) {
+                final DDefine target = p.getTarget();
+                if (target != null && CONTENT_MODEL_DEF.equals(p.getName())) {
+                    root.add(target.getPattern());
                 }
-                grammar.add(event);
+                return null;
             }
+        });
+        return new ContentModel(grammar, root.stream().findFirst().orElse(null));
+    }
 
-            grammar.add(xef.createEndElement("", RELAX_NG, "define"));
-
-            grammar.add(xef.createStartElement("", RELAX_NG, "start"));
-            grammar.add(xef.createStartElement("", RELAX_NG, "ref",
-                    Collections.singleton(xef.createAttribute("name", CONTENT_MODEL_DEF)).iterator(),
-                    Collections.emptySet().iterator()));
-            grammar.add(xef.createEndElement("", RELAX_NG, "ref"));
-            grammar.add(xef.createEndElement("", RELAX_NG, "start"));
-
-            grammar.add(xef.createEndElement("", RELAX_NG, "grammar"));
-            grammar.add(xef.createEndDocument());
-        } finally {
-            grammar.close();
-        }
-
-        final String grammarStr = schema.toString();
+    public static ContentModel parse(XMLEventReader xml, String containerName) throws XMLStreamException, IllegalSchemaException {
+        final Location location = xml.hasNext() ? xml.peek().getLocation() : null;
+        final StaxGrammarReader grammarReader = new StaxGrammarReader(xml, new QName(Namespaceable.DEFAULT_NS_STR, containerName), CONTENT_MODEL_DEF);
         try {
             final DPattern grammarPattern = (DPattern) new SAXParseable(
-                    new InputSource(new StringReader(grammarStr)),
-                    XML.STRICT_ERROR_HANDLER
+                    new InputSource(),
+                    XML.STRICT_ERROR_HANDLER,
+                    () -> grammarReader
             ).parse(new DSchemaBuilderImpl());
 
-            final List<DPattern> root = new ArrayList<>();
-            grammarPattern.accept(new DPatternWalker() {
-                @Override
-                public Void onRef(DRefPattern p) {
-                    final DDefine target = p.getTarget();
-                    if (target != null && CONTENT_MODEL_DEF.equals(p.getName())) {
-                        root.add(target.getPattern());
-                    }
-                    return null;
-                }
-            });
-
-            return new ContentModel(grammarPattern, root.stream().findFirst().orElse(null));
+            return of(grammarPattern);
         } catch (BuildException e) {
-            throw new UnsupportedOperationException(grammarStr, e);
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof XMLStreamException) {
+                    throw (XMLStreamException) cause;
+                }
+            }
+            throw new UnsupportedOperationException(containerName + (location == null ? "" : " @ " + location.getLineNumber() + ":" + location.getColumnNumber()), e);
         }
     }
 }
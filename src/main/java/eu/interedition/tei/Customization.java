@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.Combinable.EditOperation;
+import eu.interedition.tei.util.SymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compiles an ODD customization against a base schema like <code>tei_all</code>, yielding the customized schema.
+ * <p>
+ * The base specifications are selected via the customization's module references, resolved against the
+ * {@link SpecificationGraph#select(java.util.Collection) module memberships} of the base schema's graph, and its element,
+ * macro and class references. Then the customization's specifications are applied according to their edit mode: added or replaced
+ * wholesale, deleted, or merged into the selected base specification they change. Changes to attribute definitions,
+ * value lists and class memberships are merged the same way, by identifier and edit mode.
+ * <p>
+ * Compiled schemas share all specifications without changes with the base schema, including their compiled content
+ * models; only changed specifications are created anew, and those in turn share the unchanged parts of their base.
+ * Modules referenced by URL select no specifications; they are kept as module references of the compiled schema.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Customization {
+
+    final SpecificationGraph base;
+    final Schema customization;
+
+    public Customization(SpecificationGraph base, Schema customization) {
+        this.base = base;
+        this.customization = customization;
+    }
+
+    public static Schema compile(Schema base, Schema customization) {
+        return compile(base, customization, null);
+    }
+
+    /**
+     * @param pool the pool to merge changed specifications on, or <code>null</code> to merge them in the calling thread
+     */
+    public static Schema compile(Schema base, Schema customization, ForkJoinPool pool) {
+        return compile(SpecificationGraph.create(base), customization, pool);
+    }
+
+    /**
+     * Compiles a customization against the graph of a base schema, which can be shared by many compilations.
+     */
+    public static Schema compile(SpecificationGraph base, Schema customization, ForkJoinPool pool) {
+        return new Customization(base, customization).compile(pool);
+    }
+
+    public Schema compile(ForkJoinPool pool) {
+        final Map<String, Specification> specifications = select();
+
+        final List<Specification> changes = new ArrayList<>();
+        for (Specification specification : customization.specifications.values()) {
+            switch (specification.getEditOperation()) {
+                case DELETE:
+                    specifications.remove(specification.getIdent());
+                    break;
+                case CHANGE:
+                    if (specifications.containsKey(specification.getIdent())) {
+                        changes.add(specification);
+                    }
+                    break;
+                default:
+                    specifications.put(specification.getIdent(), specification);
+            }
+        }
+
+        if (pool == null) {
+            for (Specification change : changes) {
+                specifications.put(change.getIdent(), merge(specifications.get(change.getIdent()), change));
+            }
+        } else {
+            final List<ForkJoinTask<Specification>> tasks = new ArrayList<>(changes.size());
+            for (Specification change : changes) {
+                final Specification specification = specifications.get(change.getIdent());
+                tasks.add(pool.submit(() -> merge(specification, change)));
+            }
+            for (ForkJoinTask<Specification> task : tasks) {
+                final Specification merged = task.join();
+                specifications.put(merged.getIdent(), merged);
+            }
+        }
+
+        return new Schema(
+                customization.ident,
+                customization.prefix.isEmpty() ? base.schema.prefix : customization.prefix,
+                customization.start.isEmpty() ? base.schema.start : customization.start,
+                Optional.of(customization.namespace),
+                customization.modules, customization.elements, customization.macros, customization.classes,
+                specifications
+        );
+    }
+
+    /**
+     * @return the base specifications selected by the customization, keyed by their identifiers
+     */
+    Map<String, Specification> select() {
+        final SymbolTable ids = base.getSpecificationIds();
+        final BitSet selection = base.select(customization.modules);
+        for (Set<Reference> references : Arrays.asList(customization.elements, customization.macros, customization.classes)) {
+            for (Reference reference : references) {
+                final int id = ids.id(reference.key);
+                if (id != SymbolTable.NONE) {
+                    selection.set(id);
+                }
+            }
+        }
+
+        final Map<String, Specification> selected = new HashMap<>(selection.cardinality() * 2);
+        for (int id = selection.nextSetBit(0); id >= 0; id = selection.nextSetBit(id + 1)) {
+            final String ident = ids.symbol(id);
+            selected.put(ident, base.specifications.get(ident));
+        }
+        return selected;
+    }
+
+    /**
+     * Merges a specification in <code>change</code> mode into its base. Properties given by the change override those
+     * of the base; the namespace is only overridden when given explicitly, i.e. when differing from the default one.
+     */
+    static Specification merge(Specification base, Specification change) {
+        final ContentModel content = change.getContent();
+        return new Specification(
+                base.ident,
+                change.module.isPresent() ? change.module : base.module,
+                Namespaceable.DEFAULT_NS.equals(change.namespace) ? base.namespace : change.namespace,
+                base.type,
+                change.specType.isPresent() ? change.specType : base.specType,
+                EditOperation.ADD,
+                change.descriptions.isEmpty() ? base.descriptions : change.descriptions,
+                change.altIdents.isEmpty() ? base.altIdents : change.altIdents,
+                EditOperation.ADD,
+                merge(base.classes, change.classesEditOperation, change.classes),
+                merge(base.attributes, change.attributes),
+                content == null ? base.getContent() : content
+        );
+    }
+
+    static Map<String, EditOperation> merge(Map<String, EditOperation> base, EditOperation operation, Map<String, EditOperation> changes) {
+        if (changes.isEmpty() && operation != EditOperation.REPLACE) {
+            return base;
+        }
+        final Map<String, EditOperation> merged = (operation == EditOperation.REPLACE ? new HashMap<>() : new HashMap<>(base));
+        for (Map.Entry<String, EditOperation> membership : changes.entrySet()) {
+            if (membership.getValue() == EditOperation.DELETE) {
+                merged.remove(membership.getKey());
+            } else {
+                merged.put(membership.getKey(), EditOperation.ADD);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges attribute changes into a copy of the base list. Nested lists of alternatives, which only add attributes,
+     * are added as a whole; otherwise the definitions of nested lists are merged individually.
+     */
+    static AttributeList merge(AttributeList base, AttributeList changes) {
+        if (changes.isEmpty()) {
+            return base;
+        }
+        final AttributeList merged = copy(base);
+        merge(merged, (AttributeNode) changes);
+        return merged;
+    }
+
+    private static void merge(AttributeList merged, AttributeNode change) {
+        if (change instanceof AttributeList) {
+            final AttributeList changes = (AttributeList) change;
+            if (changes.alternative && addsOnly(merged, changes)) {
+                merged.add(changes);
+                return;
+            }
+            for (AttributeNode node : changes) {
+                merge(merged, node);
+            }
+        } else if (change instanceof AttributeDefinition) {
+            final AttributeDefinition definition = (AttributeDefinition) change;
+            switch (definition.getEditOperation()) {
+                case DELETE:
+                    replace(merged, definition.ident, null);
+                    break;
+                case CHANGE:
+                    final AttributeDefinition existing = find(merged, definition.ident);
+                    if (existing != null) {
+                        replace(merged, definition.ident, merge(existing, definition));
+                    }
+                    break;
+                default:
+                    final AttributeDefinition added = new AttributeDefinition(
+                            definition.ident, definition.module, definition.namespace, definition.usage, EditOperation.ADD,
+                            definition.dataType, definition.minOccurs, definition.maxOccurs, definition.values, definition.defaultValues
+                    );
+                    if (!replace(merged, definition.ident, added)) {
+                        merged.add(added);
+                    }
+            }
+        } else if (change instanceof AttributeReference) {
+            if (!merged.contains(change)) {
+                merged.add(change);
+            }
+        }
+    }
+
+    static AttributeDefinition merge(AttributeDefinition base, AttributeDefinition change) {
+        return new AttributeDefinition(
+                base.ident,
+                change.module.isPresent() ? change.module : base.module,
+                change.namespace.isPresent() ? change.namespace : base.namespace,
+                change.usage.isPresent() ? change.usage : base.usage,
+                EditOperation.ADD,
+                change.dataType == null ? base.dataType : change.dataType,
+                change.dataType == null ? base.minOccurs : change.minOccurs,
+                change.dataType == null ? base.maxOccurs : change.maxOccurs,
+                merge(base.values, change.values),
+                change.defaultValues.isEmpty() ? base.defaultValues : change.defaultValues
+        );
+    }
+
+    static Values merge(Values base, Values change) {
+        if (change == null) {
+            return base;
+        }
+        if (change.editOperation == EditOperation.DELETE) {
+            return null;
+        }
+        final Values merged = new Values(change.type, EditOperation.ADD);
+        if (base != null && change.editOperation == EditOperation.CHANGE) {
+            merged.addAll(base);
+        }
+        for (Values.Item item : change) {
+            merged.removeIf(existing -> existing.ident.equals(item.ident));
+            if (item.editOperation != EditOperation.DELETE) {
+                merged.add(item);
+            }
+        }
+        return merged;
+    }
+
+    private static boolean addsOnly(AttributeList merged, AttributeList changes) {
+        for (AttributeNode node : changes) {
+            if (!(node instanceof AttributeDefinition)) {
+                return false;
+            }
+            final AttributeDefinition definition = (AttributeDefinition) node;
+            if (definition.getEditOperation() != EditOperation.ADD || find(merged, definition.ident) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static AttributeList copy(AttributeList list) {
+        final AttributeList copy = new AttributeList(list.alternative);
+        for (AttributeNode node : list) {
+            copy.add(node instanceof AttributeList ? copy((AttributeList) node) : node);
+        }
+        return copy;
+    }
+
+    private static AttributeDefinition find(AttributeList list, String ident) {
+        for (AttributeNode node : list) {
+            if (node instanceof AttributeList) {
+                final AttributeDefinition found = find((AttributeList) node, ident);
+                if (found != null) {
+                    return found;
+                }
+            } else if (node instanceof AttributeDefinition && ((AttributeDefinition) node).ident.equals(ident)) {
+                return (AttributeDefinition) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the definition with the given identifier in a (copied) list or one of its nested lists.
+     *
+     * @param replacement the new definition, or <code>null</code> to remove the existing one
+     * @return whether a definition with the given identifier has been found
+     */
+    private static boolean replace(AttributeList list, String ident, AttributeDefinition replacement) {
+        for (int nc = 0; nc < list.size(); nc++) {
+            final AttributeNode node = list.get(nc);
+            if (node instanceof AttributeList) {
+                if (replace((AttributeList) node, ident, replacement)) {
+                    return true;
+                }
+            } else if (node instanceof AttributeDefinition && ((AttributeDefinition) node).ident.equals(ident)) {
+                if (replacement == null) {
+                    list.remove(nc);
+                } else {
+                    list.set(nc, replacement);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import org.kohsuke.rngom.parse.IllegalSchemaException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of customizations compiled against one base schema, keyed by a SHA-256 hash of the base schema and the
+ * customization's bytes.
+ * <p>
+ * Compiled schemas are held in memory, evicting the least recently used ones beyond a given capacity. Given a directory,
+ * they are also stored there as {@link SchemaSnapshot snapshots}, which outlive the cache and are mapped back in lazily
+ * on a miss in memory. The base schema is identified by the hash of its source, so that stored snapshots are only
+ * reused for the same base; damaged snapshots are deleted and compiled anew.
+ * <p>
+ * The cache is safe for concurrent use; concurrent misses on the same key may compile the customization more than once.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class CustomizationCache {
+
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    final SpecificationGraph base;
+    final byte[] baseHash;
+    final Optional<Path> directory;
+    final Map<String, Compiled> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CustomizationCache(InputStream base, int capacity) throws IOException, XMLStreamException, IllegalSchemaException {
+        this(base, capacity, null);
+    }
+
+    /**
+     * @param base      the source of the base schema, read in full
+     * @param capacity  the maximum number of compiled schemas to hold in memory
+     * @param directory the directory to store snapshots of compiled schemas in, or <code>null</code> to only cache in memory
+     */
+    public CustomizationCache(InputStream base, int capacity, Path directory) throws IOException, XMLStreamException, IllegalSchemaException {
+        final byte[] source = bytes(base);
+        this.base = SpecificationGraph.create(Schema.read(new ByteArrayInputStream(source)));
+        this.baseHash = digest().digest(source);
+        this.directory = Optional.ofNullable(directory);
+        this.entries = new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    public Compiled compile(InputStream customization) throws IOException, XMLStreamException, IllegalSchemaException {
+        return compile(bytes(customization));
+    }
+
+    public Compiled compile(byte[] customization) throws IOException, XMLStreamException, IllegalSchemaException {
+        final String key = key(customization);
+        synchronized (entries) {
+            final Compiled compiled = entries.get(key);
+            if (compiled != null) {
+                hits.incrementAndGet();
+                return compiled;
+            }
+        }
+        misses.incrementAndGet();
+
+        final Optional<Path> snapshot = directory.map(dir -> dir.resolve(key + SNAPSHOT_SUFFIX));
+        Schema schema = null;
+        if (snapshot.isPresent() && Files.isRegularFile(snapshot.get())) {
+            try {
+                schema = SchemaSnapshot.read(snapshot.get());
+            } catch (IOException e) {
+                Files.deleteIfExists(snapshot.get());
+            }
+        }
+        if (schema == null) {
+            schema = Customization.compile(base, Schema.read(new ByteArrayInputStream(customization)), null);
+            if (snapshot.isPresent()) {
+                final Path tmp = Files.createTempFile(snapshot.get().getParent(), key, null);
+                try {
+                    SchemaSnapshot.write(schema, tmp);
+                    Files.move(tmp, snapshot.get(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        }
+
+        final Compiled compiled = new Compiled(schema);
+        synchronized (entries) {
+            entries.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    String key(byte[] customization) {
+        final MessageDigest digest = digest();
+        digest.update(baseHash);
+        final byte[] hash = digest.digest(customization);
+        final StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytes(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            bytes.write(buf, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A compiled customization along with its specification graph, which is created on first use.
+     *
+     * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+     */
+    public static class Compiled {
+
+        final Schema schema;
+        private volatile SpecificationGraph graph;
+
+        Compiled(Schema schema) {
+            this.schema = schema;
+        }
+
+        public Schema getSchema() {
+            return schema;
+        }
+
+        public SpecificationGraph getGraph() {
+            SpecificationGraph graph = this.graph;
+            if (graph == null) {
+                this.graph = graph = SpecificationGraph.create(schema);
+            }
+            return graph;
+        }
+    }
+}
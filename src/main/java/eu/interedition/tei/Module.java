@@ -24,14 +24,18 @@ import eu.interedition.tei.util.XML;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.EndElement;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.stream.StreamSource;
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
@@ -64,35 +68,111 @@ public class Module implements Identified {
     }
 
     public static Map<String, Module> read(File guidelines) throws XMLStreamException {
-        final Map<String, Module> modules = new HashMap<>();
+        return read(guidelines, (ForkJoinPool) null);
+    }
 
-        for (final File xmlFile : guidelines.listFiles((dir, name) -> name.endsWith(".xml"))) {
-            final XMLEventReader xml = XML.inputFactory().createXMLEventReader(new StreamSource(xmlFile));
-            try {
-                Module module = null;
-                while (xml.hasNext()) {
-                    final XMLEvent event = xml.nextEvent();
-                    if (event.isStartElement()) {
-                        final StartElement element = event.asStartElement();
-                        if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "moduleSpec")) {
-                            final String id = XML.requiredAttr(element, "ident");
-                            if (modules.put(id, module = new Module(id)) == null) {
-                                throw new IllegalStateException(id + " is not a unique identifier");
-                            }
-                        } else if (module != null && XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "desc")) {
-                            module.getDescriptions().add(element, xml);
-                        }
-                    } else if (event.isEndElement()) {
-                        final EndElement element = event.asEndElement();
-                        if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "moduleSpec")) {
-                            module = null;
+    /**
+     * Reads the modules declared in the files of the Guidelines, optionally reading files concurrently.
+     * <p>
+     * Each file holds at most one <code>moduleSpec</code>; reading a file stops at its end.
+     *
+     * @param pool the pool to read files on, or <code>null</code> to read them in the calling thread
+     * @throws IllegalStateException if two modules share an identifier
+     */
+    public static Map<String, Module> read(File guidelines, ForkJoinPool pool) throws XMLStreamException {
+        final File[] xmlFiles = guidelines.listFiles((dir, name) -> name.endsWith(".xml"));
+        if (xmlFiles == null) {
+            throw new IllegalArgumentException(guidelines.toString());
+        }
+
+        final ConcurrentMap<String, Module> modules = new ConcurrentHashMap<>();
+        if (pool == null) {
+            for (File xmlFile : xmlFiles) {
+                readFile(xmlFile, modules);
+            }
+        } else {
+            final List<ModuleTask> tasks = new ArrayList<>(xmlFiles.length);
+            for (File xmlFile : xmlFiles) {
+                final ModuleTask task = new ModuleTask(xmlFile, modules);
+                pool.execute(task);
+                tasks.add(task);
+            }
+            for (ModuleTask task : tasks) {
+                task.result();
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * Reads a module from its <code>moduleSpec</code>, up to the end of the latter.
+     */
+    public static Module from(StartElement moduleElement, XMLEventReader xml) throws XMLStreamException {
+        final Module module = new Module(XML.requiredAttr(moduleElement, "ident"));
+        while (xml.hasNext()) {
+            final XMLEvent event = xml.nextEvent();
+            if (event.isStartElement()) {
+                final StartElement element = event.asStartElement();
+                if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "desc")) {
+                    module.getDescriptions().add(element, xml);
+                }
+            } else if (event.isEndElement()) {
+                if (XML.hasName(event.asEndElement(), Namespaceable.DEFAULT_NS_STR, "moduleSpec")) {
+                    break;
+                }
+            }
+        }
+        return module;
+    }
+
+    private static void readFile(File xmlFile, ConcurrentMap<String, Module> modules) throws XMLStreamException {
+        final XMLEventReader xml = XML.inputFactory().createXMLEventReader(new StreamSource(xmlFile));
+        try {
+            while (xml.hasNext()) {
+                final XMLEvent event = xml.nextEvent();
+                if (event.isStartElement()) {
+                    final StartElement element = event.asStartElement();
+                    if (XML.hasName(element, Namespaceable.DEFAULT_NS_STR, "moduleSpec")) {
+                        final Module module = from(element, xml);
+                        if (modules.putIfAbsent(module.getIdent(), module) != null) {
+                            throw new IllegalStateException(module.getIdent() + " is not a unique identifier");
                         }
+                        return;
                     }
                 }
-            } finally {
-                xml.close();
+            }
+        } finally {
+            xml.close();
+        }
+    }
+
+    private static class ModuleTask extends RecursiveAction {
+
+        private final File xmlFile;
+        private final ConcurrentMap<String, Module> modules;
+        private Exception error;
+
+        private ModuleTask(File xmlFile, ConcurrentMap<String, Module> modules) {
+            this.xmlFile = xmlFile;
+            this.modules = modules;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                readFile(xmlFile, modules);
+            } catch (XMLStreamException | IllegalStateException e) {
+                error = e;
+            }
+        }
+
+        void result() throws XMLStreamException {
+            join();
+            if (error instanceof XMLStreamException) {
+                throw (XMLStreamException) error;
+            } else if (error instanceof IllegalStateException) {
+                throw (IllegalStateException) error;
             }
         }
-        return modules;
     }
 }
@@ -30,27 +30,42 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
+ * A module selected by a schema, either a TEI module by its key, optionally restricted to some of its members, or an
+ * external RELAX NG module by its URL. The latter is keyed by its URL.
+ *
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
  */
 public class ModuleReference extends Reference {
     final Set<Reference> included;
     final Set<Reference> excluded;
     final Optional<String> prefix;
+    final Optional<URI> url;
 
     public ModuleReference(String key, URI source, Set<Reference> included, Set<Reference> excluded, Optional<String> prefix) {
-        super(key, Optional.of(source));
+        this(key, source, included, excluded, prefix, Optional.empty());
+    }
+
+    public ModuleReference(String key, URI source, Set<Reference> included, Set<Reference> excluded, Optional<String> prefix, Optional<URI> url) {
+        super(key, Optional.ofNullable(source));
         this.included = included;
         this.excluded = excluded;
         this.prefix = prefix;
+        this.url = url;
     }
 
     public static ModuleReference from(StartElement element) {
+        final Optional<URI> url = XML.attr(element, "url").map(URI::create);
         return new ModuleReference(
-                XML.requiredAttr(element, "key"),
+                url.isPresent() ? url.get().toString() : XML.requiredAttr(element, "key"),
                 XML.attr(element, "source").map(URI::create).orElse(null),
-                XML.attr(element, "included").map(ref -> XML.WS_RUN.splitAsStream(ref).map(Reference::new)).orElse(Stream.<Reference>empty()).collect(Collectors.toCollection(TreeSet::new)),
+                XML.attr(element, "include").map(ref -> XML.WS_RUN.splitAsStream(ref).map(Reference::new)).orElse(Stream.<Reference>empty()).collect(Collectors.toCollection(TreeSet::new)),
                 XML.attr(element, "except").map(ref -> XML.WS_RUN.splitAsStream(ref).map(Reference::new)).orElse(Stream.<Reference>empty()).collect(Collectors.toCollection(TreeSet::new)),
-                XML.attr(element, "prefix")
+                XML.attr(element, "prefix"),
+                url
         );
     }
+
+    public Optional<URI> getUrl() {
+        return url;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Removes all specifications from a schema, which are not reachable from its start elements.
+ * <p>
+ * Reachability follows the {@link SpecificationGraph#getReferences() references} of the schema's graph, i.e. content
+ * models and attribute datatypes, model class memberships and the attribute classes elements take their attributes
+ * from. The pruned schema shares the remaining specifications with the original one. A schema without start elements
+ * is left as it is.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Pruning {
+
+    final Schema schema;
+    final SortedSet<String> removedSpecifications;
+    final int removedAttributes;
+
+    Pruning(Schema schema, SortedSet<String> removedSpecifications, int removedAttributes) {
+        this.schema = schema;
+        this.removedSpecifications = removedSpecifications;
+        this.removedAttributes = removedAttributes;
+    }
+
+    public static Pruning prune(Schema schema) {
+        return prune(SpecificationGraph.create(schema));
+    }
+
+    public static Pruning prune(SpecificationGraph graph) {
+        final Schema schema = graph.schema;
+        if (schema.start.isEmpty()) {
+            return new Pruning(schema, Collections.emptySortedSet(), 0);
+        }
+
+        final SortedSet<String> reachable = graph.getReachability().reachableFromStart();
+        final Map<String, Specification> specifications = new HashMap<>(reachable.size() * 2);
+        final SortedSet<String> removedSpecifications = new TreeSet<>();
+        int removedAttributes = 0;
+        for (Specification specification : graph.specifications.values()) {
+            if (reachable.contains(specification.getIdent())) {
+                specifications.put(specification.getIdent(), specification);
+            } else {
+                removedSpecifications.add(specification.getIdent());
+                removedAttributes += count(specification.getAttributes());
+            }
+        }
+
+        return new Pruning(
+                new Schema(
+                        schema.ident, schema.prefix, schema.start, Optional.of(schema.namespace),
+                        schema.modules, schema.elements, schema.macros, schema.classes,
+                        specifications
+                ),
+                Collections.unmodifiableSortedSet(removedSpecifications),
+                removedAttributes
+        );
+    }
+
+    private static int count(AttributeList attributes) {
+        int count = 0;
+        for (AttributeNode attribute : attributes) {
+            if (attribute instanceof AttributeList) {
+                count += count((AttributeList) attribute);
+            } else if (attribute instanceof AttributeDefinition) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the pruned schema
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public SortedSet<String> getRemovedSpecifications() {
+        return removedSpecifications;
+    }
+
+    /**
+     * @return the number of attribute definitions of the removed specifications
+     */
+    public int getRemovedAttributes() {
+        return removedAttributes;
+    }
+
+    @Override
+    public String toString() {
+        return "Pruned " + removedSpecifications.size() + " specifications with " + removedAttributes + " attributes from " + schema.ident;
+    }
+}
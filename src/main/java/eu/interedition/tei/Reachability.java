@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.util.Adjacency;
+import eu.interedition.tei.util.SymbolTable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Transitive closure of the references between a schema's specifications.
+ * <p>
+ * References are condensed into their strongly connected components first; each component then stores the set of all
+ * specifications reachable from it as a bit set over specification ids, so reachability queries take constant time.
+ *
+ * @see SpecificationGraph#getReferences()
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Reachability {
+
+    final SymbolTable ids;
+    final Set<String> start;
+    final int[] components;
+    final BitSet[] closures;
+
+    Reachability(SymbolTable ids, Adjacency references, Set<String> start) {
+        this.ids = ids;
+        this.start = start;
+        this.components = new int[references.size()];
+
+        final int size = references.size();
+        final int[] order = new int[size];
+        final int[] low = new int[size];
+        final int[] edge = new int[size];
+        final boolean[] onStack = new boolean[size];
+        final int[] stack = new int[size];
+        final int[] path = new int[size];
+        final BitSet[] closures = new BitSet[size];
+
+        Arrays.fill(order, -1);
+        int visited = 0;
+        int stackSize = 0;
+        int componentCount = 0;
+        for (int root = 0; root < size; root++) {
+            if (order[root] >= 0) {
+                continue;
+            }
+            int pathSize = 0;
+            path[pathSize++] = root;
+            order[root] = low[root] = visited++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            while (pathSize > 0) {
+                final int vertex = path[pathSize - 1];
+                if (edge[vertex] < references.degree(vertex)) {
+                    final int target = references.target(vertex, edge[vertex]++);
+                    if (order[target] < 0) {
+                        path[pathSize++] = target;
+                        order[target] = low[target] = visited++;
+                        stack[stackSize++] = target;
+                        onStack[target] = true;
+                    } else if (onStack[target]) {
+                        low[vertex] = Math.min(low[vertex], order[target]);
+                    }
+                    continue;
+                }
+                pathSize--;
+                if (pathSize > 0) {
+                    final int parent = path[pathSize - 1];
+                    low[parent] = Math.min(low[parent], low[vertex]);
+                }
+                if (low[vertex] == order[vertex]) {
+                    // components are completed in reverse topological order, so all successors are closed already
+                    final int component = componentCount++;
+                    final BitSet closure = new BitSet(size);
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        components[member] = component;
+                        closure.set(member);
+                    } while (member != vertex);
+                    for (int mc = closure.nextSetBit(0); mc >= 0; mc = closure.nextSetBit(mc + 1)) {
+                        for (int ec = 0, degree = references.degree(mc); ec < degree; ec++) {
+                            final int target = references.target(mc, ec);
+                            if (!closure.get(target)) {
+                                closure.or(closures[components[target]]);
+                            }
+                        }
+                    }
+                    closures[component] = closure;
+                }
+            }
+        }
+        this.closures = Arrays.copyOf(closures, componentCount);
+    }
+
+    /**
+     * @return whether the specification <code>to</code> is reachable from the specification <code>from</code>;
+     * every specification is reachable from itself
+     */
+    public boolean isReachable(int from, int to) {
+        return closures[components[from]].get(to);
+    }
+
+    public boolean isReachable(String from, String to) {
+        final int fromId = ids.id(from);
+        final int toId = ids.id(to);
+        return (fromId != SymbolTable.NONE && toId != SymbolTable.NONE && isReachable(fromId, toId));
+    }
+
+    /**
+     * @return the ids of all specifications reachable from the given ones, including themselves
+     */
+    public BitSet reachableFrom(int... from) {
+        final BitSet reachable = new BitSet(ids.size());
+        for (int id : from) {
+            reachable.or(closures[components[id]]);
+        }
+        return reachable;
+    }
+
+    /**
+     * @return the identifiers of all specifications reachable from the given ones; unknown identifiers are ignored
+     */
+    public SortedSet<String> reachableFrom(Collection<String> from) {
+        return symbols(reachableFrom(ids(from)));
+    }
+
+    /**
+     * @return the identifiers of all specifications reachable from the schema's start elements
+     * @see Schema#getStart()
+     */
+    public SortedSet<String> reachableFromStart() {
+        return reachableFrom(start);
+    }
+
+    /**
+     * @return the ids of all specifications not among the given ones, from which any of the given ones is reachable,
+     * i.e. those affected by a removal of the given specifications
+     */
+    public BitSet dependingOn(int... to) {
+        final BitSet targets = new BitSet(ids.size());
+        for (int id : to) {
+            targets.set(id);
+        }
+        final BitSet dependents = new BitSet(ids.size());
+        for (int id = 0; id < components.length; id++) {
+            if (!targets.get(id) && closures[components[id]].intersects(targets)) {
+                dependents.set(id);
+            }
+        }
+        return dependents;
+    }
+
+    public SortedSet<String> dependingOn(Collection<String> to) {
+        return symbols(dependingOn(ids(to)));
+    }
+
+    /**
+     * @return the number of strongly connected components, i.e. of vertices in the condensed reference graph
+     */
+    public int getComponentCount() {
+        return closures.length;
+    }
+
+    public int getComponent(int id) {
+        return components[id];
+    }
+
+    private int[] ids(Collection<String> symbols) {
+        return symbols.stream().mapToInt(ids::id).filter(id -> id != SymbolTable.NONE).toArray();
+    }
+
+    private SortedSet<String> symbols(BitSet set) {
+        final SortedSet<String> symbols = new TreeSet<>();
+        set.stream().mapToObj(ids::symbol).forEach(symbols::add);
+        return symbols;
+    }
+}
@@ -51,6 +51,13 @@ public class Reference implements Comparable<Reference> {
         this.source = source;
     }
 
+    public String getKey() {
+        return key;
+    }
+
+    public Optional<URI> getSource() {
+        return source;
+    }
 
     @Override
     public int hashCode() {
@@ -72,5 +79,5 @@ public class Reference implements Comparable<Reference> {
     }
 
     private static final Comparator<Reference> COMPARATOR = Comparator.comparing((Reference r) -> r.key)
-            .thenComparing(Comparator.nullsFirst(Comparator.comparing(r -> r.source.orElse(null))));
+            .thenComparing(r -> r.source.orElse(null), Comparator.nullsFirst(Comparator.naturalOrder()));
 }
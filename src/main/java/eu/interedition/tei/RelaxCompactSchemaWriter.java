@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.rng.RelaxCompactSerializer;
+import eu.interedition.tei.util.ChannelWriter;
+import eu.interedition.tei.util.LocalizedStrings;
+import eu.interedition.tei.util.SymbolTable;
+import org.kohsuke.rngom.digested.DRefPattern;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Writes a whole schema as one RELAX NG grammar in compact syntax.
+ * <p>
+ * Every element, macro and model class is written as a define of the same name, every attribute class as a define
+ * named <code>&lt;class&gt;.attributes</code>. Defines appear in dependency order, i.e. a specification's define follows
+ * those it refers to, except among mutually dependent ones. References to undefined names are defined as
+ * <code>notAllowed</code>, so that the resulting grammar is complete.
+ * <p>
+ * Given a pool, the defines are rendered concurrently into separate buffers, which are then written in order.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class RelaxCompactSchemaWriter {
+
+    public static final String ATTRIBUTES_SUFFIX = ".attributes";
+
+    private final Schema schema;
+    private final SpecificationGraph graph;
+    private final Map<String, String> namespaces;
+
+    private RelaxCompactSchemaWriter(Schema schema, SpecificationGraph graph) {
+        this.schema = schema;
+        this.graph = graph;
+        this.namespaces = graph.getNamespacePrefixes();
+    }
+
+    public static String toString(Schema schema, SpecificationGraph graph) {
+        final StringBuilder rnc = new StringBuilder();
+        try {
+            new RelaxCompactSchemaWriter(schema, graph).write(rnc, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rnc.toString();
+    }
+
+    public static void write(Schema schema, SpecificationGraph graph, WritableByteChannel channel) throws IOException {
+        write(schema, graph, channel, null);
+    }
+
+    /**
+     * @param pool the pool to render defines on, or <code>null</code> to render them in the calling thread
+     */
+    public static void write(Schema schema, SpecificationGraph graph, WritableByteChannel channel, ForkJoinPool pool) throws IOException {
+        try (ChannelWriter writer = new ChannelWriter(channel)) {
+            new RelaxCompactSchemaWriter(schema, graph).write(writer, pool);
+        }
+    }
+
+    private void write(Appendable out, ForkJoinPool pool) throws IOException {
+        try {
+            final Set<String> defined = new TreeSet<>();
+            final Set<String> referenced = new TreeSet<>();
+
+            final DefinitionSerializer header = new DefinitionSerializer(out);
+            header.namespaces();
+            header.start(schema.getStart());
+            referenced.addAll(header.references);
+
+            final List<Specification> specifications = dependencyOrder();
+            if (pool == null) {
+                for (Specification specification : specifications) {
+                    final DefinitionSerializer serializer = new DefinitionSerializer(out);
+                    defined.add(serializer.define(specification));
+                    referenced.addAll(serializer.references);
+                }
+            } else {
+                final List<ForkJoinTask<DefinitionSerializer>> tasks = new ArrayList<>(specifications.size());
+                for (Specification specification : specifications) {
+                    tasks.add(pool.submit(() -> {
+                        final DefinitionSerializer serializer = new DefinitionSerializer(new StringBuilder());
+                        serializer.defined = serializer.define(specification);
+                        return serializer;
+                    }));
+                }
+                for (ForkJoinTask<DefinitionSerializer> task : tasks) {
+                    final DefinitionSerializer serializer = task.join();
+                    out.append((StringBuilder) serializer.out);
+                    defined.add(serializer.defined);
+                    referenced.addAll(serializer.references);
+                }
+            }
+
+            referenced.removeAll(defined);
+            final DefinitionSerializer footer = new DefinitionSerializer(out);
+            for (String undefined : referenced) {
+                if (!footer.classVariant(undefined)) {
+                    footer.undefined(undefined);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return all specifications, ordered by the strongly connected components of their references, in which
+     * referred specifications precede referring ones
+     */
+    private List<Specification> dependencyOrder() {
+        final SymbolTable ids = graph.getSpecificationIds();
+        final Reachability reachability = graph.getReachability();
+        final Integer[] order = new Integer[ids.size()];
+        for (int id = 0; id < order.length; id++) {
+            order[id] = id;
+        }
+        Arrays.sort(order, Comparator.comparingInt(reachability::getComponent).thenComparingInt(id -> id));
+        return Arrays.stream(order)
+                .map(ids::symbol)
+                .filter(Objects::nonNull)
+                .map(graph.specifications::get)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes the define of a single specification, recording the names it refers to.
+     */
+    private class DefinitionSerializer extends RelaxCompactSerializer {
+
+        final Appendable out;
+        final Set<String> references = new LinkedHashSet<>();
+        String defined;
+
+        DefinitionSerializer(Appendable out) {
+            super(out, namespaces);
+            this.out = out;
+        }
+
+        void namespaces() {
+            final SortedMap<String, String> declarations = new TreeMap<>();
+            namespaces.forEach((ns, prefix) -> declarations.put(prefix, ns));
+            declarations.remove(XMLConstants.XML_NS_PREFIX);
+            for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+                print("namespace ");
+                print(declaration.getKey());
+                print(" = ");
+                literal(declaration.getValue());
+                println();
+            }
+            println();
+        }
+
+        void start(Set<String> start) {
+            print("start = ");
+            if (start.isEmpty()) {
+                print("notAllowed");
+            } else {
+                separated(new TreeSet<>(start), " | ", this::reference);
+            }
+            println();
+            println();
+        }
+
+        String define(Specification specification) {
+            final String ident = specification.getIdent();
+            String name = ident;
+            switch (specification.getType()) {
+                case ELEMENT:
+                    identifier(ident);
+                    print(" =\n  element ");
+                    name(specification.getNamespace().toString(), specification.getAltIdents().getOrDefault(LocalizedStrings.DEFAULT_LANG, ident));
+                    print(" { ");
+                    content(specification);
+                    for (String attributeClass : attributeClasses(specification.classes.keySet())) {
+                        print(", ");
+                        reference(attributeClass + ATTRIBUTES_SUFFIX);
+                    }
+                    if (!specification.getAttributes().isEmpty()) {
+                        print(", ");
+                        attributes(specification.getAttributes());
+                    }
+                    print(" }");
+                    break;
+                case MACRO:
+                    identifier(ident);
+                    print(" =\n  ");
+                    content(specification);
+                    break;
+                case CLASS:
+                    if (specification.getSpecType().filter("atts"::equals).isPresent()) {
+                        identifier(name = ident + ATTRIBUTES_SUFFIX);
+                        print(" =\n  ");
+                        attributes(specification.getAttributes());
+                        for (String attributeClass : attributeClasses(specification.classes.keySet())) {
+                            print(", ");
+                            reference(attributeClass + ATTRIBUTES_SUFFIX);
+                        }
+                    } else {
+                        identifier(ident);
+                        print(" =\n  ");
+                        final List<String> members = modelClassMembers(ident);
+                        if (members.isEmpty()) {
+                            print("notAllowed");
+                        } else {
+                            separated(members, " | ", this::reference);
+                        }
+                    }
+                    break;
+            }
+            println();
+            println();
+            return name;
+        }
+
+        /**
+         * Defines a reference to one of the generated variants of a model class like <code>model.pLike_sequence</code>.
+         *
+         * @return whether the given name denotes such a variant
+         */
+        boolean classVariant(String name) {
+            final int separator = name.lastIndexOf('_');
+            if (separator < 0) {
+                return false;
+            }
+            final String ident = name.substring(0, separator);
+            final Specification classSpec = graph.specifications.get(ident);
+            if (classSpec == null || !Specification.Type.CLASS.equals(classSpec.getType()) || classSpec.getSpecType().filter("atts"::equals).isPresent()) {
+                return false;
+            }
+            final String separatorToken;
+            final String quantifier;
+            switch (name.substring(separator + 1)) {
+                case "alternation":
+                    separatorToken = " | ";
+                    quantifier = "";
+                    break;
+                case "sequence":
+                    separatorToken = ", ";
+                    quantifier = "";
+                    break;
+                case "sequenceOptional":
+                    separatorToken = ", ";
+                    quantifier = "?";
+                    break;
+                case "sequenceOptionalRepeatable":
+                    separatorToken = ", ";
+                    quantifier = "*";
+                    break;
+                case "sequenceRepeatable":
+                    separatorToken = ", ";
+                    quantifier = "+";
+                    break;
+                default:
+                    return false;
+            }
+            identifier(name);
+            print(" =\n  ");
+            final List<String> members = modelClassMembers(ident);
+            if (members.isEmpty()) {
+                print(quantifier.isEmpty() ? "notAllowed" : "empty");
+            } else {
+                separated(members, separatorToken, member -> {
+                    reference(member);
+                    print(quantifier);
+                });
+            }
+            println();
+            println();
+            return true;
+        }
+
+        void undefined(String name) {
+            identifier(name);
+            print(" = notAllowed");
+            println();
+        }
+
+        void content(Specification specification) {
+            final ContentModel content = specification.getContent();
+            if (content == null) {
+                print("empty");
+            } else {
+                print("(");
+                content.pattern().accept(this);
+                print(")");
+            }
+        }
+
+        void attributes(AttributeList attributes) {
+            final List<AttributeNode> nodes = new ArrayList<>();
+            for (AttributeNode node : attributes) {
+                if (node instanceof AttributeReference) {
+                    referencedAttribute((AttributeReference) node).ifPresent(nodes::add);
+                } else if (node instanceof AttributeDefinition || (node instanceof AttributeList && !((AttributeList) node).isEmpty())) {
+                    nodes.add(node);
+                }
+            }
+            if (nodes.isEmpty()) {
+                print("empty");
+                return;
+            }
+            print("(");
+            separated(nodes, attributes.alternative ? " | " : ", ", node -> {
+                if (node instanceof AttributeList) {
+                    attributes((AttributeList) node);
+                } else {
+                    attribute((AttributeDefinition) node);
+                }
+            });
+            print(")");
+        }
+
+        /**
+         * Attribute classes are defined as a whole, so a reference to one of their attributes is written as the
+         * attribute's effective definition in the referenced class.
+         *
+         * @return the referenced definition; empty for references without a class or to unknown attributes
+         */
+        Optional<AttributeDefinition> referencedAttribute(AttributeReference reference) {
+            return reference.getClassIdent().flatMap(classIdent -> graph.getAttributeResolver().getAttribute(classIdent, reference.getIdent()));
+        }
+
+        void attribute(AttributeDefinition attribute) {
+            print("attribute ");
+            final String ident = attribute.getIdent();
+            if (ident.indexOf(':') >= 0) {
+                print(ident);
+            } else {
+                name(attribute.getNamespace().orElse(""), ident);
+            }
+            print(" { ");
+            final Values values = attribute.values;
+            if (values != null && Values.Type.CLOSED.equals(values.getType()) && !values.isEmpty()) {
+                separated(values, " | ", item -> literal(item.ident));
+            } else if (attribute.getDataType() != null) {
+                final int minOccurs = attribute.getMinOccurs();
+                final int maxOccurs = attribute.getMaxOccurs();
+                if (minOccurs == 1 && maxOccurs == 1) {
+                    attribute.getDataType().pattern().accept(this);
+                } else {
+                    print("list { ");
+                    final List<String> occurrences = new ArrayList<>();
+                    for (int oc = 0; oc < Math.max(minOccurs, 1); oc++) {
+                        occurrences.add(oc < minOccurs ? "" : (maxOccurs == AttributeDefinition.UNBOUNDED ? "*" : "?"));
+                    }
+                    if (maxOccurs == AttributeDefinition.UNBOUNDED) {
+                        occurrences.set(occurrences.size() - 1, minOccurs == 0 ? "*" : "+");
+                    } else {
+                        for (int oc = occurrences.size(); oc < maxOccurs; oc++) {
+                            occurrences.add("?");
+                        }
+                    }
+                    separated(occurrences, ", ", quantifier -> {
+                        print("(");
+                        attribute.getDataType().pattern().accept(this);
+                        print(")");
+                        print(quantifier);
+                    });
+                    print(" }");
+                }
+            } else {
+                print("text");
+            }
+            print(" }");
+            if (!attribute.getUsage().filter("req"::equals).isPresent()) {
+                print("?");
+            }
+        }
+
+        void name(String ns, String localName) {
+            if (ns.isEmpty()) {
+                identifier(localName);
+            } else {
+                namespace(ns);
+                print(":");
+                print(localName);
+            }
+        }
+
+        void reference(String name) {
+            references.add(name);
+            identifier(name);
+        }
+
+        List<String> modelClassMembers(String ident) {
+            return graph.classMembers.getOrDefault(ident, Collections.emptySet()).stream()
+                    .filter(member -> {
+                        final Specification memberSpec = graph.specifications.get(member);
+                        return memberSpec != null && !memberSpec.getSpecType().filter("atts"::equals).isPresent();
+                    })
+                    .collect(Collectors.toList());
+        }
+
+        List<String> attributeClasses(Set<String> classes) {
+            return classes.stream()
+                    .filter(c -> {
+                        final Specification classSpec = graph.specifications.get(c);
+                        return classSpec != null && Specification.Type.CLASS.equals(classSpec.getType()) && classSpec.getSpecType().filter("atts"::equals).isPresent();
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        <T> void separated(Iterable<T> items, String separator, Consumer<T> consumer) {
+            boolean first = true;
+            for (T item : items) {
+                if (!first) {
+                    print(separator);
+                }
+                consumer.accept(item);
+                first = false;
+            }
+        }
+
+        @Override
+        public Void onRef(DRefPattern p) {
+            references.add(p.getName());
+            return super.onRef(p);
+        }
+    }
+}
@@ -19,7 +19,11 @@
 
 package eu.interedition.tei;
 
+import eu.interedition.tei.rng.NamespaceCollector;
+import eu.interedition.tei.util.Adjacency;
+import eu.interedition.tei.util.SymbolTable;
 import eu.interedition.tei.util.XML;
+import eu.interedition.tei.util.XMLEventBuffer;
 import org.kohsuke.rngom.parse.IllegalSchemaException;
 
 import javax.xml.namespace.QName;
@@ -29,13 +33,22 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -44,6 +57,14 @@ import java.util.stream.Stream;
  */
 public class Schema implements Identified, Namespaceable {
 
+    /**
+     * Suffixes of the names, by which content models refer to the members of a model class in a particular way, like
+     * <code>model.pLike_sequence</code>.
+     */
+    static final Set<String> CLASS_VARIANTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "alternation", "sequence", "sequenceOptional", "sequenceOptionalRepeatable", "sequenceRepeatable"
+    )));
+
     final String ident;
     final URI namespace;
     final String prefix;
@@ -54,8 +75,39 @@ public class Schema implements Identified, Namespaceable {
     final Set<Reference> macros;
     final Set<Reference> classes;
     final Map<String, Specification> specifications;
+    final SymbolTable identifiers;
+    final Specification[] specificationsById;
+
+    private volatile Adjacency references;
+    private volatile Map<String, String> namespacePrefixes;
 
     public static Schema read(InputStream xmlStream) throws XMLStreamException, IllegalSchemaException {
+        return read(xmlStream, null, false);
+    }
+
+    /**
+     * Reads a schema, deferring the compilation of each specification's content model to its first use.
+     *
+     * @see Specification#from(StartElement, XMLEventReader, boolean)
+     */
+    public static Schema readLazily(InputStream xmlStream) throws XMLStreamException, IllegalSchemaException {
+        return read(xmlStream, null, true);
+    }
+
+    public static Schema read(InputStream xmlStream, ForkJoinPool pool) throws XMLStreamException, IllegalSchemaException {
+        return read(xmlStream, pool, false);
+    }
+
+    /**
+     * Reads a schema, optionally parsing its specifications concurrently.
+     * <p>
+     * When given a pool, the event stream is split into one buffer per specification, each of which is parsed as a separate task
+     * on the given pool while the remainder of the stream is being read.
+     *
+     * @param pool        the pool to parse specifications on, or <code>null</code> to parse them in the calling thread
+     * @param lazyContent whether to defer compiling content models to their first use
+     */
+    public static Schema read(InputStream xmlStream, ForkJoinPool pool, boolean lazyContent) throws XMLStreamException, IllegalSchemaException {
         Optional<String> ident = Optional.empty();
         Optional<String> prefix = Optional.empty();
         Optional<URI> ns = Optional.empty();
@@ -66,6 +118,7 @@ public class Schema implements Identified, Namespaceable {
         final Set<Reference> macros = new TreeSet<>();
         final Set<Reference> classes = new TreeSet<>();
         final Set<Specification> specifications = new HashSet<>();
+        final List<SpecificationTask> tasks = new ArrayList<>();
 
         final XMLEventReader xml = XML.inputFactory().createXMLEventReader(xmlStream);
         try {
@@ -83,11 +136,11 @@ public class Schema implements Identified, Namespaceable {
                                 ns = XML.attr(element, "ns").map(URI::create);
                                 break;
                             case "moduleRef":
-                                if (XML.attr(element, "url").isPresent()) {
-                                    throw new UnsupportedOperationException("moduleRef@url");
-                                }
                                 modules.add(ModuleReference.from(element));
                                 break;
+                            case "elementRef":
+                                elements.add(Reference.from(element));
+                                break;
                             case "macroRef":
                                 macros.add(Reference.from(element));
                                 break;
@@ -97,8 +150,13 @@ public class Schema implements Identified, Namespaceable {
                             case "elementSpec":
                             case "classSpec":
                             case "macroSpec":
-                                System.out.println(XML.requiredAttr(element, "ident"));
-                                specifications.add(Specification.from(element, xml));
+                                if (pool == null) {
+                                    specifications.add(Specification.from(element, xml, lazyContent));
+                                } else {
+                                    final SpecificationTask task = new SpecificationTask(element, XMLEventBuffer.element(element, xml), lazyContent);
+                                    pool.execute(task);
+                                    tasks.add(task);
+                                }
                                 break;
                         }
                     }
@@ -108,6 +166,10 @@ public class Schema implements Identified, Namespaceable {
             xml.close();
         }
 
+        for (SpecificationTask task : tasks) {
+            specifications.add(task.result());
+        }
+
         return new Schema(
                 ident.orElse(""), prefix.orElse(""), start, ns,
                 modules, elements, macros, classes,
@@ -115,6 +177,54 @@ public class Schema implements Identified, Namespaceable {
         );
     }
 
+    /**
+     * Assembles a schema of specifications which have been read separately, e.g. from the specification files of the
+     * Guidelines, without any module or specification references.
+     *
+     * @throws IllegalStateException if two specifications share an identifier
+     */
+    public static Schema of(String ident, String prefix, Set<String> start, Collection<Specification> specifications) {
+        return new Schema(
+                ident, prefix, start, Optional.empty(),
+                new TreeSet<>(), new TreeSet<>(), new TreeSet<>(), new TreeSet<>(),
+                specifications.stream().collect(Collectors.toMap(Specification::getIdent, Function.identity()))
+        );
+    }
+
+    private static class SpecificationTask extends RecursiveTask<Specification> {
+
+        private final StartElement element;
+        private final XMLEventBuffer events;
+        private final boolean lazyContent;
+        private Exception error;
+
+        private SpecificationTask(StartElement element, XMLEventBuffer events, boolean lazyContent) {
+            this.element = element;
+            this.events = events;
+            this.lazyContent = lazyContent;
+        }
+
+        @Override
+        protected Specification compute() {
+            try {
+                return Specification.from(element, events.reader(), lazyContent);
+            } catch (XMLStreamException | IllegalSchemaException e) {
+                error = e;
+                return null;
+            }
+        }
+
+        Specification result() throws XMLStreamException, IllegalSchemaException {
+            final Specification specification = join();
+            if (error instanceof XMLStreamException) {
+                throw (XMLStreamException) error;
+            } else if (error instanceof IllegalSchemaException) {
+                throw (IllegalSchemaException) error;
+            }
+            return specification;
+        }
+    }
+
     @Override
     public String getIdent() {
         return ident;
@@ -136,11 +246,147 @@ public class Schema implements Identified, Namespaceable {
         return namespace;
     }
 
+    public Set<ModuleReference> getModules() {
+        return modules;
+    }
+
     public Map<String, Specification> getSpecifications() {
         return specifications;
     }
 
-    private Schema(String ident, String prefix, Set<String> start, Optional<URI> namespace,
+    /**
+     * @return the identifiers of all specifications, numbered in their lexical order
+     */
+    public SymbolTable getIdentifiers() {
+        return identifiers;
+    }
+
+    public Specification getSpecification(int id) {
+        Specification specification = specificationsById[id];
+        if (specification == null) {
+            specificationsById[id] = specification = specifications.get(identifiers.symbol(id));
+        }
+        return specification;
+    }
+
+    /**
+     * Shared cache of the references made by each specification's content model and attribute datatypes, computed
+     * once per schema.
+     *
+     * @return specification ids mapped to the ids of the specifications they refer to
+     */
+    public Adjacency getReferences() {
+        Adjacency references = this.references;
+        if (references == null) {
+            this.references = references = collectReferences();
+        }
+        return references;
+    }
+
+    private Adjacency collectReferences() {
+        return collectReferences(identifiers, this::getSpecification);
+    }
+
+    static Adjacency collectReferences(SymbolTable identifiers, IntFunction<Specification> specifications) {
+        final Adjacency.Builder references = new Adjacency.Builder(identifiers.size());
+        for (int id = 0; id < identifiers.size(); id++) {
+            final int source = id;
+            references(specifications.apply(id), reference -> {
+                final int target = referenceId(identifiers, reference);
+                if (target != SymbolTable.NONE) {
+                    references.add(source, target);
+                }
+            });
+        }
+        return references.build();
+    }
+
+    /**
+     * Passes the names, by which a specification's content model and attribute datatypes refer to others.
+     */
+    static void references(Specification specification, Consumer<String> consumer) {
+        final ContentModel content = specification.getContent();
+        if (content != null) {
+            content.getReferences().forEach(consumer);
+        }
+        references(specification.getAttributes(), consumer);
+    }
+
+    private static void references(AttributeList attributes, Consumer<String> consumer) {
+        for (AttributeNode attribute : attributes) {
+            if (attribute instanceof AttributeList) {
+                references((AttributeList) attribute, consumer);
+            } else if (attribute instanceof AttributeDefinition) {
+                final ContentModel dataType = ((AttributeDefinition) attribute).getDataType();
+                if (dataType != null) {
+                    dataType.getReferences().forEach(consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the id of the specification a content model refers to by the given name, which for a variant of a
+     * model class is the class itself
+     */
+    static int referenceId(SymbolTable identifiers, String reference) {
+        final int id = identifiers.id(reference);
+        if (id != SymbolTable.NONE) {
+            return id;
+        }
+        final int separator = reference.lastIndexOf('_');
+        return (separator > 0 && CLASS_VARIANTS.contains(reference.substring(separator + 1))
+                ? identifiers.id(reference.substring(0, separator))
+                : SymbolTable.NONE);
+    }
+
+    /**
+     * Prefixes for all namespaces of elements, attributes and content models in this schema, computed once and shared by
+     * all serializations of the schema's patterns.
+     *
+     * @return namespace URIs mapped to prefixes, which do not depend on the presence of other namespaces
+     * @see NamespaceCollector#prefix(String)
+     */
+    public Map<String, String> getNamespacePrefixes() {
+        Map<String, String> namespacePrefixes = this.namespacePrefixes;
+        if (namespacePrefixes == null) {
+            this.namespacePrefixes = namespacePrefixes = namespacePrefixes(specifications.values());
+        }
+        return namespacePrefixes;
+    }
+
+    static Map<String, String> namespacePrefixes(Collection<Specification> specifications) {
+        final NamespaceCollector collector = new NamespaceCollector();
+        final SortedSet<String> namespaces = collector.getNamespaces();
+        for (Specification specification : specifications) {
+            if (Specification.Type.ELEMENT.equals(specification.getType())) {
+                namespaces.add(specification.getNamespace().toString());
+            }
+            final ContentModel content = specification.getContent();
+            if (content != null) {
+                content.pattern().accept(collector);
+            }
+            collectNamespaces(specification.getAttributes(), collector);
+        }
+        namespaces.remove("");
+        return Collections.unmodifiableMap(collector.toMapping());
+    }
+
+    private static void collectNamespaces(AttributeList attributes, NamespaceCollector collector) {
+        for (AttributeNode attribute : attributes) {
+            if (attribute instanceof AttributeList) {
+                collectNamespaces((AttributeList) attribute, collector);
+            } else if (attribute instanceof AttributeDefinition) {
+                final AttributeDefinition definition = (AttributeDefinition) attribute;
+                definition.getNamespace().ifPresent(collector.getNamespaces()::add);
+                if (definition.getDataType() != null) {
+                    definition.getDataType().pattern().accept(collector);
+                }
+            }
+        }
+    }
+
+    Schema(String ident, String prefix, Set<String> start, Optional<URI> namespace,
                    Set<ModuleReference> modules,
                    Set<Reference> elements,
                    Set<Reference> macros,
@@ -155,5 +401,7 @@ public class Schema implements Identified, Namespaceable {
         this.macros = macros;
         this.classes = classes;
         this.specifications = specifications;
+        this.identifiers = SymbolTable.of(new TreeSet<>(specifications.keySet()));
+        this.specificationsById = new Specification[identifiers.size()];
     }
 }
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.rng.PatternDecoder;
+import eu.interedition.tei.rng.PatternEncoder;
+import eu.interedition.tei.util.LocalizedStrings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact binary snapshot of a compiled {@link Schema}.
+ * <p>
+ * A snapshot consists of a symbol table holding every string of the schema once, the schema header with its start
+ * patterns and module/class/macro references, an index of all specifications and finally the specification records,
+ * including attribute tables and content model pattern trees.
+ * <p>
+ * Snapshots are loaded via a memory mapping; specifications are only decoded when first accessed.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SchemaSnapshot {
+
+    static final int MAGIC = 0x54454953;
+    static final int VERSION = 3;
+
+    static final int NO_SYMBOL = -1;
+
+    static final byte ATTRIBUTE_DEFINITION = 1;
+    static final byte ATTRIBUTE_REFERENCE = 2;
+    static final byte ATTRIBUTE_LIST = 3;
+
+    public static void write(Schema schema, Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(schema, out);
+        }
+    }
+
+    public static void write(Schema schema, OutputStream out) throws IOException {
+        final Writer writer = new Writer();
+        writer.schema(schema);
+
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+
+        final List<byte[]> symbols = new ArrayList<>(writer.symbols.size());
+        for (String symbol : writer.symbols.keySet()) {
+            symbols.add(symbol.getBytes(StandardCharsets.UTF_8));
+        }
+        data.writeInt(symbols.size());
+        int offset = 0;
+        for (byte[] symbol : symbols) {
+            data.writeInt(offset);
+            offset += 4 + symbol.length;
+        }
+        data.writeInt(offset);
+        for (byte[] symbol : symbols) {
+            data.writeInt(symbol.length);
+            data.write(symbol);
+        }
+
+        writer.header.writeTo(data);
+        writer.records.writeTo(data);
+        data.flush();
+    }
+
+    public static Schema read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads the header of a snapshot; specifications are decoded lazily on access.
+     *
+     * @throws IOException if the buffer does not hold a snapshot of the current version, or a truncated or otherwise
+     *                     damaged one
+     */
+    public static Schema read(ByteBuffer buffer) throws IOException {
+        try {
+            return new Reader(buffer).schema();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Damaged schema snapshot", e);
+        }
+    }
+
+    static class Writer {
+        final Map<String, Integer> symbols = new LinkedHashMap<>();
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+
+        void schema(Schema schema) throws IOException {
+            final List<Specification> specifications = new ArrayList<>(schema.specifications.size());
+            new TreeSet<>(schema.specifications.keySet()).forEach(ident -> specifications.add(schema.specifications.get(ident)));
+
+            final DataOutputStream out = new DataOutputStream(header);
+            symbol(out, schema.ident);
+            symbol(out, schema.prefix);
+            symbol(out, schema.namespace.toString());
+            symbols(out, schema.start);
+
+            out.writeInt(schema.modules.size());
+            for (ModuleReference module : schema.modules) {
+                reference(out, module);
+                out.writeInt(module.included.size());
+                for (Reference included : module.included) {
+                    reference(out, included);
+                }
+                out.writeInt(module.excluded.size());
+                for (Reference excluded : module.excluded) {
+                    reference(out, excluded);
+                }
+                symbol(out, module.prefix.orElse(null));
+                symbol(out, module.url.map(URI::toString).orElse(null));
+            }
+            references(out, schema.elements);
+            references(out, schema.macros);
+            references(out, schema.classes);
+
+            final DataOutputStream recordOut = new DataOutputStream(records);
+            out.writeInt(specifications.size());
+            for (Specification specification : specifications) {
+                final int offset = recordOut.size();
+                specification(recordOut, specification);
+                symbol(out, specification.ident);
+                out.writeInt(offset);
+            }
+            out.flush();
+            recordOut.flush();
+        }
+
+        void specification(DataOutputStream out, Specification specification) throws IOException {
+            symbol(out, specification.module.orElse(null));
+            symbol(out, specification.namespace.toString());
+            out.writeByte(specification.type.ordinal());
+            symbol(out, specification.specType.orElse(null));
+            out.writeByte(specification.editOperation.ordinal());
+            strings(out, specification.descriptions);
+            strings(out, specification.altIdents);
+            out.writeByte(specification.classesEditOperation.ordinal());
+            out.writeInt(specification.classes.size());
+            for (Map.Entry<String, Combinable.EditOperation> membership : specification.classes.entrySet()) {
+                symbol(out, membership.getKey());
+                out.writeByte(membership.getValue().ordinal());
+            }
+            contentModel(out, specification.getContent());
+            attributes(out, specification.attributes);
+        }
+
+        void attributes(DataOutputStream out, AttributeList attributes) throws IOException {
+            out.writeBoolean(attributes.alternative);
+            out.writeInt(attributes.size());
+            for (AttributeNode node : attributes) {
+                if (node instanceof AttributeDefinition) {
+                    final AttributeDefinition definition = (AttributeDefinition) node;
+                    out.writeByte(ATTRIBUTE_DEFINITION);
+                    symbol(out, definition.ident);
+                    symbol(out, definition.module.orElse(null));
+                    symbol(out, definition.namespace.orElse(null));
+                    symbol(out, definition.usage.orElse(null));
+                    out.writeByte(definition.editOperation.ordinal());
+                    contentModel(out, definition.dataType);
+                    out.writeInt(definition.minOccurs);
+                    out.writeInt(definition.maxOccurs);
+                    values(out, definition.values);
+                    strings(out, definition.defaultValues);
+                } else if (node instanceof AttributeReference) {
+                    out.writeByte(ATTRIBUTE_REFERENCE);
+                    symbol(out, ((AttributeReference) node).ident);
+                    symbol(out, ((AttributeReference) node).classIdent.orElse(null));
+                } else if (node instanceof AttributeList) {
+                    out.writeByte(ATTRIBUTE_LIST);
+                    attributes(out, (AttributeList) node);
+                } else {
+                    throw new IllegalArgumentException(String.valueOf(node));
+                }
+            }
+        }
+
+        void values(DataOutputStream out, Values values) throws IOException {
+            out.writeBoolean(values != null);
+            if (values != null) {
+                out.writeByte(values.type.ordinal());
+                out.writeByte(values.editOperation.ordinal());
+                out.writeInt(values.size());
+                for (Values.Item item : values) {
+                    symbol(out, item.ident);
+                    out.writeByte(item.editOperation.ordinal());
+                    strings(out, item.descriptions);
+                    strings(out, item.definitions);
+                    strings(out, item.altIdents);
+                }
+            }
+        }
+
+        void contentModel(DataOutputStream out, ContentModel contentModel) throws IOException {
+            out.writeBoolean(contentModel != null);
+            if (contentModel != null) {
+                new PatternEncoder(out, this::symbol).encode(contentModel.grammar);
+            }
+        }
+
+        void references(DataOutputStream out, Collection<Reference> references) throws IOException {
+            out.writeInt(references.size());
+            for (Reference reference : references) {
+                reference(out, reference);
+            }
+        }
+
+        void reference(DataOutputStream out, Reference reference) throws IOException {
+            symbol(out, reference.key);
+            symbol(out, reference.source.map(URI::toString).orElse(null));
+        }
+
+        void strings(DataOutputStream out, LocalizedStrings strings) throws IOException {
+            out.writeInt(strings.size());
+            for (Map.Entry<String, String> string : strings.entrySet()) {
+                symbol(out, string.getKey());
+                symbol(out, string.getValue());
+            }
+        }
+
+        void symbols(DataOutputStream out, Collection<String> symbols) throws IOException {
+            out.writeInt(symbols.size());
+            for (String symbol : symbols) {
+                symbol(out, symbol);
+            }
+        }
+
+        void symbol(DataOutputStream out, String symbol) throws IOException {
+            out.writeInt(symbol == null ? NO_SYMBOL : symbol(symbol));
+        }
+
+        int symbol(String symbol) {
+            return symbols.computeIfAbsent(symbol, s -> symbols.size());
+        }
+    }
+
+    static class Reader {
+        final ByteBuffer buffer;
+        final int symbolCount;
+        final int symbolIndex;
+        final int symbolData;
+        final String[] symbols;
+
+        Reader(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer.duplicate();
+            if (this.buffer.remaining() < 12) {
+                throw new IOException("Truncated schema snapshot header");
+            }
+            if (this.buffer.getInt() != MAGIC) {
+                throw new IOException("Not a schema snapshot");
+            }
+            final int version = this.buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported schema snapshot version: " + version);
+            }
+            this.symbolCount = this.buffer.getInt();
+            this.symbolIndex = this.buffer.position();
+            if (symbolCount < 0 || (this.buffer.limit() - symbolIndex) / 4 <= symbolCount) {
+                throw new IOException("Truncated schema snapshot symbol index");
+            }
+            final int symbolDataLength = this.buffer.getInt(symbolIndex + 4 * symbolCount);
+            this.symbolData = symbolIndex + 4 * (symbolCount + 1);
+            if (symbolDataLength < 0 || this.buffer.limit() - symbolData < symbolDataLength) {
+                throw new IOException("Truncated schema snapshot symbols");
+            }
+            this.symbols = new String[symbolCount];
+            this.buffer.position(symbolData + symbolDataLength);
+        }
+
+        Schema schema() throws IOException {
+            final ByteBuffer in = buffer.duplicate();
+            final String ident = symbol(in);
+            final String prefix = symbol(in);
+            final URI namespace = URI.create(symbol(in));
+            final Set<String> start = new TreeSet<>();
+            for (int sc = in.getInt(); sc > 0; sc--) {
+                start.add(symbol(in));
+            }
+
+            final Set<ModuleReference> modules = new TreeSet<>();
+            for (int mc = in.getInt(); mc > 0; mc--) {
+                final String key = symbol(in);
+                final URI source = Optional.ofNullable(symbol(in)).map(URI::create).orElse(null);
+                final Set<Reference> included = new TreeSet<>();
+                for (int ic = in.getInt(); ic > 0; ic--) {
+                    included.add(reference(in));
+                }
+                final Set<Reference> excluded = new TreeSet<>();
+                for (int ec = in.getInt(); ec > 0; ec--) {
+                    excluded.add(reference(in));
+                }
+                final Optional<String> modulePrefix = Optional.ofNullable(symbol(in));
+                final Optional<URI> url = Optional.ofNullable(symbol(in)).map(URI::create);
+                modules.add(new ModuleReference(key, source, included, excluded, modulePrefix, url));
+            }
+            final Set<Reference> elements = references(in);
+            final Set<Reference> macros = references(in);
+            final Set<Reference> classes = references(in);
+
+            final int specificationCount = in.getInt();
+            final String[] idents = new String[specificationCount];
+            final int[] offsets = new int[specificationCount];
+            for (int sc = 0; sc < specificationCount; sc++) {
+                idents[sc] = symbol(in);
+                offsets[sc] = in.getInt();
+            }
+            final int records = in.position();
+            for (int offset : offsets) {
+                if (offset < 0 || offset >= in.limit() - records) {
+                    throw new IOException("Truncated schema snapshot records");
+                }
+            }
+
+            return new Schema(ident, prefix, start, Optional.of(namespace), modules, elements, macros, classes,
+                    new LazySpecifications(idents, offsets, records));
+        }
+
+        Specification specification(String ident, int offset) {
+            final ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            final Optional<String> module = Optional.ofNullable(symbol(in));
+            final URI namespace = URI.create(symbol(in));
+            final Specification.Type type = Specification.Type.values()[in.get()];
+            final Optional<String> specType = Optional.ofNullable(symbol(in));
+            final Combinable.EditOperation editOperation = editOperation(in);
+            final LocalizedStrings descriptions = strings(in);
+            final LocalizedStrings altIdents = strings(in);
+            final Combinable.EditOperation classesEditOperation = editOperation(in);
+            final Map<String, Combinable.EditOperation> classes = new HashMap<>();
+            for (int cc = in.getInt(); cc > 0; cc--) {
+                final String key = symbol(in);
+                classes.put(key, editOperation(in));
+            }
+            final ContentModel content = contentModel(in);
+            final AttributeList attributes = attributes(in);
+            return new Specification(ident, module, namespace, type, specType, editOperation,
+                    descriptions, altIdents, classesEditOperation, classes, attributes, content);
+        }
+
+        AttributeList attributes(ByteBuffer in) {
+            final AttributeList attributes = new AttributeList(in.get() != 0);
+            for (int ac = in.getInt(); ac > 0; ac--) {
+                final byte type = in.get();
+                switch (type) {
+                    case ATTRIBUTE_DEFINITION: {
+                        final String ident = symbol(in);
+                        final Optional<String> module = Optional.ofNullable(symbol(in));
+                        final Optional<String> namespace = Optional.ofNullable(symbol(in));
+                        final Optional<String> usage = Optional.ofNullable(symbol(in));
+                        final Combinable.EditOperation editOperation = editOperation(in);
+                        final ContentModel dataType = contentModel(in);
+                        final int minOccurs = in.getInt();
+                        final int maxOccurs = in.getInt();
+                        final Values values = values(in);
+                        attributes.add(new AttributeDefinition(ident, module, namespace, usage, editOperation, dataType, minOccurs, maxOccurs, values, strings(in)));
+                        break;
+                    }
+                    case ATTRIBUTE_REFERENCE: {
+                        final String ident = symbol(in);
+                        attributes.add(new AttributeReference(ident, Optional.ofNullable(symbol(in))));
+                        break;
+                    }
+                    case ATTRIBUTE_LIST:
+                        attributes.add(attributes(in));
+                        break;
+                    default:
+                        throw new IllegalStateException("Invalid attribute node type: " + type);
+                }
+            }
+            return attributes;
+        }
+
+        Values values(ByteBuffer in) {
+            if (in.get() == 0) {
+                return null;
+            }
+            final Values.Type type = Values.Type.values()[in.get()];
+            final Values values = new Values(type, editOperation(in));
+            for (int vc = in.getInt(); vc > 0; vc--) {
+                final String ident = symbol(in);
+                final Values.Item item = new Values.Item(ident, editOperation(in));
+                item.descriptions.putAll(strings(in));
+                item.definitions.putAll(strings(in));
+                item.altIdents.putAll(strings(in));
+                values.add(item);
+            }
+            return values;
+        }
+
+        ContentModel contentModel(ByteBuffer in) {
+            if (in.get() == 0) {
+                return null;
+            }
+            return ContentModel.of(new PatternDecoder(in, this::symbol).decode());
+        }
+
+        Set<Reference> references(ByteBuffer in) {
+            final Set<Reference> references = new TreeSet<>();
+            for (int rc = in.getInt(); rc > 0; rc--) {
+                references.add(reference(in));
+            }
+            return references;
+        }
+
+        Reference reference(ByteBuffer in) {
+            final String key = symbol(in);
+            return new Reference(key, Optional.ofNullable(symbol(in)).map(URI::create));
+        }
+
+        LocalizedStrings strings(ByteBuffer in) {
+            final LocalizedStrings strings = new LocalizedStrings();
+            for (int sc = in.getInt(); sc > 0; sc--) {
+                final String locale = symbol(in);
+                strings.put(locale, symbol(in));
+            }
+            return strings;
+        }
+
+        Combinable.EditOperation editOperation(ByteBuffer in) {
+            return Combinable.EditOperation.values()[in.get()];
+        }
+
+        String symbol(ByteBuffer in) {
+            final int symbol = in.getInt();
+            return (symbol == NO_SYMBOL ? null : symbol(symbol));
+        }
+
+        String symbol(int symbol) {
+            String str = symbols[symbol];
+            if (str == null) {
+                final int offset = symbolData + buffer.getInt(symbolIndex + 4 * symbol);
+                final byte[] bytes = new byte[buffer.getInt(offset)];
+                final ByteBuffer data = buffer.duplicate();
+                data.position(offset + 4);
+                data.get(bytes);
+                symbols[symbol] = str = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return str;
+        }
+
+        class LazySpecifications extends AbstractMap<String, Specification> {
+
+            final Map<String, Integer> index;
+            final String[] idents;
+            final int[] offsets;
+            final int records;
+            final AtomicReferenceArray<Specification> specifications;
+
+            LazySpecifications(String[] idents, int[] offsets, int records) {
+                this.idents = idents;
+                this.offsets = offsets;
+                this.records = records;
+                this.specifications = new AtomicReferenceArray<>(idents.length);
+                this.index = new HashMap<>(idents.length * 2);
+                for (int sc = 0; sc < idents.length; sc++) {
+                    index.put(idents[sc], sc);
+                }
+            }
+
+            Specification specification(int sc) {
+                Specification specification = specifications.get(sc);
+                if (specification == null) {
+                    specification = Reader.this.specification(idents[sc], records + offsets[sc]);
+                    if (!specifications.compareAndSet(sc, null, specification)) {
+                        specification = specifications.get(sc);
+                    }
+                }
+                return specification;
+            }
+
+            @Override
+            public Specification get(Object key) {
+                final Integer sc = index.get(key);
+                return (sc == null ? null : specification(sc));
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return index.containsKey(key);
+            }
+
+            @Override
+            public Set<String> keySet() {
+                return Collections.unmodifiableSet(index.keySet());
+            }
+
+            @Override
+            public int size() {
+                return idents.length;
+            }
+
+            @Override
+            public Set<Entry<String, Specification>> entrySet() {
+                return new AbstractSet<Entry<String, Specification>>() {
+                    @Override
+                    public Iterator<Entry<String, Specification>> iterator() {
+                        return new Iterator<Entry<String, Specification>>() {
+                            int sc = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return sc < idents.length;
+                            }
+
+                            @Override
+                            public Entry<String, Specification> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final Specification specification = specification(sc);
+                                return new SimpleImmutableEntry<>(idents[sc++], specification);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return idents.length;
+                    }
+                };
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.rng.Derivatives;
+import eu.interedition.tei.rng.Pattern;
+import eu.interedition.tei.rng.PatternCompiler;
+import eu.interedition.tei.util.XML;
+import org.kohsuke.rngom.ast.builder.BuildException;
+import org.kohsuke.rngom.digested.DPattern;
+import org.kohsuke.rngom.digested.DSchemaBuilderImpl;
+import org.kohsuke.rngom.parse.IllegalSchemaException;
+import org.kohsuke.rngom.parse.compact.CompactParseable;
+import org.xml.sax.InputSource;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Streaming validator of TEI documents against the content models of a compiled schema.
+ * <p>
+ * The schema is assembled into one grammar via its {@link RelaxCompactSchemaWriter compact syntax}, which is then
+ * compiled into immutable {@link Pattern patterns}. Documents are validated event by event via the
+ * {@link Derivatives derivatives} of these patterns, so memory use only depends on the nesting depth of a document and
+ * the size of its text nodes. On an error, the validator reports it and recovers by skipping the offending element,
+ * attribute or text, or by accepting incomplete content.
+ * <p>
+ * Validators are immutable and can validate many documents concurrently; each thread keeps its own memoized
+ * derivatives, which are reused across the documents it validates.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SchemaValidator {
+
+    final Pattern start;
+
+    private final ThreadLocal<Derivatives> derivatives = ThreadLocal.withInitial(Derivatives::new);
+
+    SchemaValidator(Pattern start) {
+        this.start = start;
+    }
+
+    public static SchemaValidator create(Schema schema) throws IllegalSchemaException {
+        return create(schema, SpecificationGraph.create(schema));
+    }
+
+    public static SchemaValidator create(Schema schema, SpecificationGraph graph) throws IllegalSchemaException {
+        return new SchemaValidator(compile(schema, graph));
+    }
+
+    /**
+     * @return the compiled start pattern of the given schema's grammar
+     */
+    static Pattern compile(Schema schema, SpecificationGraph graph) throws IllegalSchemaException {
+        final String grammar = RelaxCompactSchemaWriter.toString(schema, graph);
+        try {
+            final DPattern pattern = (DPattern) new CompactParseable(
+                    new InputSource(new StringReader(grammar)),
+                    XML.STRICT_ERROR_HANDLER
+            ).parse(new DSchemaBuilderImpl());
+            return PatternCompiler.compile(pattern);
+        } catch (BuildException e) {
+            // keeps the assembled grammar, which the parser's error locations refer to
+            throw (IllegalSchemaException) new IllegalSchemaException().initCause(new IllegalArgumentException(grammar, e));
+        }
+    }
+
+    private volatile AttributeChecker attributeChecker;
+
+    /**
+     * @return a checker of the attributes declared by this validator's elements; created once per validator
+     */
+    public AttributeChecker getAttributeChecker() {
+        AttributeChecker attributeChecker = this.attributeChecker;
+        if (attributeChecker == null) {
+            this.attributeChecker = attributeChecker = AttributeChecker.of(start);
+        }
+        return attributeChecker;
+    }
+
+    public boolean isValid(InputStream xmlStream) throws XMLStreamException {
+        return validate(xmlStream, error -> {
+        });
+    }
+
+    public boolean validate(InputStream xmlStream, Consumer<String> errors) throws XMLStreamException {
+        final XMLEventReader xml = XML.inputFactory().createXMLEventReader(xmlStream);
+        try {
+            return validate(xml, errors);
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * Validates the remaining events of a document.
+     *
+     * @param errors receives a message for each error, prefixed by its location
+     * @return whether the document is valid
+     */
+    public boolean validate(XMLEventReader xml, Consumer<String> errors) throws XMLStreamException {
+        final Derivatives derivatives = this.derivatives.get();
+        final StringBuilder text = new StringBuilder();
+        Pattern pattern = start;
+        boolean valid = true;
+        boolean empty = false;
+        int skipped = 0;
+        while (xml.hasNext()) {
+            final XMLEvent event = xml.nextEvent();
+            if (skipped > 0) {
+                if (event.isStartElement()) {
+                    skipped++;
+                } else if (event.isEndElement()) {
+                    skipped--;
+                }
+                continue;
+            }
+            switch (event.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    final StartElement element = event.asStartElement();
+                    if (text.length() > 0) {
+                        final Pattern deriv = derivatives.childTextDeriv(pattern, text);
+                        text.setLength(0);
+                        if (deriv == derivatives.notAllowed()) {
+                            valid = error(errors, event, "text not allowed before " + element.getName());
+                        } else {
+                            pattern = deriv;
+                        }
+                    }
+
+                    Pattern deriv = derivatives.startTagOpenDeriv(pattern, element.getName());
+                    if (deriv == derivatives.notAllowed()) {
+                        valid = error(errors, event, "element " + element.getName() + " not allowed here");
+                        skipped = 1;
+                        break;
+                    }
+                    for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+                        final Attribute attribute = (Attribute) it.next();
+                        final QName name = attribute.getName();
+                        final Pattern attDeriv = derivatives.attDeriv(deriv, name, attribute.getValue());
+                        if (attDeriv == derivatives.notAllowed()) {
+                            valid = error(errors, event, "attribute " + name + "=\"" + attribute.getValue() + "\" of " + element.getName() + " not allowed or invalid");
+                        } else {
+                            deriv = attDeriv;
+                        }
+                    }
+                    final Pattern closed = derivatives.startTagCloseDeriv(deriv);
+                    if (closed == derivatives.notAllowed()) {
+                        valid = error(errors, event, "required attributes of " + element.getName() + " missing");
+                        pattern = derivatives.startTagCloseDerivLeniently(deriv);
+                    } else {
+                        pattern = closed;
+                    }
+                    empty = true;
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    if (empty || text.length() > 0) {
+                        final Pattern deriv = derivatives.childTextDeriv(pattern, text);
+                        text.setLength(0);
+                        if (deriv == derivatives.notAllowed()) {
+                            valid = error(errors, event, "text of " + event.asEndElement().getName() + " not allowed or invalid");
+                        } else {
+                            pattern = deriv;
+                        }
+                    }
+                    final Pattern deriv = derivatives.endTagDeriv(pattern);
+                    if (deriv == derivatives.notAllowed()) {
+                        valid = error(errors, event, "content of " + event.asEndElement().getName() + " incomplete");
+                        pattern = derivatives.endTagDerivLeniently(pattern);
+                    } else {
+                        pattern = deriv;
+                    }
+                    empty = false;
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(event.asCharacters().getData());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE: {
+                    final EntityReference reference = (EntityReference) event;
+                    if (reference.getDeclaration() != null && reference.getDeclaration().getReplacementText() != null) {
+                        text.append(reference.getDeclaration().getReplacementText());
+                    }
+                    break;
+                }
+            }
+        }
+        return valid;
+    }
+
+    private static boolean error(Consumer<String> errors, XMLEvent event, String message) {
+        final Location location = event.getLocation();
+        errors.accept(location == null ? message : (location.getLineNumber() + ":" + location.getColumnNumber() + ": " + message));
+        return false;
+    }
+}
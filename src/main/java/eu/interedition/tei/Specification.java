@@ -21,6 +21,7 @@ package eu.interedition.tei;
 
 import eu.interedition.tei.util.LocalizedStrings;
 import eu.interedition.tei.util.XML;
+import eu.interedition.tei.util.XMLEventBuffer;
 import org.kohsuke.rngom.parse.IllegalSchemaException;
 
 import javax.xml.namespace.QName;
@@ -32,9 +33,16 @@ import javax.xml.transform.TransformerException;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -53,17 +61,30 @@ public class Specification implements Identified, Namespaceable, Combinable {
     final EditOperation classesEditOperation;
     final LocalizedStrings altIdents;
 
-    final ContentModel content;
     final AttributeList attributes;
     final Map<String, EditOperation> classes;
 
+    private volatile ContentModel content;
+    private volatile XMLEventBuffer contentEvents;
+
     public static Specification from(StartElement specElement, XMLEventReader xml) throws XMLStreamException, IllegalSchemaException {
+        return from(specElement, xml, false);
+    }
+
+    /**
+     * Reads a specification.
+     *
+     * @param lazyContent if <code>true</code>, the events of the content model are only recorded and compiled on
+     *                    the first call to {@link #getContent()}
+     */
+    public static Specification from(StartElement specElement, XMLEventReader xml, boolean lazyContent) throws XMLStreamException, IllegalSchemaException {
         final LocalizedStrings descriptions = new LocalizedStrings();
         final LocalizedStrings altIdents = new LocalizedStrings();
         final Map<String, EditOperation> classes = new HashMap<>();
         Optional<EditOperation> classesEditOperation = Optional.empty();
         AttributeList attributeList = null;
         ContentModel contentModel = null;
+        XMLEventBuffer contentEvents = null;
 
         final QName startName = specElement.getName();
         while (xml.hasNext()) {
@@ -80,7 +101,11 @@ public class Specification implements Identified, Namespaceable, Combinable {
                             classes.put(XML.requiredAttr(element, "key"), Combinable.EditOperation.from(element).orElse(EditOperation.ADD));
                             break;
                         case "content":
-                            contentModel = ContentModel.parse(xml, "content");
+                            if (lazyContent) {
+                                contentEvents = XMLEventBuffer.element(element, xml);
+                            } else {
+                                contentModel = ContentModel.parse(xml, "content");
+                            }
                             break;
                         case "attList":
                             attributeList = AttributeList.parse(element, xml);
@@ -99,7 +124,7 @@ public class Specification implements Identified, Namespaceable, Combinable {
                 }
             }
         }
-        return new Specification(
+        final Specification specification = new Specification(
                 specElement,
                 descriptions,
                 altIdents,
@@ -108,21 +133,36 @@ public class Specification implements Identified, Namespaceable, Combinable {
                 Optional.ofNullable(attributeList).orElse(new AttributeList(false)),
                 contentModel
         );
+        specification.contentEvents = contentEvents;
+        return specification;
     }
 
     Specification(StartElement specElement, LocalizedStrings descriptions, LocalizedStrings altIdents, EditOperation classesEditOperation, Map<String, EditOperation> classes, AttributeList attributes, ContentModel content) {
+        this(
+                XML.requiredAttr(specElement, "ident"),
+                XML.attr(specElement, "module"),
+                XML.attr(specElement, "ns").map(URI::create).orElse(DEFAULT_NS),
+                Type.from(specElement.getName().getLocalPart()),
+                XML.attr(specElement, "type"),
+                Combinable.EditOperation.from(specElement).orElse(EditOperation.ADD),
+                descriptions, altIdents, classesEditOperation, classes, attributes, content
+        );
+    }
+
+    Specification(String ident, Optional<String> module, URI namespace, Type type, Optional<String> specType, EditOperation editOperation,
+                  LocalizedStrings descriptions, LocalizedStrings altIdents, EditOperation classesEditOperation, Map<String, EditOperation> classes, AttributeList attributes, ContentModel content) {
+        this.ident = ident;
+        this.module = module;
+        this.namespace = namespace;
+        this.type = type;
+        this.specType = specType;
+        this.editOperation = editOperation;
         this.descriptions = descriptions;
         this.altIdents = altIdents;
         this.classesEditOperation = classesEditOperation;
         this.classes = classes;
         this.attributes = attributes;
         this.content = content;
-        this.ident = XML.requiredAttr(specElement, "ident");
-        this.module = XML.attr(specElement, "module");
-        this.namespace = XML.attr(specElement, "ns").map(URI::create).orElse(DEFAULT_NS);
-        this.type = Type.from(specElement.getName().getLocalPart());
-        this.specType = XML.attr(specElement, "type");
-        this.editOperation = Combinable.EditOperation.from(specElement).orElse(EditOperation.ADD);
     }
 
     @Override
@@ -150,15 +190,33 @@ public class Specification implements Identified, Namespaceable, Combinable {
         return descriptions;
     }
 
+    public LocalizedStrings getAltIdents() {
+        return altIdents;
+    }
+
     @Override
     public Combinable.EditOperation getEditOperation() {
         return editOperation;
     }
 
     public ContentModel getContent() {
+        if (contentEvents != null) {
+            compileContent();
+        }
         return content;
     }
 
+    private synchronized void compileContent() {
+        if (contentEvents != null) {
+            try {
+                content = ContentModel.parse(contentEvents.reader(), "content");
+                contentEvents = null;
+            } catch (XMLStreamException | IllegalSchemaException e) {
+                throw new IllegalStateException(ident, e);
+            }
+        }
+    }
+
     public AttributeList getAttributes() {
         return attributes;
     }
@@ -183,16 +241,68 @@ public class Specification implements Identified, Namespaceable, Combinable {
 
     public static Set<Specification> read(XMLEventReader xml) throws XMLStreamException, TransformerException, IllegalSchemaException {
         final Set<Specification> specifications = new HashSet<>();
+        read(xml, specifications::add);
+        return specifications;
+    }
+
+    /**
+     * Reads specifications one at a time, passing each to the given consumer as soon as its end tag has been read.
+     */
+    public static void read(XMLEventReader xml, Consumer<Specification> consumer) throws XMLStreamException, IllegalSchemaException {
         while (xml.hasNext()) {
             final XMLEvent event = xml.nextEvent();
             if (event.isStartElement()) {
                 final StartElement startElement = event.asStartElement();
                 if (isSpecificationElement(startElement)) {
-                    specifications.add(Specification.from(startElement, xml));
+                    consumer.accept(Specification.from(startElement, xml));
                 }
             }
         }
-        return specifications;
+    }
+
+    /**
+     * Reads specifications on demand, parsing the next one only when asked for it; errors in the underlying stream
+     * are rethrown as {@link IllegalStateException}s.
+     */
+    public static Iterator<Specification> iterate(XMLEventReader xml) {
+        return new Iterator<Specification>() {
+            private Specification next;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null && xml.hasNext()) {
+                        final XMLEvent event = xml.nextEvent();
+                        if (event.isStartElement()) {
+                            final StartElement startElement = event.asStartElement();
+                            if (isSpecificationElement(startElement)) {
+                                next = Specification.from(startElement, xml);
+                            }
+                        }
+                    }
+                    return (next != null);
+                } catch (XMLStreamException | IllegalSchemaException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public Specification next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Specification specification = next;
+                next = null;
+                return specification;
+            }
+        };
+    }
+
+    /**
+     * @see #iterate(XMLEventReader)
+     */
+    public static Stream<Specification> stream(XMLEventReader xml) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(xml), Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     static boolean isSpecificationElement(StartElement element) {
@@ -19,78 +19,687 @@
 
 package eu.interedition.tei;
 
-import java.util.SortedMap;
+import eu.interedition.tei.util.Adjacency;
+import eu.interedition.tei.util.SymbolTable;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 /**
+ * Dependencies between the specifications of a schema and between their modules.
+ * <p>
+ * Specifications and modules are numbered by symbol tables in the lexical order of their identifiers; memberships,
+ * dependencies and references are held as adjacency structures over these numbers. Dependencies are undirected and
+ * recorded under the lexically smaller of both identifiers.
+ * <p>
+ * A graph can be updated in place via {@link #put(Specification)} and {@link #remove(String)}, at a cost proportional
+ * to the neighborhood of the specification in question: specifications with new identifiers are numbered after all
+ * others, and the numbers of removed ones are left unassigned. Updates must not run concurrently with other accesses.
+ *
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
  */
 public class SpecificationGraph {
 
     final Schema schema;
-    final SortedMap<String, SortedSet<String>> moduleMembers = new TreeMap<>();
-    final SortedMap<String, SortedSet<String>> classMembers = new TreeMap<>();
-    final SortedMap<String, SortedSet<String>> specificationDependencies = new TreeMap<>();
-    final SortedMap<String, SortedSet<String>> moduleDependencies = new TreeMap<>();
+    final Map<String, Specification> specifications;
+
+    /*
+     * String-keyed views of the graph's adjacency structures.
+     */
+    final Map<String, Set<String>> moduleMembers = view(index -> index.moduleMembers.asMap(index.modules, index.specifications));
+    final Map<String, Set<String>> classMembers = view(index -> index.classMembers.asMap(index.specifications, index.specifications));
+    final Map<String, Set<String>> specificationDependencies = view(index -> index.specificationDependencies.asMap(index.specifications, index.specifications));
+    final Map<String, Set<String>> moduleDependencies = view(index -> index.moduleDependencies.asMap(index.modules, index.modules));
+
+    private boolean modified;
+    private volatile Index index;
+    private volatile AttributeResolver attributeResolver;
 
     public static SpecificationGraph create(Schema schema) {
-        final SpecificationGraph graph = new SpecificationGraph(schema);
+        return new SpecificationGraph(schema);
+    }
+
+    private SpecificationGraph(Schema schema) {
+        this.schema = schema;
+        this.specifications = new HashMap<>(schema.specifications);
+    }
+
+    public Map<String, Specification> getSpecifications() {
+        return Collections.unmodifiableMap(specifications);
+    }
+
+    /**
+     * Adds a specification to the graph or replaces the one with the same identifier.
+     *
+     * @return the replaced specification, if any
+     */
+    public Optional<Specification> put(Specification specification) {
+        final String ident = specification.getIdent();
+        final Index index = index();
+        final Specification previous = specifications.put(ident, specification);
+        if (previous == null) {
+            index.add(specification);
+        } else {
+            index.replace(previous, specification);
+        }
+
+        modified = true;
+        invalidateAttributes(ident);
+        return Optional.ofNullable(previous);
+    }
+
+    /**
+     * Removes a specification from the graph. References to it by remaining specifications are kept and take effect
+     * again, when a specification with the same identifier is {@link #put(Specification) put} later.
+     *
+     * @return the removed specification, if any
+     */
+    public Optional<Specification> remove(String ident) {
+        final Specification specification = specifications.get(ident);
+        if (specification == null) {
+            return Optional.empty();
+        }
+        index().remove(specification);
+        specifications.remove(ident);
+
+        modified = true;
+        invalidateAttributes(ident);
+        return Optional.of(specification);
+    }
+
+    /**
+     * @return the resolver of effective attributes; created once per graph and kept up to date on updates
+     */
+    public AttributeResolver getAttributeResolver() {
+        AttributeResolver attributeResolver = this.attributeResolver;
+        if (attributeResolver == null) {
+            synchronized (this) {
+                attributeResolver = this.attributeResolver;
+                if (attributeResolver == null) {
+                    this.attributeResolver = attributeResolver = new AttributeResolver(this);
+                }
+            }
+        }
+        return attributeResolver;
+    }
+
+    private void invalidateAttributes(String ident) {
+        final AttributeResolver attributeResolver = this.attributeResolver;
+        if (attributeResolver != null) {
+            attributeResolver.invalidate(ident);
+        }
+    }
+
+    private Map<String, Set<String>> view(Function<Index, Map<String, Set<String>>> view) {
+        return new AbstractMap<String, Set<String>>() {
+            @Override
+            public Set<String> get(Object key) {
+                return view.apply(index()).get(key);
+            }
+
+            @Override
+            public Set<Entry<String, Set<String>>> entrySet() {
+                return view.apply(index()).entrySet();
+            }
+        };
+    }
+
+    /**
+     * @return the specification identifiers, by which the vertices of all specification-level adjacency
+     * structures are numbered; the numbers of removed specifications are unassigned
+     */
+    public SymbolTable getSpecificationIds() {
+        return index().specifications;
+    }
+
+    /**
+     * @return the module identifiers, by which the vertices of all module-level adjacency structures are numbered
+     */
+    public SymbolTable getModuleIds() {
+        return index().modules;
+    }
+
+    /**
+     * @return module ids mapped to the ids of their member specifications
+     */
+    public Adjacency getModuleMembers() {
+        return index().moduleMembers;
+    }
+
+    /**
+     * @return class ids mapped to the ids of their member specifications; memberships in classes not specified in the
+     * schema are omitted
+     */
+    public Adjacency getClassMembers() {
+        return index().classMembers;
+    }
+
+    public Adjacency getSpecificationDependencies() {
+        return index().specificationDependencies;
+    }
+
+    public Adjacency getModuleDependencies() {
+        return index().moduleDependencies;
+    }
+
+    /**
+     * Directed references between specifications, as opposed to the undirected dependencies: content models and
+     * attribute datatypes refer to specifications, model classes to their members and the members of attribute
+     * classes, including other attribute classes, to the classes they take their attributes from.
+     *
+     * @return specification ids mapped to the ids of the specifications they refer to
+     */
+    public Adjacency getReferences() {
+        return index().references;
+    }
+
+    /**
+     * Resolves module references against the graph's module memberships, each via the bitset of its module's members.
+     * As with <code>moduleRef/@include</code> and <code>@except</code> in ODD, included and excluded specifications
+     * restrict the module's elements only; its classes and macros are always selected. References to modules by URL
+     * or to modules without members select nothing.
+     *
+     * @return the ids of all selected specifications
+     */
+    public BitSet select(Collection<ModuleReference> references) {
+        final Index index = index();
+        final BitSet[] moduleMembers = index.moduleMemberSets();
+        final BitSet selected = new BitSet(index.specifications.size());
+        for (ModuleReference reference : references) {
+            final int module = (reference.url.isPresent() ? SymbolTable.NONE : index.modules.id(reference.key));
+            if (module == SymbolTable.NONE) {
+                continue;
+            }
+            if (reference.included.isEmpty() && reference.excluded.isEmpty()) {
+                selected.or(moduleMembers[module]);
+                continue;
+            }
+            final BitSet members = (BitSet) moduleMembers[module].clone();
+            members.andNot(index.elements);
+            selected.or(members);
+
+            final BitSet elements = (BitSet) moduleMembers[module].clone();
+            elements.and(index.elements);
+            if (!reference.included.isEmpty()) {
+                elements.and(index.ids(reference.included));
+            }
+            elements.andNot(index.ids(reference.excluded));
+            selected.or(elements);
+        }
+        return selected;
+    }
+
+    public Reachability getReachability() {
+        final Index index = index();
+        Reachability reachability = index.reachability;
+        if (reachability == null) {
+            index.reachability = reachability = new Reachability(index.specifications, index.references, schema.getStart());
+        }
+        return reachability;
+    }
+
+    /**
+     * @return the schema's namespace prefixes, or if the graph has been updated, the prefixes for its specifications
+     * @see Schema#getNamespacePrefixes()
+     */
+    public Map<String, String> getNamespacePrefixes() {
+        if (!modified) {
+            return schema.getNamespacePrefixes();
+        }
+        final Index index = index();
+        Map<String, String> namespacePrefixes = index.namespacePrefixes;
+        if (namespacePrefixes == null) {
+            index.namespacePrefixes = namespacePrefixes = Schema.namespacePrefixes(specifications.values());
+        }
+        return namespacePrefixes;
+    }
+
+    private Index index() {
+        Index index = this.index;
+        if (index == null) {
+            this.index = index = new Index(this);
+        }
+        return index;
+    }
+
+    /**
+     * Adjacency structures of the graph, built from the schema's specifications on first access and updated in place
+     * thereafter.
+     */
+    private static class Index {
+        final SpecificationGraph graph;
+        SymbolTable specifications;
+        final SymbolTable modules;
+        final BitSet elements;
+        final Adjacency moduleMembers;
+        final Adjacency classMembers;
+        final Adjacency specificationDependencies;
+        final Adjacency moduleDependencies;
+        final Adjacency references;
+        volatile Reachability reachability;
+        volatile Map<String, String> namespacePrefixes;
+        volatile BitSet[] moduleMemberSets;
+
+        int[] moduleOf;
+
+        /**
+         * Number of specification dependencies, on which each module dependency is based.
+         */
+        int[][] moduleDependencyCounts;
+
+        /*
+         * Only needed for updates, thus built on the first one: referred specifications mapped to the ones referring
+         * to them by their content models or attribute datatypes, and the referrers and members of identifiers not
+         * specified in the graph, by which they are connected to specifications put later.
+         */
+        Adjacency referrers;
+        Map<String, BitSet> pendingReferrers;
+        Map<String, BitSet> pendingMembers;
+
+        Index(SpecificationGraph graph) {
+            this.graph = graph;
+            this.specifications = graph.schema.identifiers;
+            final int size = specifications.size();
+            final SortedSet<String> moduleIdents = new TreeSet<>();
+            for (int id = 0; id < size; id++) {
+                graph.schema.getSpecification(id).getModule().ifPresent(moduleIdents::add);
+            }
+            this.modules = SymbolTable.of(moduleIdents);
+
+            this.moduleOf = new int[size];
+            this.elements = new BitSet(size);
+            final Adjacency.Builder moduleMembers = new Adjacency.Builder(modules.size());
+            for (int id = 0; id < size; id++) {
+                final Specification spec = graph.schema.getSpecification(id);
+                moduleOf[id] = spec.getModule().map(modules::id).orElse(SymbolTable.NONE);
+                if (moduleOf[id] != SymbolTable.NONE) {
+                    moduleMembers.add(moduleOf[id], id);
+                }
+                if (Specification.Type.ELEMENT.equals(spec.getType())) {
+                    elements.set(id);
+                }
+            }
+
+            // numbers follow the lexical order of identifiers, so dependencies are recorded under the smaller one
+            final Adjacency specificationReferences = graph.schema.getReferences();
+            final Adjacency.Builder classMembers = new Adjacency.Builder(size);
+            final Adjacency.Builder dependencies = new Adjacency.Builder(size);
+            final Adjacency.Builder references = new Adjacency.Builder(size);
+            for (int id = 0; id < size; id++) {
+                final int source = id;
+                final Specification spec = graph.schema.getSpecification(id);
+                specificationReferences.forEach(id, target -> references.add(source, target));
+                final ContentModel content = spec.getContent();
+                if (content != null) {
+                    for (String ref : content.getReferences()) {
+                        final int target = Schema.referenceId(specifications, ref);
+                        if (target != SymbolTable.NONE && target != id) {
+                            dependencies.add(Math.min(id, target), Math.max(id, target));
+                        }
+                    }
+                }
+                for (String classMembership : spec.classes.keySet()) {
+                    final int classId = specifications.id(classMembership);
+                    if (classId == SymbolTable.NONE) {
+                        continue;
+                    }
+                    classMembers.add(classId, id);
+                    final Specification classSpec = graph.schema.getSpecification(classId);
+                    if (Specification.Type.CLASS.equals(classSpec.getType()) && classId != id) {
+                        dependencies.add(Math.min(id, classId), Math.max(id, classId));
+                    }
+                    if (classSpec.getSpecType().filter("atts"::equals).isPresent()) {
+                        references.add(id, classId);
+                    } else {
+                        references.add(classId, id);
+                    }
+                }
+            }
+            this.moduleMembers = moduleMembers.build();
+            this.classMembers = classMembers.build();
+            this.specificationDependencies = dependencies.build();
+            this.references = references.build();
+
+            this.moduleDependencyCounts = new int[modules.size()][modules.size()];
+            final Adjacency.Builder moduleDependencies = new Adjacency.Builder(modules.size());
+            for (int id = 0; id < size; id++) {
+                final int module1 = moduleOf[id];
+                specificationDependencies.forEach(id, target -> {
+                    final int module2 = moduleOf[target];
+                    if (module1 != SymbolTable.NONE && module2 != SymbolTable.NONE && module1 != module2) {
+                        moduleDependencyCounts[Math.min(module1, module2)][Math.max(module1, module2)]++;
+                        moduleDependencies.add(Math.min(module1, module2), Math.max(module1, module2));
+                    }
+                });
+            }
+            this.moduleDependencies = moduleDependencies.build();
+        }
+
+        void add(Specification specification) {
+            prepareUpdates();
+            copyIdentifiers();
+            final int id = specifications.add(specification.getIdent());
+            for (Adjacency adjacency : Arrays.asList(classMembers, specificationDependencies, references, referrers)) {
+                adjacency.grow(specifications.size());
+            }
+            if (moduleOf.length < specifications.size()) {
+                final int size = moduleOf.length;
+                moduleOf = Arrays.copyOf(moduleOf, Math.max(specifications.size(), size * 2));
+                Arrays.fill(moduleOf, size, moduleOf.length, SymbolTable.NONE);
+            }
+            attach(id, specification);
+        }
+
+        void replace(Specification previous, Specification specification) {
+            prepareUpdates();
+            final int id = specifications.id(specification.getIdent());
+            detach(id, previous);
+            attach(id, specification);
+        }
+
+        void remove(Specification specification) {
+            prepareUpdates();
+            final int id = specifications.id(specification.getIdent());
+            detach(id, specification);
+            copyIdentifiers();
+            specifications.remove(specification.getIdent());
+        }
+
+        /**
+         * Connects a specification to its module, the specifications it refers to, the classes it is a member of and,
+         * via their pending references and memberships, to the specifications referring to it and its members.
+         */
+        private void attach(int id, Specification specification) {
+            final String ident = specification.getIdent();
+            final int module = specification.getModule().map(this::module).orElse(SymbolTable.NONE);
+            moduleOf[id] = module;
+            if (module != SymbolTable.NONE) {
+                moduleMembers.add(module, id);
+                final BitSet[] moduleMemberSets = this.moduleMemberSets;
+                if (moduleMemberSets != null) {
+                    moduleMemberSets[module].set(id);
+                }
+            }
+            elements.set(id, Specification.Type.ELEMENT.equals(specification.getType()));
+
+            Schema.references(specification, reference -> {
+                final int target = Schema.referenceId(specifications, reference);
+                if (target == SymbolTable.NONE) {
+                    pendingReferrers.computeIfAbsent(reference, r -> new BitSet()).set(id);
+                } else {
+                    referrers.add(target, id);
+                    references.add(id, target);
+                }
+            });
+            pending(pendingReferrers, ident, referrer -> {
+                referrers.add(id, referrer);
+                references.add(referrer, id);
+            });
+            for (String variant : Schema.CLASS_VARIANTS) {
+                pending(pendingReferrers, ident + "_" + variant, referrer -> {
+                    referrers.add(id, referrer);
+                    references.add(referrer, id);
+                });
+            }
 
-        for (Specification specification : schema.specifications.values()) {
-            specification.getModule().ifPresent(module -> graph.moduleMembers.computeIfAbsent(module, m -> new TreeSet<>()).add(specification.getIdent()));
-            final String id = specification.getIdent();
             for (String classMembership : specification.classes.keySet()) {
-                graph.classMembers.computeIfAbsent(classMembership, m -> new TreeSet<>()).add(id);
+                final int classId = specifications.id(classMembership);
+                if (classId == SymbolTable.NONE) {
+                    pendingMembers.computeIfAbsent(classMembership, c -> new BitSet()).set(id);
+                } else {
+                    addMember(classId, id);
+                }
             }
+            pending(pendingMembers, ident, member -> addMember(id, member));
+
+            dependencies(id, specification, target -> updateDependency(id, target, true));
+
+            reachability = null;
+            namespacePrefixes = null;
         }
 
-        for (Specification spec : schema.specifications.values()) {
-            final String id = spec.getIdent();
-            if (Specification.Type.CLASS.equals(spec.getType())) {
-                for (String member : graph.classMembers.get(id)) {
-                    final int order = id.compareTo(member);
-                    if (order < 0) {
-                        graph.specificationDependencies.computeIfAbsent(id, k -> new TreeSet<>()).add(member);
-                    } else if (order > 0) {
-                        graph.specificationDependencies.computeIfAbsent(id, k -> new TreeSet<>()).add(id);
+        /**
+         * Disconnects a specification from all others, keeping the references and memberships of those referring to
+         * it or being its members pending.
+         */
+        private void detach(int id, Specification specification) {
+            final String ident = specification.getIdent();
+            dependencies(id, specification, target -> updateDependency(id, target, false));
+
+            Schema.references(specification, reference -> {
+                final int target = Schema.referenceId(specifications, reference);
+                if (target == SymbolTable.NONE) {
+                    clearPending(pendingReferrers, reference, id);
+                } else {
+                    referrers.remove(target, id);
+                }
+            });
+            referrers.forEach(id, referrer -> {
+                references.remove(referrer, id);
+                Schema.references(specification(referrer), reference -> {
+                    if (Schema.referenceId(specifications, reference) == id) {
+                        pendingReferrers.computeIfAbsent(reference, r -> new BitSet()).set(referrer);
                     }
+                });
+            });
+            referrers.clear(id);
+            references.clear(id);
+
+            for (String classMembership : specification.classes.keySet()) {
+                final int classId = specifications.id(classMembership);
+                if (classId == SymbolTable.NONE) {
+                    clearPending(pendingMembers, classMembership, id);
+                } else {
+                    classMembers.remove(classId, id);
+                    references.remove(classId, id);
                 }
             }
-            if (spec.getContent() != null) {
-                for (String ref : spec.getContent().getReferences()) {
-                    if (schema.specifications.containsKey(ref)) {
-                        final int order = id.compareTo(ref);
-                        if (order < 0) {
-                            graph.specificationDependencies.computeIfAbsent(id, k -> new TreeSet<>()).add(ref);
-                        } else if (order > 0) {
-                            graph.specificationDependencies.computeIfAbsent(ref, k -> new TreeSet<>()).add(id);
+            classMembers.forEach(id, member -> {
+                references.remove(member, id);
+                pendingMembers.computeIfAbsent(ident, c -> new BitSet()).set(member);
+            });
+            classMembers.clear(id);
+
+            final int module = moduleOf[id];
+            if (module != SymbolTable.NONE) {
+                moduleMembers.remove(module, id);
+                final BitSet[] moduleMemberSets = this.moduleMemberSets;
+                if (moduleMemberSets != null) {
+                    moduleMemberSets[module].clear(id);
+                }
+                moduleOf[id] = SymbolTable.NONE;
+            }
+            elements.clear(id);
+
+            reachability = null;
+            namespacePrefixes = null;
+        }
+
+        /**
+         * Passes the ids of all specifications, the given one depends on or which depend on it, possibly repeatedly.
+         */
+        private void dependencies(int id, Specification specification, IntConsumer consumer) {
+            final ContentModel content = specification.getContent();
+            if (content != null) {
+                for (String ref : content.getReferences()) {
+                    final int target = Schema.referenceId(specifications, ref);
+                    if (target != SymbolTable.NONE) {
+                        consumer.accept(target);
+                    }
+                }
+            }
+            referrers.forEach(id, referrer -> {
+                final ContentModel referrerContent = specification(referrer).getContent();
+                if (referrerContent != null) {
+                    for (String ref : referrerContent.getReferences()) {
+                        if (Schema.referenceId(specifications, ref) == id) {
+                            consumer.accept(referrer);
+                            break;
                         }
                     }
                 }
+            });
+            if (Specification.Type.CLASS.equals(specification.getType())) {
+                classMembers.forEach(id, consumer);
+            }
+            for (String classMembership : specification.classes.keySet()) {
+                final int classId = specifications.id(classMembership);
+                if (classId != SymbolTable.NONE && Specification.Type.CLASS.equals(specification(classId).getType())) {
+                    consumer.accept(classId);
+                }
             }
         }
 
-        graph.specificationDependencies.forEach((id, dependencies) -> {
-            schema.specifications.get(id).getModule().ifPresent(moduleId1 -> {
-                dependencies.forEach(dependency -> {
-                    schema.specifications.get(dependency).getModule().ifPresent(moduleId2 -> {
-                        final int order = moduleId1.compareTo(moduleId2);
-                        if (order < 0) {
-                            graph.moduleDependencies.computeIfAbsent(moduleId1, k -> new TreeSet<>()).add(moduleId2);
-                        } else if (order > 0) {
-                            graph.moduleDependencies.computeIfAbsent(moduleId2, k -> new TreeSet<>()).add(moduleId1);
-                        }
-                    });
+        private void updateDependency(int id1, int id2, boolean add) {
+            if (id1 == id2) {
+                return;
+            }
+            final int lower = (precedes(specifications, id1, id2) ? id1 : id2);
+            final int upper = (lower == id1 ? id2 : id1);
+            final boolean updated = (add
+                    ? specificationDependencies.add(lower, upper)
+                    : specificationDependencies.remove(lower, upper));
+            final int module1 = moduleOf[id1];
+            final int module2 = moduleOf[id2];
+            if (!updated || module1 == SymbolTable.NONE || module2 == SymbolTable.NONE || module1 == module2) {
+                return;
+            }
+            final int lowerModule = (precedes(modules, module1, module2) ? module1 : module2);
+            final int upperModule = (lowerModule == module1 ? module2 : module1);
+            if ((moduleDependencyCounts[lowerModule][upperModule] += (add ? 1 : -1)) > 0) {
+                moduleDependencies.add(lowerModule, upperModule);
+            } else {
+                moduleDependencies.remove(lowerModule, upperModule);
+            }
+        }
+
+        private void addMember(int classId, int member) {
+            classMembers.add(classId, member);
+            if (specification(classId).getSpecType().filter("atts"::equals).isPresent()) {
+                references.add(member, classId);
+            } else {
+                references.add(classId, member);
+            }
+        }
+
+        private int module(String ident) {
+            int module = modules.id(ident);
+            if (module != SymbolTable.NONE) {
+                return module;
+            }
+            module = modules.add(ident);
+            moduleMembers.grow(modules.size());
+            moduleDependencies.grow(modules.size());
+            final int[][] moduleDependencyCounts = new int[modules.size()][modules.size()];
+            for (int mc = 0; mc < this.moduleDependencyCounts.length; mc++) {
+                System.arraycopy(this.moduleDependencyCounts[mc], 0, moduleDependencyCounts[mc], 0, this.moduleDependencyCounts[mc].length);
+            }
+            this.moduleDependencyCounts = moduleDependencyCounts;
+            final BitSet[] moduleMemberSets = this.moduleMemberSets;
+            if (moduleMemberSets != null) {
+                final BitSet[] grown = Arrays.copyOf(moduleMemberSets, modules.size());
+                grown[module] = new BitSet();
+                this.moduleMemberSets = grown;
+            }
+            return module;
+        }
+
+        private Specification specification(int id) {
+            return graph.specifications.get(specifications.symbol(id));
+        }
+
+        /**
+         * Symbol tables get updated along with the graph; the schema's one is shared, so it is copied beforehand.
+         */
+        private void copyIdentifiers() {
+            if (specifications == graph.schema.identifiers) {
+                specifications = specifications.copy();
+            }
+        }
+
+        private void prepareUpdates() {
+            if (referrers != null) {
+                return;
+            }
+            final Map<String, BitSet> pendingReferrers = new HashMap<>();
+            final Map<String, BitSet> pendingMembers = new HashMap<>();
+            final Adjacency.Builder referrers = new Adjacency.Builder(specifications.size());
+            for (int id = 0; id < specifications.size(); id++) {
+                final int source = id;
+                final Specification specification = specification(id);
+                Schema.references(specification, reference -> {
+                    final int target = Schema.referenceId(specifications, reference);
+                    if (target == SymbolTable.NONE) {
+                        pendingReferrers.computeIfAbsent(reference, r -> new BitSet()).set(source);
+                    } else {
+                        referrers.add(target, source);
+                    }
                 });
-            });
-        });
+                for (String classMembership : specification.classes.keySet()) {
+                    if (!specifications.contains(classMembership)) {
+                        pendingMembers.computeIfAbsent(classMembership, c -> new BitSet()).set(source);
+                    }
+                }
+            }
+            this.pendingReferrers = pendingReferrers;
+            this.pendingMembers = pendingMembers;
+            this.referrers = referrers.build();
+        }
 
-        return graph;
-    }
+        private static void pending(Map<String, BitSet> pending, String ident, IntConsumer consumer) {
+            final BitSet ids = pending.remove(ident);
+            if (ids != null) {
+                ids.stream().forEach(consumer);
+            }
+        }
 
-    private SpecificationGraph(Schema schema) {
-        this.schema = schema;
+        private static void clearPending(Map<String, BitSet> pending, String ident, int id) {
+            final BitSet ids = pending.get(ident);
+            if (ids != null) {
+                ids.clear(id);
+                if (ids.isEmpty()) {
+                    pending.remove(ident);
+                }
+            }
+        }
+
+        private static boolean precedes(SymbolTable symbols, int id1, int id2) {
+            return symbols.symbol(id1).compareTo(symbols.symbol(id2)) < 0;
+        }
+
+        BitSet[] moduleMemberSets() {
+            BitSet[] moduleMemberSets = this.moduleMemberSets;
+            if (moduleMemberSets == null) {
+                moduleMemberSets = new BitSet[modules.size()];
+                for (int mc = 0; mc < moduleMemberSets.length; mc++) {
+                    final BitSet members = moduleMemberSets[mc] = new BitSet(specifications.size());
+                    moduleMembers.forEach(mc, members::set);
+                }
+                this.moduleMemberSets = moduleMemberSets;
+            }
+            return moduleMemberSets;
+        }
+
+        BitSet ids(Collection<Reference> references) {
+            final BitSet ids = new BitSet(specifications.size());
+            for (Reference reference : references) {
+                final int id = specifications.id(reference.key);
+                if (id != SymbolTable.NONE) {
+                    ids.set(id);
+                }
+            }
+            return ids;
+        }
     }
 }
@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei;
+
+import eu.interedition.tei.util.XML;
+import org.kohsuke.rngom.parse.IllegalSchemaException;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Byte offsets of the specifications and modules in an ODD file, which allow for reading single ones without parsing
+ * the whole file.
+ * <p>
+ * An index is created by a single scan over the bytes of the file, which only looks at markup outside of
+ * specifications and skips comments, CDATA sections and <code>egXML</code> examples. Next to the offsets of each
+ * <code>elementSpec</code>, <code>classSpec</code>, <code>macroSpec</code> and <code>moduleSpec</code>, it records
+ * the namespace declarations in scope, so a specification can be parsed on its own after reading its bytes. Like
+ * {@link Schema#read(java.io.InputStream)}, the index keeps the first of several specifications sharing an identifier.
+ * <p>
+ * Indices are persisted next to the indexed file and rebuilt whenever the size or the modification time of the
+ * file changes. Only files in an encoding compatible with ASCII, like UTF-8, can be indexed.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SpecificationIndex {
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    static final String MODULE = "moduleSpec";
+    static final String NAMESPACES = "xmlns";
+
+    final Path file;
+    final long size;
+    final long lastModified;
+    final Charset encoding;
+    final Map<String, Region> specifications;
+    final Map<String, Region> modules;
+
+    SpecificationIndex(Path file, long size, long lastModified, Charset encoding, Map<String, Region> specifications, Map<String, Region> modules) {
+        this.file = file;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.specifications = specifications;
+        this.modules = modules;
+    }
+
+    /**
+     * @return the persisted index of the given file, or a new one which is persisted, if there is none yet or the
+     * persisted one is out of date or damaged; a new index is returned as well, if it cannot be persisted
+     */
+    public static SpecificationIndex open(Path file) throws IOException {
+        final Path indexFile = indexFile(file);
+        if (Files.isRegularFile(indexFile)) {
+            final Optional<SpecificationIndex> index = read(file, indexFile);
+            if (index.isPresent()) {
+                return index.get();
+            }
+        }
+        final SpecificationIndex index = scan(file);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            // held in memory only and rebuilt on the next opening
+        }
+        return index;
+    }
+
+    public static Path indexFile(Path file) {
+        return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+    }
+
+    public static SpecificationIndex scan(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + " exceeds " + Integer.MAX_VALUE + " bytes");
+            }
+            final long lastModified = Files.getLastModifiedTime(file).toMillis();
+            final Scanner scanner = new Scanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            scanner.scan();
+            return new SpecificationIndex(file, size, lastModified, scanner.encoding, scanner.specifications, scanner.modules);
+        }
+    }
+
+    /**
+     * @return the persisted index of the given file, unless it is out of date or damaged
+     */
+    static Optional<SpecificationIndex> read(Path file, Path indexFile) throws IOException {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+        } catch (CharacterCodingException e) {
+            return Optional.empty();
+        }
+        if (lines.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            final String[] header = lines.get(0).split("\t");
+            final long size = Files.size(file);
+            if (header.length != 3
+                    || Long.parseLong(header[0]) != size
+                    || Long.parseLong(header[1]) != Files.getLastModifiedTime(file).toMillis()) {
+                return Optional.empty();
+            }
+
+            final List<String> contexts = new ArrayList<>();
+            final Map<String, Region> specifications = new HashMap<>();
+            final Map<String, Region> modules = new HashMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split("\t", -1);
+                if (NAMESPACES.equals(fields[0]) && fields.length == 2) {
+                    contexts.add(fields[1]);
+                } else if (fields.length == 5) {
+                    final Region region = new Region(fields[0], Long.parseLong(fields[2]), Long.parseLong(fields[3]), contexts.get(Integer.parseInt(fields[4])));
+                    if (region.start < 0 || region.start > region.end || region.end > size) {
+                        return Optional.empty();
+                    }
+                    (MODULE.equals(region.kind) ? modules : specifications).put(fields[1], region);
+                } else {
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(new SpecificationIndex(file, size, Long.parseLong(header[1]), Charset.forName(header[2]), specifications, modules));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Persists this index, with its namespace contexts listed once and referred to by their position.
+     */
+    public void write(Path indexFile) throws IOException {
+        final Map<String, Integer> contexts = new LinkedHashMap<>();
+        for (Region region : specifications.values()) {
+            contexts.putIfAbsent(region.context, contexts.size());
+        }
+        for (Region region : modules.values()) {
+            contexts.putIfAbsent(region.context, contexts.size());
+        }
+
+        final Path tmp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), null);
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(String.join("\t", Long.toString(size), Long.toString(lastModified), encoding.name()));
+                out.newLine();
+                for (String context : contexts.keySet()) {
+                    out.write(String.join("\t", NAMESPACES, context));
+                    out.newLine();
+                }
+                for (Map.Entry<String, Region> entry : new TreeMap<>(specifications).entrySet()) {
+                    write(out, entry.getKey(), entry.getValue(), contexts);
+                }
+                for (Map.Entry<String, Region> entry : new TreeMap<>(modules).entrySet()) {
+                    write(out, entry.getKey(), entry.getValue(), contexts);
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void write(BufferedWriter out, String ident, Region region, Map<String, Integer> contexts) throws IOException {
+        out.write(String.join("\t", region.kind, ident, Long.toString(region.start), Long.toString(region.end), Integer.toString(contexts.get(region.context))));
+        out.newLine();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Set<String> getSpecifications() {
+        return Collections.unmodifiableSet(specifications.keySet());
+    }
+
+    public Set<String> getModules() {
+        return Collections.unmodifiableSet(modules.keySet());
+    }
+
+    public Optional<Specification> specification(String ident) throws IOException, XMLStreamException, IllegalSchemaException {
+        return specification(ident, false);
+    }
+
+    /**
+     * Reads a single specification from the indexed file.
+     *
+     * @param lazyContent whether to defer compiling the content model to its first use
+     * @throws IllegalStateException if the file changed since it has been indexed
+     * @see Specification#from(StartElement, XMLEventReader, boolean)
+     */
+    public Optional<Specification> specification(String ident, boolean lazyContent) throws IOException, XMLStreamException, IllegalSchemaException {
+        final Region region = specifications.get(ident);
+        if (region == null) {
+            return Optional.empty();
+        }
+        final XMLEventReader xml = reader(region);
+        try {
+            return Optional.of(Specification.from(root(xml, region), xml, lazyContent));
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * Reads a single module from the indexed file.
+     *
+     * @throws IllegalStateException if the file changed since it has been indexed
+     */
+    public Optional<Module> module(String ident) throws IOException, XMLStreamException {
+        final Region region = modules.get(ident);
+        if (region == null) {
+            return Optional.empty();
+        }
+        final XMLEventReader xml = reader(region);
+        try {
+            return Optional.of(Module.from(root(xml, region), xml));
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * Reads the bytes of the given region, enclosed in an element declaring the namespaces in scope.
+     */
+    private XMLEventReader reader(Region region) throws IOException, XMLStreamException {
+        final byte[] start = ("<index" + region.context + ">").getBytes(encoding);
+        final byte[] end = "</index>".getBytes(encoding);
+        final int length = (int) (region.end - region.start);
+        final byte[] bytes = Arrays.copyOf(start, start.length + length + end.length);
+        System.arraycopy(end, 0, bytes, start.length + length, end.length);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != size || Files.getLastModifiedTime(file).toMillis() != lastModified) {
+                throw new IllegalStateException(file + " changed since it has been indexed");
+            }
+            final ByteBuffer buf = ByteBuffer.wrap(bytes, start.length, length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, region.start + buf.position() - start.length) < 0) {
+                    throw new IllegalStateException(file + " changed since it has been indexed");
+                }
+            }
+        }
+        return XML.inputFactory().createXMLEventReader(new ByteArrayInputStream(bytes), encoding.name());
+    }
+
+    private StartElement root(XMLEventReader xml, Region region) throws XMLStreamException {
+        int depth = 0;
+        while (xml.hasNext()) {
+            final XMLEvent event = xml.nextEvent();
+            if (event.isStartElement() && ++depth == 2) {
+                final StartElement element = event.asStartElement();
+                if (!XML.hasName(element, Namespaceable.DEFAULT_NS_STR, region.kind)) {
+                    throw new IllegalStateException(element.getName() + " at offset " + region.start + " of " + file);
+                }
+                return element;
+            }
+        }
+        throw new XMLStreamException("No " + region.kind + " at offset " + region.start + " of " + file);
+    }
+
+    static class Region {
+
+        final String kind;
+        final long start;
+        final long end;
+        final String context;
+
+        Region(String kind, long start, long end, String context) {
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Scans markup byte by byte; the names of specifications and namespace declarations are expected to be ASCII.
+     */
+    static class Scanner {
+
+        private static final byte[][] SPECIFICATIONS = {
+                ascii("elementSpec"), ascii("classSpec"), ascii("macroSpec"), ascii(MODULE)
+        };
+        private static final byte[] EXAMPLE = ascii("egXML");
+
+        final Map<String, Region> specifications = new HashMap<>();
+        final Map<String, Region> modules = new HashMap<>();
+        Charset encoding = StandardCharsets.UTF_8;
+
+        private final ByteBuffer in;
+        private final int limit;
+
+        private final List<Map<String, String>> scopes = new ArrayList<>();
+        private final Map<String, String> contexts = new HashMap<>();
+        private String context;
+
+        private int skippedNameStart = -1;
+        private int skippedNameEnd;
+        private int skippedDepth;
+        private String kind;
+        private String ident;
+        private int start;
+        private String startContext;
+
+        Scanner(ByteBuffer in) {
+            this.in = in;
+            this.limit = in.limit();
+        }
+
+        void scan() {
+            int pc = 0;
+            if (limit >= 2 && ((at(0) == 0xfe && at(1) == 0xff) || (at(0) == 0xff && at(1) == 0xfe))) {
+                throw new IllegalArgumentException("UTF-16 encoded files cannot be indexed");
+            } else if (limit >= 3 && at(0) == 0xef && at(1) == 0xbb && at(2) == 0xbf) {
+                pc = 3;
+            }
+            while ((pc = indexOf('<', pc)) >= 0) {
+                final int tagStart = pc;
+                if (startsWith(pc, "<!--")) {
+                    pc = after(pc, "-->");
+                } else if (startsWith(pc, "<![CDATA[")) {
+                    pc = after(pc, "]]>");
+                } else if (startsWith(pc, "<?")) {
+                    pc = after(pc, "?>");
+                    if (startsWith(tagStart, "<?xml ")) {
+                        encoding(tagStart + 5, pc - 2);
+                    }
+                } else if (startsWith(pc, "<!")) {
+                    pc = declarationEnd(pc);
+                } else if (pc + 1 < limit && in.get(pc + 1) == '/') {
+                    final int nameEnd = nameEnd(pc + 2);
+                    pc = tagEnd(nameEnd) + 1;
+                    endTag(tagStart + 2, nameEnd, pc);
+                } else {
+                    final int nameEnd = nameEnd(pc + 1);
+                    final int tagEnd = tagEnd(nameEnd);
+                    pc = tagEnd + 1;
+                    startTag(tagStart, nameEnd, tagEnd, in.get(tagEnd - 1) == '/');
+                }
+            }
+        }
+
+        private void startTag(int tagStart, int nameEnd, int tagEnd, boolean empty) {
+            final int nameStart = tagStart + 1;
+            if (skippedNameStart >= 0) {
+                if (!empty && sameName(nameStart, nameEnd)) {
+                    skippedDepth++;
+                }
+                return;
+            }
+            final int localStart = localStart(nameStart, nameEnd);
+            for (byte[] specification : SPECIFICATIONS) {
+                if (equals(localStart, nameEnd, specification)) {
+                    kind = new String(specification, StandardCharsets.US_ASCII);
+                    ident = Optional.ofNullable(attributes(nameEnd, tagEnd).get("ident"))
+                            .orElseThrow(() -> new IllegalArgumentException(kind + " without identifier at offset " + tagStart));
+                    start = tagStart;
+                    startContext = context();
+                    if (empty) {
+                        record(tagEnd + 1);
+                    } else {
+                        skip(nameStart, nameEnd);
+                    }
+                    return;
+                }
+            }
+            if (equals(localStart, nameEnd, EXAMPLE)) {
+                if (!empty) {
+                    kind = null;
+                    skip(nameStart, nameEnd);
+                }
+            } else if (!empty) {
+                final Map<String, String> declarations = new LinkedHashMap<>();
+                attributes(nameEnd, tagEnd).forEach((name, value) -> {
+                    if (NAMESPACES.equals(name) || name.startsWith(NAMESPACES + ":")) {
+                        declarations.put(name, value);
+                    }
+                });
+                scopes.add(declarations);
+                if (!declarations.isEmpty()) {
+                    context = null;
+                }
+            }
+        }
+
+        private void endTag(int nameStart, int nameEnd, int tagEnd) {
+            if (skippedNameStart >= 0) {
+                if (sameName(nameStart, nameEnd) && --skippedDepth == 0) {
+                    skippedNameStart = -1;
+                    if (kind != null) {
+                        record(tagEnd);
+                    }
+                }
+            } else if (!scopes.isEmpty() && !scopes.remove(scopes.size() - 1).isEmpty()) {
+                context = null;
+            }
+        }
+
+        private void skip(int nameStart, int nameEnd) {
+            skippedNameStart = nameStart;
+            skippedNameEnd = nameEnd;
+            skippedDepth = 1;
+        }
+
+        private void record(int end) {
+            (MODULE.equals(kind) ? modules : specifications).putIfAbsent(ident, new Region(kind, start, end, startContext));
+        }
+
+        /**
+         * @return the namespace declarations in scope, as attributes of a start tag
+         */
+        private String context() {
+            if (context == null) {
+                final Map<String, String> declarations = new LinkedHashMap<>();
+                scopes.forEach(declarations::putAll);
+                final StringBuilder sb = new StringBuilder();
+                declarations.forEach((name, value) -> sb.append(' ').append(name).append("=\"").append(value.replace("\"", "&quot;")).append('"'));
+                context = contexts.computeIfAbsent(sb.toString(), c -> c);
+            }
+            return context;
+        }
+
+        private void encoding(int from, int to) {
+            final String name = attributes(from, to).get("encoding");
+            if (name != null) {
+                encoding = Charset.forName(name);
+                if (!Arrays.equals(ascii("<a>"), "<a>".getBytes(encoding))) {
+                    throw new IllegalArgumentException(name + " encoded files cannot be indexed");
+                }
+            }
+        }
+
+        /**
+         * @return the raw values of the attributes within the given range of a start tag
+         */
+        private Map<String, String> attributes(int from, int to) {
+            final Map<String, String> attributes = new HashMap<>();
+            int pc = from;
+            while (true) {
+                while (pc < to && isWhitespace(in.get(pc))) {
+                    pc++;
+                }
+                final int nameStart = pc;
+                while (pc < to && in.get(pc) != '=' && !isWhitespace(in.get(pc))) {
+                    pc++;
+                }
+                final int nameEnd = pc;
+                while (pc < to && (in.get(pc) == '=' || isWhitespace(in.get(pc)))) {
+                    pc++;
+                }
+                if (pc >= to || nameStart == nameEnd) {
+                    return attributes;
+                }
+                final byte quote = in.get(pc);
+                final int valueStart = ++pc;
+                while (pc < to && in.get(pc) != quote) {
+                    pc++;
+                }
+                attributes.put(string(nameStart, nameEnd), string(valueStart, pc));
+                pc++;
+            }
+        }
+
+        private String string(int from, int to) {
+            final byte[] bytes = new byte[to - from];
+            for (int bc = 0; bc < bytes.length; bc++) {
+                bytes[bc] = in.get(from + bc);
+            }
+            return new String(bytes, encoding);
+        }
+
+        private int indexOf(char c, int from) {
+            for (int pc = from; pc < limit; pc++) {
+                if (in.get(pc) == c) {
+                    return pc;
+                }
+            }
+            return -1;
+        }
+
+        private int after(int from, String terminator) {
+            for (int pc = from; pc < limit; pc++) {
+                if (startsWith(pc, terminator)) {
+                    return pc + terminator.length();
+                }
+            }
+            return limit;
+        }
+
+        /**
+         * @return the offset following a markup declaration like the document type, including its internal subset
+         */
+        private int declarationEnd(int from) {
+            int depth = 0;
+            byte quote = 0;
+            for (int pc = from + 2; pc < limit; pc++) {
+                final byte b = in.get(pc);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '[') {
+                    depth++;
+                } else if (b == ']') {
+                    depth--;
+                } else if (b == '>' && depth <= 0) {
+                    return pc + 1;
+                }
+            }
+            return limit;
+        }
+
+        private int nameEnd(int from) {
+            int pc = from;
+            while (pc < limit) {
+                final byte b = in.get(pc);
+                if (b == '>' || b == '/' || isWhitespace(b)) {
+                    break;
+                }
+                pc++;
+            }
+            return pc;
+        }
+
+        /**
+         * @return the offset of the closing angle bracket of a tag, disregarding those in attribute values
+         */
+        private int tagEnd(int from) {
+            byte quote = 0;
+            for (int pc = from; pc < limit; pc++) {
+                final byte b = in.get(pc);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return pc;
+                }
+            }
+            return limit - 1;
+        }
+
+        private int localStart(int nameStart, int nameEnd) {
+            for (int pc = nameEnd - 1; pc >= nameStart; pc--) {
+                if (in.get(pc) == ':') {
+                    return pc + 1;
+                }
+            }
+            return nameStart;
+        }
+
+        private boolean sameName(int nameStart, int nameEnd) {
+            if (nameEnd - nameStart != skippedNameEnd - skippedNameStart) {
+                return false;
+            }
+            for (int pc = nameStart, sc = skippedNameStart; pc < nameEnd; pc++, sc++) {
+                if (in.get(pc) != in.get(sc)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean equals(int from, int to, byte[] name) {
+            if (to - from != name.length) {
+                return false;
+            }
+            for (int nc = 0; nc < name.length; nc++) {
+                if (in.get(from + nc) != name[nc]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean startsWith(int from, String str) {
+            if (from + str.length() > limit) {
+                return false;
+            }
+            for (int sc = 0; sc < str.length(); sc++) {
+                if (in.get(from + sc) != str.charAt(sc)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int at(int offset) {
+            return in.get(offset) & 0xff;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return (b == ' ' || b == '\t' || b == '\n' || b == '\r');
+        }
+
+        private static byte[] ascii(String str) {
+            return str.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
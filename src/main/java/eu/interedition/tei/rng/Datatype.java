@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.digested.DDataPattern;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Lexical checks for the RELAX NG built-in datatypes and the XML Schema datatypes used by TEI, with the facets
+ * <code>pattern</code>, <code>length</code>, <code>minLength</code>, <code>maxLength</code> and the numeric bounds.
+ * <p>
+ * Checks only consider the lexical space; identity constraints of <code>ID</code>/<code>IDREF</code> are not
+ * enforced. Unknown datatypes and libraries allow any value. Instances are immutable and can be shared.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Datatype {
+
+    public static final String XSD_LIBRARY = "http://www.w3.org/2001/XMLSchema-datatypes";
+
+    static final byte PRESERVE = 0;
+    static final byte REPLACE = 1;
+    static final byte COLLAPSE = 2;
+
+    final String name;
+    final byte whiteSpace;
+    final java.util.regex.Pattern lexical;
+    final boolean list;
+    final java.util.regex.Pattern pattern;
+    final int minLength;
+    final int maxLength;
+    final BigDecimal minInclusive;
+    final BigDecimal maxInclusive;
+    final BigDecimal minExclusive;
+    final BigDecimal maxExclusive;
+
+    private final ThreadLocal<Matcher[]> matchers;
+
+    Datatype(String name, byte whiteSpace, java.util.regex.Pattern lexical, boolean list) {
+        this(name, whiteSpace, lexical, list, null, 0, Integer.MAX_VALUE, null, null, null, null);
+    }
+
+    Datatype(String name, byte whiteSpace, java.util.regex.Pattern lexical, boolean list, java.util.regex.Pattern pattern,
+             int minLength, int maxLength, BigDecimal minInclusive, BigDecimal maxInclusive, BigDecimal minExclusive, BigDecimal maxExclusive) {
+        this.name = name;
+        this.whiteSpace = whiteSpace;
+        this.lexical = lexical;
+        this.list = list;
+        this.pattern = pattern;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.minInclusive = minInclusive;
+        this.maxInclusive = maxInclusive;
+        this.minExclusive = minExclusive;
+        this.maxExclusive = maxExclusive;
+        this.matchers = ThreadLocal.withInitial(() -> new Matcher[] {
+                lexical == null ? null : lexical.matcher(""),
+                pattern == null ? null : pattern.matcher("")
+        });
+    }
+
+    /**
+     * @return the datatype of the given library and name, restricted by the given parameters
+     */
+    public static Datatype of(String library, String name, List<DDataPattern.Param> params) {
+        final Datatype base = of(library, name);
+        if (params.isEmpty()) {
+            return base;
+        }
+        java.util.regex.Pattern pattern = null;
+        int minLength = 0;
+        int maxLength = Integer.MAX_VALUE;
+        BigDecimal minInclusive = null;
+        BigDecimal maxInclusive = null;
+        BigDecimal minExclusive = null;
+        BigDecimal maxExclusive = null;
+        for (DDataPattern.Param param : params) {
+            final String value = param.getValue().trim();
+            switch (param.getName()) {
+                case "pattern":
+                    pattern = regex(param.getValue());
+                    break;
+                case "length":
+                    minLength = maxLength = Integer.parseInt(value);
+                    break;
+                case "minLength":
+                    minLength = Integer.parseInt(value);
+                    break;
+                case "maxLength":
+                    maxLength = Integer.parseInt(value);
+                    break;
+                case "minInclusive":
+                    minInclusive = decimal(value);
+                    break;
+                case "maxInclusive":
+                    maxInclusive = decimal(value);
+                    break;
+                case "minExclusive":
+                    minExclusive = decimal(value);
+                    break;
+                case "maxExclusive":
+                    maxExclusive = decimal(value);
+                    break;
+            }
+        }
+        return new Datatype(base.name, base.whiteSpace, base.lexical, base.list, pattern,
+                minLength, maxLength, minInclusive, maxInclusive, minExclusive, maxExclusive);
+    }
+
+    public static Datatype of(String library, String name) {
+        if (library == null || library.isEmpty()) {
+            return ("token".equals(name) ? TOKEN : STRING);
+        }
+        if (XSD_LIBRARY.equals(library)) {
+            final Datatype datatype = XSD.get(name);
+            if (datatype != null) {
+                return datatype;
+            }
+        }
+        return ANY;
+    }
+
+    /**
+     * @return whether the given value is in the lexical space of this datatype
+     */
+    public boolean allows(CharSequence value) {
+        return allows(value, 0, value.length());
+    }
+
+    /**
+     * Checks a region of the given value, which only has to be copied if it is not normalized already.
+     *
+     * @return whether the characters between <code>start</code> (inclusive) and <code>end</code> (exclusive) are in
+     * the lexical space of this datatype
+     */
+    public boolean allows(CharSequence value, int start, int end) {
+        if (!isNormalized(value, start, end)) {
+            final String normalized = normalize(value.subSequence(start, end));
+            return allowsNormalized(normalized, 0, normalized.length());
+        }
+        return allowsNormalized(value, start, end);
+    }
+
+    /**
+     * @return whether the given value equals the given literal, after whitespace normalization of both
+     */
+    public boolean matches(String literal, CharSequence value) {
+        return normalize(literal).equals(normalize(value));
+    }
+
+    private boolean allowsNormalized(CharSequence value, int start, int end) {
+        final Matcher[] matchers = this.matchers.get();
+        if (list) {
+            if (start == end && minLength > 0) {
+                return false;
+            }
+            int count = 0;
+            for (int ts = start, te; ts < end; ts = te + 1) {
+                te = ts;
+                while (te < end && value.charAt(te) != ' ') {
+                    te++;
+                }
+                if (matchers[0] != null && !matches(matchers[0], value, ts, te)) {
+                    return false;
+                }
+                count++;
+            }
+            return count > 0 && count >= minLength && count <= maxLength && facets(value, start, end, matchers);
+        }
+        if (matchers[0] != null && !matches(matchers[0], value, start, end)) {
+            return false;
+        }
+        final int length = Character.codePointCount(value, start, end);
+        return length >= minLength && length <= maxLength && facets(value, start, end, matchers);
+    }
+
+    /**
+     * @return whether the given region is left unchanged by this datatype's whitespace normalization
+     */
+    boolean isNormalized(CharSequence value, int start, int end) {
+        if (whiteSpace == PRESERVE) {
+            return true;
+        }
+        for (int cc = start; cc < end; cc++) {
+            final char c = value.charAt(cc);
+            if (c == '\t' || c == '\n' || c == '\r') {
+                return false;
+            }
+            if (c == ' ' && whiteSpace == COLLAPSE && (cc == start || cc == end - 1 || value.charAt(cc + 1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String normalize(CharSequence value) {
+        if (whiteSpace == PRESERVE) {
+            return value.toString();
+        }
+        final StringBuilder normalized = new StringBuilder(value.length());
+        boolean space = (whiteSpace == COLLAPSE);
+        for (int cc = 0, length = value.length(); cc < length; cc++) {
+            final char c = value.charAt(cc);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (whiteSpace == REPLACE) {
+                    normalized.append(' ');
+                } else if (!space) {
+                    normalized.append(' ');
+                    space = true;
+                }
+            } else {
+                normalized.append(c);
+                space = false;
+            }
+        }
+        if (whiteSpace == COLLAPSE && normalized.length() > 0 && normalized.charAt(normalized.length() - 1) == ' ') {
+            normalized.setLength(normalized.length() - 1);
+        }
+        return normalized.toString();
+    }
+
+    private static boolean matches(Matcher matcher, CharSequence value, int start, int end) {
+        return matcher.reset(value).region(start, end).matches();
+    }
+
+    private boolean facets(CharSequence value, int start, int end, Matcher[] matchers) {
+        if (matchers[1] != null && !matches(matchers[1], value, start, end)) {
+            return false;
+        }
+        if (minInclusive == null && maxInclusive == null && minExclusive == null && maxExclusive == null) {
+            return true;
+        }
+        final BigDecimal number = decimal(value.subSequence(start, end).toString());
+        return number != null
+                && (minInclusive == null || number.compareTo(minInclusive) >= 0)
+                && (maxInclusive == null || number.compareTo(maxInclusive) <= 0)
+                && (minExclusive == null || number.compareTo(minExclusive) > 0)
+                && (maxExclusive == null || number.compareTo(maxExclusive) < 0);
+    }
+
+    private static BigDecimal decimal(String value) {
+        try {
+            return new BigDecimal(value.startsWith("+") ? value.substring(1) : value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Translates an XML Schema regular expression, which is implicitly anchored, into a Java one.
+     */
+    static java.util.regex.Pattern regex(String xsdRegex) {
+        final StringBuilder regex = new StringBuilder(xsdRegex.length() + 16);
+        for (int cc = 0, length = xsdRegex.length(); cc < length; cc++) {
+            final char c = xsdRegex.charAt(cc);
+            if (c == '\\' && cc + 1 < length) {
+                final char escaped = xsdRegex.charAt(++cc);
+                switch (escaped) {
+                    case 'i':
+                        regex.append("[_:\\p{L}]");
+                        break;
+                    case 'I':
+                        regex.append("[^_:\\p{L}]");
+                        break;
+                    case 'c':
+                        regex.append("[-._:\\p{L}\\p{N}\\p{Mn}\\p{Mc}]");
+                        break;
+                    case 'C':
+                        regex.append("[^-._:\\p{L}\\p{N}\\p{Mn}\\p{Mc}]");
+                        break;
+                    case 'p':
+                    case 'P':
+                        regex.append('\\').append(escaped);
+                        if (xsdRegex.startsWith("{Is", cc + 1)) {
+                            regex.append("{In");
+                            cc += 3;
+                        }
+                        break;
+                    default:
+                        regex.append('\\').append(escaped);
+                }
+            } else {
+                regex.append(c);
+            }
+        }
+        try {
+            return java.util.regex.Pattern.compile(regex.toString());
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(xsdRegex, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    static final Datatype ANY = new Datatype("anyType", PRESERVE, null, false);
+    static final Datatype STRING = new Datatype("string", PRESERVE, null, false);
+    static final Datatype TOKEN = new Datatype("token", COLLAPSE, null, false);
+
+    private static final Map<String, Datatype> XSD = new HashMap<>();
+
+    private static void xsd(String name, byte whiteSpace, String lexical) {
+        xsd(name, whiteSpace, lexical, false);
+    }
+
+    private static void xsd(String name, byte whiteSpace, String lexical, boolean list) {
+        XSD.put(name, new Datatype(name, whiteSpace, lexical == null ? null : java.util.regex.Pattern.compile(lexical), list));
+    }
+
+    static {
+        final String nameStart = "[_:\\p{L}]";
+        final String nameChar = "[-._:\\p{L}\\p{N}\\p{Mn}\\p{Mc}\\u00B7]";
+        final String ncName = "[_\\p{L}][-._\\p{L}\\p{N}\\p{Mn}\\p{Mc}\\u00B7]*";
+        final String integer = "[+-]?\\d+";
+        final String nonNegative = "\\+?\\d+|-0+";
+        final String positive = "\\+?0*[1-9]\\d*";
+        final String nonPositive = "-\\d+|\\+?0+";
+        final String negative = "-0*[1-9]\\d*";
+        final String timezone = "(Z|[+-]\\d{2}:\\d{2})?";
+        final String year = "-?\\d{4,}";
+        final String time = "\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?";
+
+        xsd("string", PRESERVE, null);
+        xsd("normalizedString", REPLACE, null);
+        xsd("token", COLLAPSE, null);
+        xsd("anyURI", COLLAPSE, null);
+        xsd("language", COLLAPSE, "[a-zA-Z]{1,8}(-[a-zA-Z0-9]{1,8})*");
+        xsd("Name", COLLAPSE, nameStart + nameChar + "*");
+        xsd("NCName", COLLAPSE, ncName);
+        xsd("ID", COLLAPSE, ncName);
+        xsd("IDREF", COLLAPSE, ncName);
+        xsd("ENTITY", COLLAPSE, ncName);
+        xsd("IDREFS", COLLAPSE, ncName, true);
+        xsd("ENTITIES", COLLAPSE, ncName, true);
+        xsd("QName", COLLAPSE, "(" + ncName + ":)?" + ncName);
+        xsd("NMTOKEN", COLLAPSE, nameChar + "+");
+        xsd("NMTOKENS", COLLAPSE, nameChar + "+", true);
+        xsd("boolean", COLLAPSE, "true|false|1|0");
+        xsd("decimal", COLLAPSE, "[+-]?(\\d+(\\.\\d*)?|\\.\\d+)");
+        xsd("float", COLLAPSE, "[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?|-?INF|NaN");
+        xsd("double", COLLAPSE, "[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?|-?INF|NaN");
+        xsd("integer", COLLAPSE, integer);
+        xsd("long", COLLAPSE, integer);
+        xsd("int", COLLAPSE, integer);
+        xsd("short", COLLAPSE, integer);
+        xsd("byte", COLLAPSE, integer);
+        xsd("nonNegativeInteger", COLLAPSE, nonNegative);
+        xsd("unsignedLong", COLLAPSE, nonNegative);
+        xsd("unsignedInt", COLLAPSE, nonNegative);
+        xsd("unsignedShort", COLLAPSE, nonNegative);
+        xsd("unsignedByte", COLLAPSE, nonNegative);
+        xsd("positiveInteger", COLLAPSE, positive);
+        xsd("nonPositiveInteger", COLLAPSE, nonPositive);
+        xsd("negativeInteger", COLLAPSE, negative);
+        xsd("duration", COLLAPSE, "-?P(?=\\d|T\\d)(\\d+Y)?(\\d+M)?(\\d+D)?(T(?=\\d)(\\d+H)?(\\d+M)?(\\d+(\\.\\d+)?S)?)?");
+        xsd("dateTime", COLLAPSE, year + "-\\d{2}-\\d{2}T" + time + timezone);
+        xsd("date", COLLAPSE, year + "-\\d{2}-\\d{2}" + timezone);
+        xsd("time", COLLAPSE, time + timezone);
+        xsd("gYear", COLLAPSE, year + timezone);
+        xsd("gYearMonth", COLLAPSE, year + "-\\d{2}" + timezone);
+        xsd("gMonth", COLLAPSE, "--\\d{2}" + timezone);
+        xsd("gMonthDay", COLLAPSE, "--\\d{2}-\\d{2}" + timezone);
+        xsd("gDay", COLLAPSE, "---\\d{2}" + timezone);
+        xsd("hexBinary", COLLAPSE, "([0-9a-fA-F]{2})*");
+        xsd("base64Binary", COLLAPSE, "[A-Za-z0-9+/= ]*");
+    }
+}
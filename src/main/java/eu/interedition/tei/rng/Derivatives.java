@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import javax.xml.namespace.QName;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import static eu.interedition.tei.rng.Pattern.Binary.AFTER;
+import static eu.interedition.tei.rng.Pattern.Binary.CHOICE;
+import static eu.interedition.tei.rng.Pattern.Binary.GROUP;
+import static eu.interedition.tei.rng.Pattern.Binary.INTERLEAVE;
+
+/**
+ * Derivatives of patterns with respect to the events of a document, after James Clark's algorithm for RELAX NG
+ * validation: a document matches a pattern, if the derivative of the pattern with respect to all of its events is
+ * nullable.
+ * <p>
+ * Derivatives with respect to tags are memoized, those with respect to attribute values and text are not; attribute
+ * values are matched by the {@link ValueMatcher value matcher} of their pattern instead of deriving it. Memoized
+ * derivatives and interned patterns are dropped when exceeding a limit, so that memory stays bounded independent of
+ * the size and number of validated documents. Instances are not safe for concurrent use.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Derivatives extends PatternBuilder {
+
+    public static final int DEFAULT_CACHE_LIMIT = 1 << 16;
+
+    private final int cacheLimit;
+    private final Map<Pattern, Map<QName, Pattern>> startTagOpenDerivs = new HashMap<>();
+    private final Map<Pattern, Pattern> startTagCloseDerivs = new HashMap<>();
+    private final Map<Pattern, Pattern> endTagDerivs = new HashMap<>();
+    private int cached;
+
+    public Derivatives() {
+        this(DEFAULT_CACHE_LIMIT);
+    }
+
+    public Derivatives(int cacheLimit) {
+        this.cacheLimit = cacheLimit;
+    }
+
+    public Pattern startTagOpenDeriv(Pattern p, QName name) {
+        final Map<QName, Pattern> derivs = startTagOpenDerivs.computeIfAbsent(p, k -> new HashMap<>());
+        Pattern deriv = derivs.get(name);
+        if (deriv == null) {
+            deriv = computeStartTagOpenDeriv(p, name);
+            cache();
+            startTagOpenDerivs.computeIfAbsent(p, k -> new HashMap<>()).put(name, deriv);
+        }
+        return deriv;
+    }
+
+    private Pattern computeStartTagOpenDeriv(Pattern p, QName name) {
+        if (p instanceof Pattern.Element) {
+            final Pattern.Element element = (Pattern.Element) p;
+            return (element.name.contains(name) ? after(element.content, empty()) : notAllowed());
+        } else if (p instanceof Pattern.OneOrMore) {
+            return applyAfter(x -> group(x, choice(p, empty())), startTagOpenDeriv(((Pattern.OneOrMore) p).p, name));
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            final Pattern p1 = binary.p1;
+            final Pattern p2 = binary.p2;
+            switch (binary.kind) {
+                case CHOICE:
+                    return choice(startTagOpenDeriv(p1, name), startTagOpenDeriv(p2, name));
+                case INTERLEAVE:
+                    return choice(
+                            applyAfter(x -> interleave(x, p2), startTagOpenDeriv(p1, name)),
+                            applyAfter(x -> interleave(p1, x), startTagOpenDeriv(p2, name))
+                    );
+                case GROUP:
+                    final Pattern deriv = applyAfter(x -> group(x, p2), startTagOpenDeriv(p1, name));
+                    return (p1.nullable ? choice(deriv, startTagOpenDeriv(p2, name)) : deriv);
+                case AFTER:
+                    return applyAfter(x -> after(x, p2), startTagOpenDeriv(p1, name));
+            }
+        }
+        return notAllowed();
+    }
+
+    private Pattern applyAfter(UnaryOperator<Pattern> f, Pattern p) {
+        if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            if (binary.kind == AFTER) {
+                return after(binary.p1, f.apply(binary.p2));
+            } else if (binary.kind == CHOICE) {
+                return choice(applyAfter(f, binary.p1), applyAfter(f, binary.p2));
+            }
+        }
+        return notAllowed();
+    }
+
+    public Pattern attDeriv(Pattern p, QName name, CharSequence value) {
+        if (p instanceof Pattern.Attribute) {
+            final Pattern.Attribute attribute = (Pattern.Attribute) p;
+            return (attribute.name.contains(name) && attribute.matcher().matches(value) ? empty() : notAllowed());
+        } else if (p instanceof Pattern.OneOrMore) {
+            return group(attDeriv(((Pattern.OneOrMore) p).p, name, value), choice(p, empty()));
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            final Pattern p1 = binary.p1;
+            final Pattern p2 = binary.p2;
+            switch (binary.kind) {
+                case CHOICE:
+                    return choice(attDeriv(p1, name, value), attDeriv(p2, name, value));
+                case GROUP:
+                    return choice(group(attDeriv(p1, name, value), p2), group(p1, attDeriv(p2, name, value)));
+                case INTERLEAVE:
+                    return choice(interleave(attDeriv(p1, name, value), p2), interleave(p1, attDeriv(p2, name, value)));
+                case AFTER:
+                    return after(attDeriv(p1, name, value), p2);
+            }
+        }
+        return notAllowed();
+    }
+
+    public Pattern startTagCloseDeriv(Pattern p) {
+        Pattern deriv = startTagCloseDerivs.get(p);
+        if (deriv == null) {
+            deriv = startTagCloseDeriv(p, notAllowed());
+            cache();
+            startTagCloseDerivs.put(p, deriv);
+        }
+        return deriv;
+    }
+
+    /**
+     * @return the derivative with respect to closing a start tag, treating missing attributes as absent, e.g. to
+     * recover from an error
+     */
+    public Pattern startTagCloseDerivLeniently(Pattern p) {
+        return startTagCloseDeriv(p, empty());
+    }
+
+    private Pattern startTagCloseDeriv(Pattern p, Pattern missingAttribute) {
+        if (p instanceof Pattern.Attribute) {
+            return missingAttribute;
+        } else if (p instanceof Pattern.OneOrMore) {
+            return oneOrMore(startTagCloseDeriv(((Pattern.OneOrMore) p).p, missingAttribute));
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            final Pattern p1 = startTagCloseDeriv(binary.p1, missingAttribute);
+            final Pattern p2 = startTagCloseDeriv(binary.p2, missingAttribute);
+            switch (binary.kind) {
+                case CHOICE:
+                    return choice(p1, p2);
+                case GROUP:
+                    return group(p1, p2);
+                case INTERLEAVE:
+                    return interleave(p1, p2);
+                case AFTER:
+                    return after(p1, binary.p2);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the derivative with respect to a text node; whitespace-only text may also be ignored
+     */
+    public Pattern childTextDeriv(Pattern p, CharSequence text) {
+        final Pattern deriv = textDeriv(p, text);
+        return (isWhitespace(text) ? choice(p, deriv) : deriv);
+    }
+
+    public Pattern textDeriv(Pattern p, CharSequence text) {
+        if (p == text()) {
+            return p;
+        } else if (p instanceof Pattern.Data) {
+            final Pattern.Data data = (Pattern.Data) p;
+            return (data.datatype.allows(text) && (data.except == null || !valueMatch(data.except, text)) ? empty() : notAllowed());
+        } else if (p instanceof Pattern.Value) {
+            final Pattern.Value value = (Pattern.Value) p;
+            return (value.datatype.matches(value.value, text) ? empty() : notAllowed());
+        } else if (p instanceof Pattern.ListPattern) {
+            Pattern deriv = ((Pattern.ListPattern) p).p;
+            for (int start = 0, length = text.length(); start < length && deriv != notAllowed(); ) {
+                while (start < length && isWhitespace(text.charAt(start))) {
+                    start++;
+                }
+                int end = start;
+                while (end < length && !isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                if (end > start) {
+                    deriv = textDeriv(deriv, text.subSequence(start, end));
+                }
+                start = end;
+            }
+            return (deriv.nullable ? empty() : notAllowed());
+        } else if (p instanceof Pattern.OneOrMore) {
+            return group(textDeriv(((Pattern.OneOrMore) p).p, text), choice(p, empty()));
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            final Pattern p1 = binary.p1;
+            final Pattern p2 = binary.p2;
+            switch (binary.kind) {
+                case CHOICE:
+                    return choice(textDeriv(p1, text), textDeriv(p2, text));
+                case INTERLEAVE:
+                    return choice(interleave(textDeriv(p1, text), p2), interleave(p1, textDeriv(p2, text)));
+                case GROUP:
+                    final Pattern deriv = group(textDeriv(p1, text), p2);
+                    return (p1.nullable ? choice(deriv, textDeriv(p2, text)) : deriv);
+                case AFTER:
+                    return after(textDeriv(p1, text), p2);
+            }
+        }
+        return notAllowed();
+    }
+
+    public Pattern endTagDeriv(Pattern p) {
+        Pattern deriv = endTagDerivs.get(p);
+        if (deriv == null) {
+            deriv = endTagDeriv(p, false);
+            cache();
+            endTagDerivs.put(p, deriv);
+        }
+        return deriv;
+    }
+
+    /**
+     * @return the derivative with respect to an end tag, even if the element's content is incomplete, e.g. to recover
+     * from an error
+     */
+    public Pattern endTagDerivLeniently(Pattern p) {
+        return endTagDeriv(p, true);
+    }
+
+    private Pattern endTagDeriv(Pattern p, boolean lenient) {
+        if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            if (binary.kind == CHOICE) {
+                return choice(endTagDeriv(binary.p1, lenient), endTagDeriv(binary.p2, lenient));
+            } else if (binary.kind == AFTER) {
+                return (lenient || binary.p1.nullable ? binary.p2 : notAllowed());
+            }
+        }
+        return notAllowed();
+    }
+
+    private boolean valueMatch(Pattern p, CharSequence value) {
+        return (p.nullable && isWhitespace(value)) || textDeriv(p, value).nullable;
+    }
+
+    private void cache() {
+        if (++cached > cacheLimit) {
+            startTagOpenDerivs.clear();
+            startTagCloseDerivs.clear();
+            endTagDerivs.clear();
+            clear();
+            cached = 0;
+        }
+    }
+
+    static boolean isWhitespace(CharSequence text) {
+        for (int cc = 0, length = text.length(); cc < length; cc++) {
+            if (!isWhitespace(text.charAt(cc))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
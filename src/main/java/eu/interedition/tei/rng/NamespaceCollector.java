@@ -28,11 +28,15 @@ import org.kohsuke.rngom.digested.DRefPattern;
 import org.kohsuke.rngom.digested.DXmlTokenPattern;
 import org.kohsuke.rngom.nc.NameClass;
 import org.kohsuke.rngom.nc.NameClassVisitor;
+import org.kohsuke.rngom.xml.util.WellKnownNamespaces;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -49,21 +53,78 @@ public class NamespaceCollector extends DPatternWalker implements NameClassVisit
         return namespaceCollector;
     }
 
+    public SortedSet<String> getNamespaces() {
+        return namespaces;
+    }
+
     public Map<String, String> toMapping() {
         return toMapping(Collections.<String, String>emptyMap());
     }
 
+    /**
+     * Assigns prefixes to all collected namespaces not mapped initially.
+     * <p>
+     * Prefixes are derived from the namespace URIs themselves, so that a namespace keeps its prefix across schemata
+     * and runs; only namespaces whose derived prefixes collide are told apart by a numeric suffix, in the lexical order
+     * of their URIs.
+     *
+     * @see #prefix(String)
+     */
     public Map<String, String> toMapping(Map<String, String> initial) {
         final Map<String, String> mapping = new HashMap<>(initial);
-        int i = 0;
+        final Set<String> prefixes = new HashSet<>(initial.values());
         for (String ns : namespaces) {
             if (!mapping.containsKey(ns)) {
-                mapping.put(ns, "ns_" + i++);
+                final String candidate = prefix(ns);
+                String prefix = candidate;
+                for (int pc = 1; prefixes.contains(prefix) || RelaxCompactSerializer.KEYWORDS.contains(prefix); pc++) {
+                    prefix = candidate + pc;
+                }
+                prefixes.add(prefix);
+                mapping.put(ns, prefix);
             }
         }
         return mapping;
     }
 
+    /**
+     * @return the conventional prefix of a well-known namespace, or one derived from the last alphanumeric segment of
+     * the namespace URI
+     */
+    public static String prefix(String ns) {
+        final String wellKnown = WELL_KNOWN_PREFIXES.get(ns);
+        if (wellKnown != null) {
+            return wellKnown;
+        }
+        final String[] segments = ns.split("[^A-Za-z0-9]+");
+        for (int sc = segments.length - 1; sc >= 0; sc--) {
+            final String segment = segments[sc].toLowerCase();
+            if (!segment.isEmpty() && Character.isLetter(segment.charAt(0)) && !segment.startsWith("xml")
+                    && !segment.equals("ns") && !segment.equals("www") && !segment.equals("http") && !segment.equals("https")) {
+                return segment;
+            }
+        }
+        return "ns";
+    }
+
+    private static final Map<String, String> WELL_KNOWN_PREFIXES = new HashMap<>();
+
+    static {
+        WELL_KNOWN_PREFIXES.put("http://www.tei-c.org/ns/1.0", "tei");
+        WELL_KNOWN_PREFIXES.put("http://www.tei-c.org/ns/Examples", "teix");
+        WELL_KNOWN_PREFIXES.put(XMLConstants.XML_NS_URI, XMLConstants.XML_NS_PREFIX);
+        WELL_KNOWN_PREFIXES.put(WellKnownNamespaces.RELAX_NG, "rng");
+        WELL_KNOWN_PREFIXES.put("http://relaxng.org/ns/compatibility/annotations/1.0", "a");
+        WELL_KNOWN_PREFIXES.put("http://purl.oclc.org/dsdl/schematron", "sch");
+        WELL_KNOWN_PREFIXES.put("http://www.ascc.net/xml/schematron", "s");
+        WELL_KNOWN_PREFIXES.put("http://www.w3.org/1998/Math/MathML", "mml");
+        WELL_KNOWN_PREFIXES.put("http://www.w3.org/2000/svg", "svg");
+        WELL_KNOWN_PREFIXES.put("http://www.w3.org/1999/xlink", "xlink");
+        WELL_KNOWN_PREFIXES.put("http://www.w3.org/1999/xhtml", "xhtml");
+        WELL_KNOWN_PREFIXES.put("http://www.w3.org/2001/XInclude", "xi");
+        WELL_KNOWN_PREFIXES.put("http://www.isocat.org/ns/dcr", "dcr");
+    }
+
     @Override
     public Void onGrammar(DGrammarPattern p) {
         for (DDefine define : p) {
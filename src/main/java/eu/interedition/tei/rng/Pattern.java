@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.nc.NameClass;
+
+import java.util.Objects;
+
+/**
+ * Immutable RELAX NG pattern in the simplified form used for derivative-based validation.
+ * <p>
+ * Patterns are compared by their kind and the identity of their children, which makes structural sharing via
+ * {@link PatternBuilder interning} cheap. Elements and attributes are unique per schema and compared by identity.
+ *
+ * @see Derivatives
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public abstract class Pattern {
+
+    final boolean nullable;
+    final int hash;
+
+    Pattern(boolean nullable, int hash) {
+        this.nullable = nullable;
+        this.hash = hash;
+    }
+
+    /**
+     * @return whether the pattern matches the empty sequence
+     */
+    public boolean isNullable() {
+        return nullable;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    static final Pattern EMPTY = new Pattern(true, 1) {
+        @Override
+        public String toString() {
+            return "empty";
+        }
+    };
+
+    static final Pattern NOT_ALLOWED = new Pattern(false, 2) {
+        @Override
+        public String toString() {
+            return "notAllowed";
+        }
+    };
+
+    static final Pattern TEXT = new Pattern(true, 3) {
+        @Override
+        public String toString() {
+            return "text";
+        }
+    };
+
+    /**
+     * Binary pattern, i.e. a choice, group, interleave or after pattern.
+     */
+    static final class Binary extends Pattern {
+
+        static final byte CHOICE = 1;
+        static final byte GROUP = 2;
+        static final byte INTERLEAVE = 3;
+        static final byte AFTER = 4;
+
+        final byte kind;
+        final Pattern p1;
+        final Pattern p2;
+
+        Binary(byte kind, Pattern p1, Pattern p2) {
+            super(nullable(kind, p1, p2), 31 * (31 * kind + p1.hash) + p2.hash);
+            this.kind = kind;
+            this.p1 = p1;
+            this.p2 = p2;
+        }
+
+        private static boolean nullable(byte kind, Pattern p1, Pattern p2) {
+            switch (kind) {
+                case CHOICE:
+                    return p1.nullable || p2.nullable;
+                case AFTER:
+                    return false;
+                default:
+                    return p1.nullable && p2.nullable;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Binary) {
+                final Binary other = (Binary) obj;
+                return kind == other.kind && p1 == other.p1 && p2 == other.p2;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case CHOICE:
+                    return "(" + p1 + " | " + p2 + ")";
+                case GROUP:
+                    return "(" + p1 + ", " + p2 + ")";
+                case INTERLEAVE:
+                    return "(" + p1 + " & " + p2 + ")";
+                default:
+                    return "after(" + p1 + ", " + p2 + ")";
+            }
+        }
+    }
+
+    static final class OneOrMore extends Pattern {
+        final Pattern p;
+
+        OneOrMore(Pattern p) {
+            super(p.nullable, 37 * p.hash + 5);
+            this.p = p;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof OneOrMore && p == ((OneOrMore) obj).p);
+        }
+
+        @Override
+        public String toString() {
+            return p + "+";
+        }
+    }
+
+    static final class ListPattern extends Pattern {
+        final Pattern p;
+
+        ListPattern(Pattern p) {
+            super(false, 37 * p.hash + 6);
+            this.p = p;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof ListPattern && p == ((ListPattern) obj).p);
+        }
+
+        @Override
+        public String toString() {
+            return "list { " + p + " }";
+        }
+    }
+
+    static final class Data extends Pattern {
+        final Datatype datatype;
+        final Pattern except;
+
+        Data(Datatype datatype, Pattern except) {
+            super(false, 41 * System.identityHashCode(datatype) + (except == null ? 0 : except.hash));
+            this.datatype = datatype;
+            this.except = except;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Data) {
+                final Data other = (Data) obj;
+                return datatype == other.datatype && except == other.except;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return datatype + (except == null ? "" : " - " + except);
+        }
+    }
+
+    static final class Value extends Pattern {
+        final Datatype datatype;
+        final String value;
+
+        Value(Datatype datatype, String value) {
+            super(false, 43 * System.identityHashCode(datatype) + value.hashCode());
+            this.datatype = datatype;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Value) {
+                final Value other = (Value) obj;
+                return datatype == other.datatype && value.equals(other.value);
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "'" + value + "'";
+        }
+    }
+
+    static final class Attribute extends Pattern {
+        final NameClass name;
+        final Pattern value;
+
+        private volatile ValueMatcher matcher;
+
+        Attribute(NameClass name, Pattern value) {
+            super(false, 47 * name.hashCode() + value.hash);
+            this.name = name;
+            this.value = value;
+        }
+
+        /**
+         * @return the matcher of this attribute's values; compiled once per attribute
+         */
+        ValueMatcher matcher() {
+            ValueMatcher matcher = this.matcher;
+            if (matcher == null) {
+                this.matcher = matcher = ValueMatcher.compile(value);
+            }
+            return matcher;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Attribute) {
+                final Attribute other = (Attribute) obj;
+                return value == other.value && Objects.equals(name, other.name);
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "attribute " + name;
+        }
+    }
+
+    /**
+     * Element pattern, whose content is set once after construction, so that recursive references can be resolved.
+     */
+    static final class Element extends Pattern {
+        final NameClass name;
+        Pattern content;
+
+        Element(NameClass name) {
+            super(false, System.identityHashCode(name));
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
+        @Override
+        public String toString() {
+            return "element " + name;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.nc.NameClass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static eu.interedition.tei.rng.Pattern.Binary.AFTER;
+import static eu.interedition.tei.rng.Pattern.Binary.CHOICE;
+import static eu.interedition.tei.rng.Pattern.Binary.GROUP;
+import static eu.interedition.tei.rng.Pattern.Binary.INTERLEAVE;
+
+/**
+ * Creates patterns, applying the simplifications of the derivative algorithm and interning the results, so that
+ * structurally equal patterns are shared.
+ * <p>
+ * Builders are not safe for concurrent use; the patterns they create are.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class PatternBuilder {
+
+    private final Map<Pattern, Pattern> patterns = new HashMap<>();
+
+    public Pattern empty() {
+        return Pattern.EMPTY;
+    }
+
+    public Pattern notAllowed() {
+        return Pattern.NOT_ALLOWED;
+    }
+
+    public Pattern text() {
+        return Pattern.TEXT;
+    }
+
+    public Pattern choice(Pattern p1, Pattern p2) {
+        if (p1 == Pattern.NOT_ALLOWED || contains(p2, p1)) {
+            return p2;
+        }
+        if (p2 == Pattern.NOT_ALLOWED || contains(p1, p2)) {
+            return p1;
+        }
+        return intern(new Pattern.Binary(CHOICE, p1, p2));
+    }
+
+    public Pattern group(Pattern p1, Pattern p2) {
+        if (p1 == Pattern.NOT_ALLOWED || p2 == Pattern.NOT_ALLOWED) {
+            return Pattern.NOT_ALLOWED;
+        }
+        if (p1 == Pattern.EMPTY) {
+            return p2;
+        }
+        if (p2 == Pattern.EMPTY) {
+            return p1;
+        }
+        return intern(new Pattern.Binary(GROUP, p1, p2));
+    }
+
+    public Pattern interleave(Pattern p1, Pattern p2) {
+        if (p1 == Pattern.NOT_ALLOWED || p2 == Pattern.NOT_ALLOWED) {
+            return Pattern.NOT_ALLOWED;
+        }
+        if (p1 == Pattern.EMPTY) {
+            return p2;
+        }
+        if (p2 == Pattern.EMPTY) {
+            return p1;
+        }
+        return intern(new Pattern.Binary(INTERLEAVE, p1, p2));
+    }
+
+    public Pattern after(Pattern p1, Pattern p2) {
+        if (p1 == Pattern.NOT_ALLOWED || p2 == Pattern.NOT_ALLOWED) {
+            return Pattern.NOT_ALLOWED;
+        }
+        return intern(new Pattern.Binary(AFTER, p1, p2));
+    }
+
+    public Pattern oneOrMore(Pattern p) {
+        if (p == Pattern.NOT_ALLOWED || p == Pattern.EMPTY) {
+            return p;
+        }
+        return intern(new Pattern.OneOrMore(p));
+    }
+
+    public Pattern zeroOrMore(Pattern p) {
+        return choice(oneOrMore(p), Pattern.EMPTY);
+    }
+
+    public Pattern optional(Pattern p) {
+        return choice(p, Pattern.EMPTY);
+    }
+
+    public Pattern list(Pattern p) {
+        return (p == Pattern.NOT_ALLOWED ? p : intern(new Pattern.ListPattern(p)));
+    }
+
+    public Pattern data(Datatype datatype, Pattern except) {
+        return intern(new Pattern.Data(datatype, except));
+    }
+
+    public Pattern value(Datatype datatype, String value) {
+        return intern(new Pattern.Value(datatype, value));
+    }
+
+    public Pattern attribute(NameClass name, Pattern value) {
+        return (value == Pattern.NOT_ALLOWED ? value : intern(new Pattern.Attribute(name, value)));
+    }
+
+    /**
+     * @return the number of interned patterns
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * Forgets all interned patterns; subsequently created patterns are no longer shared with earlier ones.
+     */
+    public void clear() {
+        patterns.clear();
+    }
+
+    private Pattern intern(Pattern pattern) {
+        final Pattern interned = patterns.putIfAbsent(pattern, pattern);
+        return (interned == null ? pattern : interned);
+    }
+
+    /**
+     * @return whether <code>p</code> is one of the alternatives of the given choice
+     */
+    private static boolean contains(Pattern choice, Pattern p) {
+        while (true) {
+            if (choice == p) {
+                return true;
+            }
+            if (!(choice instanceof Pattern.Binary) || ((Pattern.Binary) choice).kind != CHOICE) {
+                return false;
+            }
+            final Pattern.Binary binary = (Pattern.Binary) choice;
+            if (contains(binary.p2, p)) {
+                return true;
+            }
+            choice = binary.p1;
+        }
+    }
+}
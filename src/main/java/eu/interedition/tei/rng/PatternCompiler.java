@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.digested.DAttributePattern;
+import org.kohsuke.rngom.digested.DChoicePattern;
+import org.kohsuke.rngom.digested.DContainerPattern;
+import org.kohsuke.rngom.digested.DDataPattern;
+import org.kohsuke.rngom.digested.DDefine;
+import org.kohsuke.rngom.digested.DElementPattern;
+import org.kohsuke.rngom.digested.DEmptyPattern;
+import org.kohsuke.rngom.digested.DGrammarPattern;
+import org.kohsuke.rngom.digested.DGroupPattern;
+import org.kohsuke.rngom.digested.DInterleavePattern;
+import org.kohsuke.rngom.digested.DListPattern;
+import org.kohsuke.rngom.digested.DMixedPattern;
+import org.kohsuke.rngom.digested.DNotAllowedPattern;
+import org.kohsuke.rngom.digested.DOneOrMorePattern;
+import org.kohsuke.rngom.digested.DOptionalPattern;
+import org.kohsuke.rngom.digested.DPattern;
+import org.kohsuke.rngom.digested.DPatternVisitor;
+import org.kohsuke.rngom.digested.DRefPattern;
+import org.kohsuke.rngom.digested.DTextPattern;
+import org.kohsuke.rngom.digested.DValuePattern;
+import org.kohsuke.rngom.digested.DZeroOrMorePattern;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * Compiles a digested pattern tree into {@link Pattern patterns}, resolving references by inlining the referenced
+ * definitions.
+ * <p>
+ * Element content is compiled after the element itself, so references recurring via elements resolve to the same
+ * element pattern; other recursion is illegal in RELAX NG and rejected.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class PatternCompiler implements DPatternVisitor<Pattern> {
+
+    private final PatternBuilder builder;
+    private final Map<DDefine, Pattern> definitions = new IdentityHashMap<>();
+    private final Map<DElementPattern, Pattern.Element> elements = new IdentityHashMap<>();
+    private final Deque<DElementPattern> pendingElements = new ArrayDeque<>();
+
+    public PatternCompiler(PatternBuilder builder) {
+        this.builder = builder;
+    }
+
+    public static Pattern compile(DPattern pattern) {
+        return new PatternCompiler(new PatternBuilder()).compileAll(pattern);
+    }
+
+    /**
+     * Compiles the given pattern along with the content of all elements reachable from it.
+     */
+    public Pattern compileAll(DPattern pattern) {
+        final Pattern compiled = pattern.accept(this);
+        while (!pendingElements.isEmpty()) {
+            final DElementPattern element = pendingElements.remove();
+            elements.get(element).content = element.getChild().accept(this);
+        }
+        return compiled;
+    }
+
+    @Override
+    public Pattern onGrammar(DGrammarPattern p) {
+        final DPattern start = p.getStart();
+        return (start == null ? builder.notAllowed() : start.accept(this));
+    }
+
+    @Override
+    public Pattern onRef(DRefPattern p) {
+        final DDefine define = p.getTarget();
+        if (definitions.containsKey(define)) {
+            final Pattern definition = definitions.get(define);
+            if (definition == null) {
+                throw new IllegalStateException("Recursive reference outside of element: " + define.getName());
+            }
+            return definition;
+        }
+        definitions.put(define, null);
+        final DPattern pattern = define.getPattern();
+        final Pattern definition = (pattern == null ? builder.notAllowed() : pattern.accept(this));
+        definitions.put(define, definition);
+        return definition;
+    }
+
+    @Override
+    public Pattern onElement(DElementPattern p) {
+        Pattern.Element element = elements.get(p);
+        if (element == null) {
+            elements.put(p, element = new Pattern.Element(p.getName()));
+            pendingElements.add(p);
+        }
+        return element;
+    }
+
+    @Override
+    public Pattern onAttribute(DAttributePattern p) {
+        return builder.attribute(p.getName(), p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onChoice(DChoicePattern p) {
+        return container(p, builder::choice);
+    }
+
+    @Override
+    public Pattern onGroup(DGroupPattern p) {
+        return container(p, builder::group);
+    }
+
+    @Override
+    public Pattern onInterleave(DInterleavePattern p) {
+        return container(p, builder::interleave);
+    }
+
+    @Override
+    public Pattern onOneOrMore(DOneOrMorePattern p) {
+        return builder.oneOrMore(p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onZeroOrMore(DZeroOrMorePattern p) {
+        return builder.zeroOrMore(p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onOptional(DOptionalPattern p) {
+        return builder.optional(p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onMixed(DMixedPattern p) {
+        return builder.interleave(builder.text(), p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onList(DListPattern p) {
+        return builder.list(p.getChild().accept(this));
+    }
+
+    @Override
+    public Pattern onData(DDataPattern p) {
+        final DPattern except = p.getExcept();
+        return builder.data(
+                Datatype.of(p.getDatatypeLibrary(), p.getType(), p.getParams()),
+                except == null ? null : except.accept(this)
+        );
+    }
+
+    @Override
+    public Pattern onValue(DValuePattern p) {
+        return builder.value(Datatype.of(p.getDatatypeLibrary(), p.getType()), p.getValue());
+    }
+
+    @Override
+    public Pattern onEmpty(DEmptyPattern p) {
+        return builder.empty();
+    }
+
+    @Override
+    public Pattern onNotAllowed(DNotAllowedPattern p) {
+        return builder.notAllowed();
+    }
+
+    @Override
+    public Pattern onText(DTextPattern p) {
+        return builder.text();
+    }
+
+    private Pattern container(DContainerPattern p, BinaryOperator<Pattern> combinator) {
+        Pattern result = null;
+        for (DPattern child : p) {
+            final Pattern compiled = child.accept(this);
+            result = (result == null ? compiled : combinator.apply(result, compiled));
+        }
+        return (result == null ? builder.empty() : result);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.ast.builder.BuildException;
+import org.kohsuke.rngom.ast.builder.DataPatternBuilder;
+import org.kohsuke.rngom.ast.builder.Grammar;
+import org.kohsuke.rngom.ast.builder.GrammarSection;
+import org.kohsuke.rngom.ast.builder.SchemaBuilder;
+import org.kohsuke.rngom.ast.builder.Scope;
+import org.kohsuke.rngom.digested.DPattern;
+import org.kohsuke.rngom.digested.DSchemaBuilderImpl;
+import org.kohsuke.rngom.nc.AnyNameExceptNameClass;
+import org.kohsuke.rngom.nc.ChoiceNameClass;
+import org.kohsuke.rngom.nc.NameClass;
+import org.kohsuke.rngom.nc.NsNameClass;
+import org.kohsuke.rngom.nc.NsNameExceptNameClass;
+import org.kohsuke.rngom.nc.SimpleNameClass;
+import org.kohsuke.rngom.parse.Context;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static eu.interedition.tei.rng.PatternEncoder.*;
+
+/**
+ * Rebuilds digested pattern trees written by a {@link PatternEncoder}, using rngom's own schema builder.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class PatternDecoder {
+
+    private final ByteBuffer in;
+    private final IntFunction<String> symbols;
+    private final SchemaBuilder builder = new DSchemaBuilderImpl();
+
+    public PatternDecoder(ByteBuffer in, IntFunction<String> symbols) {
+        this.in = in;
+        this.symbols = symbols;
+    }
+
+    public DPattern decode() throws BuildException {
+        return pattern(null);
+    }
+
+    protected DPattern pattern(Scope scope) throws BuildException {
+        final byte type = in.get();
+        switch (type) {
+            case GRAMMAR:
+                return grammar(scope);
+            case GROUP:
+                return (DPattern) builder.makeGroup(children(scope), null, null);
+            case INTERLEAVE:
+                return (DPattern) builder.makeInterleave(children(scope), null, null);
+            case CHOICE:
+                return (DPattern) builder.makeChoice(children(scope), null, null);
+            case ONE_OR_MORE:
+                return (DPattern) builder.makeOneOrMore(pattern(scope), null, null);
+            case ZERO_OR_MORE:
+                return (DPattern) builder.makeZeroOrMore(pattern(scope), null, null);
+            case OPTIONAL:
+                return (DPattern) builder.makeOptional(pattern(scope), null, null);
+            case LIST:
+                return (DPattern) builder.makeList(pattern(scope), null, null);
+            case MIXED:
+                return (DPattern) builder.makeMixed(pattern(scope), null, null);
+            case REF:
+                if (scope == null) {
+                    throw new BuildException(new IllegalStateException("Reference outside of grammar"));
+                }
+                return (DPattern) scope.makeRef(symbol(), null, null);
+            case EMPTY:
+                return (DPattern) builder.makeEmpty(null, null);
+            case TEXT:
+                return (DPattern) builder.makeText(null, null);
+            case NOT_ALLOWED:
+                return (DPattern) builder.makeNotAllowed(null, null);
+            case ELEMENT: {
+                final NameClass name = nameClass();
+                return (DPattern) builder.makeElement(name, pattern(scope), null, null);
+            }
+            case ATTRIBUTE: {
+                final NameClass name = nameClass();
+                return (DPattern) builder.makeAttribute(name, pattern(scope), null, null);
+            }
+            case DATA: {
+                final DataPatternBuilder data = builder.makeDataPatternBuilder(symbol(), symbol(), null);
+                for (int pc = in.getInt(); pc > 0; pc--) {
+                    data.addParam(symbol(), symbol(), EMPTY_CONTEXT, symbol(), null, null);
+                }
+                return (DPattern) (in.get() == 0 ? data.makePattern(null, null) : data.makePattern(pattern(scope), null, null));
+            }
+            case VALUE: {
+                final String library = symbol();
+                final String dataType = symbol();
+                final String value = symbol();
+                return (DPattern) builder.makeValue(library, dataType, value, EMPTY_CONTEXT, symbol(), null, null);
+            }
+            default:
+                throw new BuildException(new IllegalStateException("Invalid pattern type: " + type));
+        }
+    }
+
+    protected DPattern grammar(Scope scope) throws BuildException {
+        final Grammar grammar = builder.makeGrammar(scope);
+        while (true) {
+            final byte type = in.get();
+            switch (type) {
+                case DEFINE: {
+                    final String name = symbol();
+                    grammar.define(name, null, pattern(grammar), null, null);
+                    break;
+                }
+                case START:
+                    grammar.define(GrammarSection.START, null, pattern(grammar), null, null);
+                    break;
+                case END:
+                    return (DPattern) grammar.endGrammar(null, null);
+                default:
+                    throw new BuildException(new IllegalStateException("Invalid grammar section: " + type));
+            }
+        }
+    }
+
+    protected List<DPattern> children(Scope scope) throws BuildException {
+        final int count = in.getInt();
+        final List<DPattern> children = new ArrayList<>(count);
+        for (int cc = 0; cc < count; cc++) {
+            children.add(pattern(scope));
+        }
+        return children;
+    }
+
+    protected NameClass nameClass() throws BuildException {
+        final byte type = in.get();
+        switch (type) {
+            case NC_NAME: {
+                final String ns = symbol();
+                return new SimpleNameClass(ns, symbol());
+            }
+            case NC_NS_NAME:
+                return new NsNameClass(symbol());
+            case NC_NS_NAME_EXCEPT: {
+                final String ns = symbol();
+                return new NsNameExceptNameClass(ns, nameClass());
+            }
+            case NC_ANY_NAME:
+                return NameClass.ANY;
+            case NC_ANY_NAME_EXCEPT:
+                return new AnyNameExceptNameClass(nameClass());
+            case NC_CHOICE: {
+                final NameClass nc1 = nameClass();
+                return new ChoiceNameClass(nc1, nameClass());
+            }
+            case NC_NULL:
+                return NameClass.NULL;
+            default:
+                throw new BuildException(new IllegalStateException("Invalid name class type: " + type));
+        }
+    }
+
+    protected String symbol() {
+        final int symbol = in.getInt();
+        return (symbol == NO_SYMBOL ? null : symbols.apply(symbol));
+    }
+
+    private static final Context EMPTY_CONTEXT = new Context() {
+        @Override
+        public Enumeration prefixes() {
+            return Collections.emptyEnumeration();
+        }
+
+        @Override
+        public Context copy() {
+            return this;
+        }
+
+        @Override
+        public String resolveNamespacePrefix(String prefix) {
+            return null;
+        }
+
+        @Override
+        public String getBaseUri() {
+            return null;
+        }
+
+        @Override
+        public boolean isUnparsedEntity(String entityName) {
+            return false;
+        }
+
+        @Override
+        public boolean isNotation(String notationName) {
+            return false;
+        }
+    };
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.digested.DAttributePattern;
+import org.kohsuke.rngom.digested.DChoicePattern;
+import org.kohsuke.rngom.digested.DContainerPattern;
+import org.kohsuke.rngom.digested.DDataPattern;
+import org.kohsuke.rngom.digested.DDefine;
+import org.kohsuke.rngom.digested.DElementPattern;
+import org.kohsuke.rngom.digested.DEmptyPattern;
+import org.kohsuke.rngom.digested.DGrammarPattern;
+import org.kohsuke.rngom.digested.DGroupPattern;
+import org.kohsuke.rngom.digested.DInterleavePattern;
+import org.kohsuke.rngom.digested.DListPattern;
+import org.kohsuke.rngom.digested.DMixedPattern;
+import org.kohsuke.rngom.digested.DNotAllowedPattern;
+import org.kohsuke.rngom.digested.DOneOrMorePattern;
+import org.kohsuke.rngom.digested.DOptionalPattern;
+import org.kohsuke.rngom.digested.DPattern;
+import org.kohsuke.rngom.digested.DPatternVisitor;
+import org.kohsuke.rngom.digested.DRefPattern;
+import org.kohsuke.rngom.digested.DTextPattern;
+import org.kohsuke.rngom.digested.DValuePattern;
+import org.kohsuke.rngom.digested.DZeroOrMorePattern;
+import org.kohsuke.rngom.nc.NameClass;
+import org.kohsuke.rngom.nc.NameClassVisitor;
+
+import javax.xml.namespace.QName;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Writes digested pattern trees in a compact, prefix-ordered binary form, with all strings replaced by
+ * symbol table indices.
+ *
+ * @see PatternDecoder
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class PatternEncoder implements DPatternVisitor<Void>, NameClassVisitor<Void> {
+
+    static final byte GRAMMAR = 1;
+    static final byte DEFINE = 2;
+    static final byte START = 3;
+    static final byte END = 4;
+    static final byte GROUP = 5;
+    static final byte INTERLEAVE = 6;
+    static final byte CHOICE = 7;
+    static final byte ONE_OR_MORE = 8;
+    static final byte ZERO_OR_MORE = 9;
+    static final byte OPTIONAL = 10;
+    static final byte LIST = 11;
+    static final byte MIXED = 12;
+    static final byte REF = 13;
+    static final byte EMPTY = 14;
+    static final byte TEXT = 15;
+    static final byte NOT_ALLOWED = 16;
+    static final byte ELEMENT = 17;
+    static final byte ATTRIBUTE = 18;
+    static final byte DATA = 19;
+    static final byte VALUE = 20;
+
+    static final byte NC_NAME = 1;
+    static final byte NC_NS_NAME = 2;
+    static final byte NC_NS_NAME_EXCEPT = 3;
+    static final byte NC_ANY_NAME = 4;
+    static final byte NC_ANY_NAME_EXCEPT = 5;
+    static final byte NC_CHOICE = 6;
+    static final byte NC_NULL = 7;
+
+    static final int NO_SYMBOL = -1;
+
+    private final DataOutput out;
+    private final ToIntFunction<String> symbols;
+
+    public PatternEncoder(DataOutput out, ToIntFunction<String> symbols) {
+        this.out = out;
+        this.symbols = symbols;
+    }
+
+    public void encode(DPattern pattern) throws IOException {
+        try {
+            pattern.accept(this);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Void onGrammar(DGrammarPattern p) {
+        write(GRAMMAR);
+        for (DDefine define : p) {
+            final DPattern pattern = define.getPattern();
+            if (pattern != null) {
+                write(DEFINE);
+                symbol(define.getName());
+                pattern.accept(this);
+            }
+        }
+        final DPattern start = p.getStart();
+        if (start != null) {
+            write(START);
+            start.accept(this);
+        }
+        write(END);
+        return null;
+    }
+
+    @Override
+    public Void onGroup(DGroupPattern p) {
+        return container(GROUP, p);
+    }
+
+    @Override
+    public Void onInterleave(DInterleavePattern p) {
+        return container(INTERLEAVE, p);
+    }
+
+    @Override
+    public Void onChoice(DChoicePattern p) {
+        return container(CHOICE, p);
+    }
+
+    @Override
+    public Void onOneOrMore(DOneOrMorePattern p) {
+        write(ONE_OR_MORE);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onZeroOrMore(DZeroOrMorePattern p) {
+        write(ZERO_OR_MORE);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onOptional(DOptionalPattern p) {
+        write(OPTIONAL);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onList(DListPattern p) {
+        write(LIST);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onMixed(DMixedPattern p) {
+        write(MIXED);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onRef(DRefPattern p) {
+        write(REF);
+        symbol(p.getName());
+        return null;
+    }
+
+    @Override
+    public Void onEmpty(DEmptyPattern p) {
+        write(EMPTY);
+        return null;
+    }
+
+    @Override
+    public Void onText(DTextPattern p) {
+        write(TEXT);
+        return null;
+    }
+
+    @Override
+    public Void onNotAllowed(DNotAllowedPattern p) {
+        write(NOT_ALLOWED);
+        return null;
+    }
+
+    @Override
+    public Void onElement(DElementPattern p) {
+        write(ELEMENT);
+        p.getName().accept(this);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onAttribute(DAttributePattern p) {
+        write(ATTRIBUTE);
+        p.getName().accept(this);
+        return p.getChild().accept(this);
+    }
+
+    @Override
+    public Void onData(DDataPattern p) {
+        write(DATA);
+        symbol(p.getDatatypeLibrary());
+        symbol(p.getType());
+        final List<DDataPattern.Param> params = p.getParams();
+        count(params.size());
+        for (DDataPattern.Param param : params) {
+            symbol(param.getName());
+            symbol(param.getValue());
+            symbol(param.getNs());
+        }
+        final DPattern except = p.getExcept();
+        write(except == null ? 0 : 1);
+        if (except != null) {
+            except.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void onValue(DValuePattern p) {
+        write(VALUE);
+        symbol(p.getDatatypeLibrary());
+        symbol(p.getType());
+        symbol(p.getValue());
+        symbol(p.getNs());
+        return null;
+    }
+
+    @Override
+    public Void visitChoice(NameClass nc1, NameClass nc2) {
+        write(NC_CHOICE);
+        nc1.accept(this);
+        nc2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitNsName(String ns) {
+        write(NC_NS_NAME);
+        symbol(ns);
+        return null;
+    }
+
+    @Override
+    public Void visitNsNameExcept(String ns, NameClass nc) {
+        write(NC_NS_NAME_EXCEPT);
+        symbol(ns);
+        nc.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAnyName() {
+        write(NC_ANY_NAME);
+        return null;
+    }
+
+    @Override
+    public Void visitAnyNameExcept(NameClass nc) {
+        write(NC_ANY_NAME_EXCEPT);
+        nc.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitName(QName name) {
+        write(NC_NAME);
+        symbol(name.getNamespaceURI());
+        symbol(name.getLocalPart());
+        return null;
+    }
+
+    @Override
+    public Void visitNull() {
+        write(NC_NULL);
+        return null;
+    }
+
+    protected Void container(byte type, DContainerPattern p) {
+        write(type);
+        count(p.countChildren());
+        for (DPattern child : p) {
+            child.accept(this);
+        }
+        return null;
+    }
+
+    protected void write(int b) {
+        try {
+            out.writeByte(b);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected void count(int count) {
+        try {
+            out.writeInt(count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected void symbol(String str) {
+        count(str == null ? NO_SYMBOL : symbols.applyAsInt(str));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import eu.interedition.tei.Namespaceable;
+import eu.interedition.tei.util.XML;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.kohsuke.rngom.xml.util.WellKnownNamespaces.RELAX_NG;
+import static org.kohsuke.rngom.xml.util.WellKnownNamespaces.XML_SCHEMA_DATATYPES;
+
+/**
+ * Rewrites "Pure ODD" content model elements (<code>sequence</code>, <code>alternate</code>, <code>classRef</code>,
+ * <code>elementRef</code>, <code>macroRef</code>, <code>dataRef</code>, <code>textNode</code>, <code>empty</code>)
+ * into their RELAX NG equivalents, so they can be handed to the RELAX NG parser.
+ * <p>
+ * Occurrence constraints are approximated by the nearest RELAX NG quantifier.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class PureOddTranslator {
+
+    private final XMLEventFactory events = XMLEventFactory.newFactory();
+    private final Deque<List<String>> open = new ArrayDeque<>();
+
+    public List<XMLEvent> translate(XMLEvent event) {
+        if (event.isStartElement()) {
+            final StartElement element = event.asStartElement();
+            final Optional<String> mapped = map(element);
+            if (mapped.isPresent()) {
+                final List<String> elements = new ArrayList<>(quantifiers(element));
+                elements.add(mapped.get());
+                open.push(elements);
+
+                final List<XMLEvent> translated = new ArrayList<>(elements.size());
+                for (String quantifier : elements.subList(0, elements.size() - 1)) {
+                    translated.add(startElement(quantifier, Collections.<Attribute>emptyIterator()));
+                }
+                translated.add(startElement(mapped.get(), attributes(element).iterator()));
+                return translated;
+            }
+        } else if (event.isEndElement()) {
+            final QName name = event.asEndElement().getName();
+            if (isPureOdd(name)) {
+                final List<String> elements = open.pop();
+                final List<XMLEvent> translated = new ArrayList<>(elements.size());
+                for (int ec = elements.size() - 1; ec >= 0; ec--) {
+                    translated.add(events.createEndElement("", RELAX_NG, elements.get(ec)));
+                }
+                return translated;
+            }
+        }
+        return Collections.singletonList(event);
+    }
+
+    static boolean isPureOdd(QName name) {
+        if (!Namespaceable.DEFAULT_NS_STR.equals(name.getNamespaceURI())) {
+            return false;
+        }
+        switch (name.getLocalPart()) {
+            case "sequence":
+            case "alternate":
+            case "classRef":
+            case "elementRef":
+            case "macroRef":
+            case "dataRef":
+            case "textNode":
+            case "empty":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    Optional<String> map(StartElement element) {
+        if (!isPureOdd(element.getName())) {
+            return Optional.empty();
+        }
+        switch (element.getName().getLocalPart()) {
+            case "sequence":
+                return Optional.of(XML.attr(element, "preserveOrder").filter("false"::equals).isPresent() ? "interleave" : "group");
+            case "alternate":
+                return Optional.of("choice");
+            case "dataRef":
+                return Optional.of(XML.attr(element, "key").isPresent() ? "ref" : "data");
+            case "textNode":
+                return Optional.of("text");
+            case "empty":
+                return Optional.of("empty");
+            default:
+                return Optional.of("ref");
+        }
+    }
+
+    List<Attribute> attributes(StartElement element) {
+        final Optional<String> key = XML.attr(element, "key");
+        if (key.isPresent()) {
+            return Collections.singletonList(events.createAttribute("name", key.get()));
+        }
+        final Optional<String> dataType = XML.attr(element, "name");
+        if ("dataRef".equals(element.getName().getLocalPart()) && dataType.isPresent()) {
+            final List<Attribute> attributes = new ArrayList<>(2);
+            attributes.add(events.createAttribute("type", dataType.get()));
+            attributes.add(events.createAttribute("datatypeLibrary", XML_SCHEMA_DATATYPES));
+            return attributes;
+        }
+        return Collections.emptyList();
+    }
+
+    static List<String> quantifiers(StartElement element) {
+        final int min = XML.attr(element, "minOccurs").map(Integer::parseInt).orElse(1);
+        final int max = XML.attr(element, "maxOccurs").map(m -> "unbounded".equals(m) ? Integer.MAX_VALUE : Integer.parseInt(m)).orElse(1);
+        if (max > 1) {
+            return Collections.singletonList(min == 0 ? "zeroOrMore" : "oneOrMore");
+        } else if (min == 0) {
+            return Collections.singletonList("optional");
+        }
+        return Collections.emptyList();
+    }
+
+    private XMLEvent startElement(String localName, Iterator<Attribute> attributes) {
+        return events.createStartElement("", RELAX_NG, localName, attributes, Collections.<Namespace>emptyIterator());
+    }
+}
@@ -19,8 +19,10 @@
 
 package eu.interedition.tei.rng;
 
+import eu.interedition.tei.util.ChannelWriter;
 import org.kohsuke.rngom.digested.DAttributePattern;
 import org.kohsuke.rngom.digested.DChoicePattern;
+import org.kohsuke.rngom.digested.DContainerPattern;
 import org.kohsuke.rngom.digested.DDataPattern;
 import org.kohsuke.rngom.digested.DDefine;
 import org.kohsuke.rngom.digested.DElementPattern;
@@ -44,9 +46,9 @@ import org.kohsuke.rngom.nc.NameClassVisitor;
 import org.kohsuke.rngom.xml.util.WellKnownNamespaces;
 
 import javax.xml.namespace.QName;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -54,9 +56,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.StreamSupport;
 
 /**
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
@@ -64,50 +63,91 @@ import java.util.stream.StreamSupport;
 public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassVisitor<Void> {
 
     @SuppressWarnings("SpellCheckingInspection")
-    private final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("attribute", "default", "datatypes", "div", "element", "empty",
+    static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("attribute", "default", "datatypes", "div", "element", "empty",
             "external", "grammar", "include", "inherit", "list", "mixed", "namespace", "notAllowed", "parent", "start",
             "string", "text", "token"));
 
-    private final PrintWriter target;
+    private final Appendable target;
     private Map<String, String> namespaces = new HashMap<>();
+    private final boolean sharedNamespaces;
 
-    public RelaxCompactSerializer(PrintWriter target) {
+    /**
+     * @param target the output, e.g. a {@link StringBuilder}, a {@link java.io.Writer} or a {@link ChannelWriter};
+     *               I/O errors are rethrown as {@link UncheckedIOException}s
+     */
+    public RelaxCompactSerializer(Appendable target) {
         this.target = target;
+        this.sharedNamespaces = false;
     }
 
-    public RelaxCompactSerializer(Writer target) {
-        this(new PrintWriter(target));
+    /**
+     * Creates a serializer using a shared namespace mapping like {@link eu.interedition.tei.Schema#getNamespacePrefixes()},
+     * whose namespaces are declared outside of the serialized patterns; grammars are then neither scanned for namespaces
+     * nor preceded by namespace declarations.
+     *
+     * @param namespaces prefixes of namespaces, which have been declared outside of the serialized patterns
+     */
+    public RelaxCompactSerializer(Appendable target, Map<String, String> namespaces) {
+        this.target = target;
+        this.namespaces = namespaces;
+        this.sharedNamespaces = true;
     }
 
     public static String toString(DPattern p) {
-        final StringWriter writer = new StringWriter();
-        p.accept(new RelaxCompactSerializer(writer));
-        return writer.toString();
+        final StringBuilder str = new StringBuilder();
+        p.accept(new RelaxCompactSerializer(str));
+        return str.toString();
+    }
+
+    public static String toString(DPattern p, Map<String, String> namespaces) {
+        final StringBuilder str = new StringBuilder();
+        p.accept(new RelaxCompactSerializer(str, namespaces));
+        return str.toString();
+    }
+
+    public static void write(DPattern p, WritableByteChannel channel) throws IOException {
+        write(p, channel, ChannelWriter.DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Streams a pattern UTF-8-encoded to the given channel.
+     *
+     * @param flushThreshold the number of buffered characters, beyond which they are encoded and written to the channel
+     * @see ChannelWriter
+     */
+    public static void write(DPattern p, WritableByteChannel channel, int flushThreshold) throws IOException {
+        try (ChannelWriter writer = new ChannelWriter(channel, flushThreshold)) {
+            p.accept(new RelaxCompactSerializer(writer));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     @Override
     public Void onGrammar(DGrammarPattern p) {
-        mapNamespaces(p);
+        if (!sharedNamespaces) {
+            mapNamespaces(p);
+        }
 
-        target.println("grammar {");
+        println("grammar {");
         for (DDefine define : p) {
             final DPattern pattern = define.getPattern();
             if (pattern != null) {
                 identifier(define.getName());
-                target.print(" = ");
+                print(" = ");
                 pattern.accept(this);
-                target.println();
+                println();
             }
         }
 
         final DPattern start = p.getStart();
         if (start != null) {
-            target.print("start = ");
+            print("start = ");
             start.accept(this);
-            target.println();
+            println();
         }
 
-        target.println("}");
+        println("}");
 
         return null;
     }
@@ -116,11 +156,11 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
         namespaces = NamespaceCollector.on(p).toMapping();
         if (!namespaces.isEmpty()) {
             for (Map.Entry<String, String> mapping : namespaces.entrySet()) {
-                target.print("namespace ");
-                target.print(mapping.getValue());
-                target.print(" = ");
+                print("namespace ");
+                print(mapping.getValue());
+                print(" = ");
                 literal(mapping.getKey());
-                target.println();
+                println();
             }
         }
     }
@@ -146,37 +186,37 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
     @Override
     public Void onOneOrMore(DOneOrMorePattern p) {
         p.getChild().accept(this);
-        target.print("+");
+        print("+");
         return null;
     }
 
     @Override
     public Void onOptional(DOptionalPattern p) {
         p.getChild().accept(this);
-        target.print("?");
+        print("?");
         return null;
     }
 
     @Override
     public Void onZeroOrMore(DZeroOrMorePattern p) {
         p.getChild().accept(this);
-        target.print("*");
+        print("*");
         return null;
     }
 
     @Override
     public Void onList(DListPattern p) {
-        target.print("list { ");
+        print("list { ");
         p.getChild().accept(this);
-        target.print(" }");
+        print(" }");
         return null;
     }
 
     @Override
     public Void onMixed(DMixedPattern p) {
-        target.print("mixed { ");
+        print("mixed { ");
         p.getChild().accept(this);
-        target.print(" }");
+        print(" }");
         return null;
     }
 
@@ -188,39 +228,39 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
 
     @Override
     public Void onEmpty(DEmptyPattern p) {
-        target.print("empty");
+        print("empty");
         return null;
     }
 
     @Override
     public Void onText(DTextPattern p) {
-        target.print("text");
+        print("text");
         return null;
     }
 
     @Override
     public Void onNotAllowed(DNotAllowedPattern p) {
-        target.print("notAllowed");
+        print("notAllowed");
         return null;
     }
 
     @Override
     public Void onElement(DElementPattern p) {
-        target.print("element ");
+        print("element ");
         p.getName().accept(this);
-        target.print(" { ");
+        print(" { ");
         p.getChild().accept(this);
-        target.print(" }");
+        print(" }");
         return null;
     }
 
     @Override
     public Void onAttribute(DAttributePattern p) {
-        target.print("attribute ");
+        print("attribute ");
         p.getName().accept(this);
-        target.print(" { ");
+        print(" { ");
         p.getChild().accept(this);
-        target.print(" }");
+        print(" }");
         return null;
     }
 
@@ -230,20 +270,20 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
 
         final List<DDataPattern.Param> params = p.getParams();
         if (!params.isEmpty()) {
-            target.print(" { ");
+            print(" { ");
             for (DDataPattern.Param param : params) {
-                target.print(param.getName());
-                target.print("=");
+                print(param.getName());
+                print("=");
                 literal(param.getValue());
-                target.print(" ");
+                print(" ");
             }
 
-            target.print("}");
+            print("}");
         }
 
         final DPattern except = p.getExcept();
         if (except != null) {
-            target.print(" - ");
+            print(" - ");
             except.accept(this);
         }
 
@@ -253,57 +293,57 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
     private void dataType(String library, String type) {
         if (type != null) {
             if (library.isEmpty() || WellKnownNamespaces.XML_SCHEMA_DATATYPES.equals(library)) {
-                target.print("xsd:");
+                print("xsd:");
             } else {
                 throw new UnsupportedOperationException(library);
             }
-            target.print(type);
+            print(type);
         }
     }
 
     @Override
     public Void onValue(DValuePattern p) {
         dataType(p.getDatatypeLibrary(), p.getType());
-        target.print(" ");
+        print(" ");
         literal(p.getValue());
         return null;
     }
 
     @Override
     public Void visitChoice(NameClass nc1, NameClass nc2) {
-        target.print("(");
+        print("(");
         nc1.accept(this);
-        target.print(" | ");
+        print(" | ");
         nc2.accept(this);
-        target.print(")");
+        print(")");
         return null;
     }
 
     @Override
     public Void visitNsName(String ns) {
         namespace(ns);
-        target.print(":*");
+        print(":*");
         return null;
     }
 
     @Override
     public Void visitNsNameExcept(String ns, NameClass nc) {
         visitNsName(ns);
-        target.print("-");
+        print("-");
         nc.accept(this);
         return null;
     }
 
     @Override
     public Void visitAnyName() {
-        target.print("*");
+        print("*");
         return null;
     }
 
     @Override
     public Void visitAnyNameExcept(NameClass nc) {
         visitAnyName();
-        target.print("-");
+        print("-");
         nc.accept(this);
         return null;
     }
@@ -313,9 +353,9 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
         final String ns = name.getNamespaceURI();
         if (ns != null && !ns.isEmpty()) {
             namespace(ns);
-            target.print(":");
+            print(":");
         }
-        target.print(name.getLocalPart());
+        print(name.getLocalPart());
         return null;
     }
 
@@ -324,16 +364,33 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
         return null;
     }
 
+    protected void print(String str) {
+        try {
+            target.append(str);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected void println(String str) {
+        print(str);
+        println();
+    }
+
+    protected void println() {
+        print("\n");
+    }
+
     protected void namespace(String ns) {
         final String prefix = namespaces.get(ns);
-        target.print(prefix == null ? "ns" : prefix);
+        print(prefix == null ? "ns" : prefix);
     }
 
     protected void identifier(String identifier) {
         if (KEYWORDS.contains(identifier)) {
-            target.print("\\");
+            print("\\");
         }
-        target.print(identifier);
+        print(identifier);
     }
 
     protected void literal(String value) {
@@ -345,26 +402,26 @@ public class RelaxCompactSerializer implements DPatternVisitor<Void>, NameClassV
         }
 
         final String quote = (singleQuotes ? "\"" : "'");
-        final String delimiter = IntStream.range(0, value.contains("\n") ? 3 : 1).mapToObj(i -> quote).collect(Collectors.joining());
-        target.print(delimiter);
-        target.print(value);
-        target.print(delimiter);
+        final String delimiter = (value.indexOf('\n') >= 0 ? quote + quote + quote : quote);
+        print(delimiter);
+        print(value);
+        print(delimiter);
     }
 
 
-    protected void concat(Iterable<DPattern> patterns, String op) {
-        final long numPatterns = StreamSupport.stream(patterns.spliterator(), false).count();
+    protected void concat(DContainerPattern patterns, String op) {
+        final int numPatterns = patterns.countChildren();
         if (numPatterns > 1) {
-            target.print("(");
+            print("(");
         }
         for (Iterator<DPattern> it = patterns.iterator(); it.hasNext(); ) {
             it.next().accept(this);
             if (it.hasNext()) {
-                target.print(op);
+                print(op);
             }
         }
         if (numPatterns > 1) {
-            target.print(")");
+            print(")");
         }
     }
 }
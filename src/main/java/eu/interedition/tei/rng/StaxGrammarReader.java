@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.kohsuke.rngom.xml.util.WellKnownNamespaces.RELAX_NG;
+
+/**
+ * Feeds a content model embedded in an ODD document to a SAX-based RELAX NG parser, without serializing it first.
+ * <p>
+ * The events of the given reader are replayed as SAX events up to the end of the enclosing container element,
+ * wrapped in a grammar which defines the content model under the given name and references it as the start pattern.
+ * "Pure ODD" content elements are translated on the fly.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class StaxGrammarReader implements XMLReader, Locator {
+
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    private final XMLEventReader xml;
+    private final QName container;
+    private final String defineName;
+    private final Map<String, Object> properties = new HashMap<>();
+
+    private ContentHandler contentHandler;
+    private ErrorHandler errorHandler;
+    private DTDHandler dtdHandler;
+    private EntityResolver entityResolver;
+    private Location location;
+
+    public StaxGrammarReader(XMLEventReader xml, QName container, String defineName) {
+        this.xml = xml;
+        this.container = container;
+        this.defineName = defineName;
+    }
+
+    @Override
+    public void parse(InputSource input) throws IOException, SAXException {
+        contentHandler.setDocumentLocator(this);
+        contentHandler.startDocument();
+        contentHandler.startPrefixMapping("", RELAX_NG);
+        startElement("grammar", new AttributesImpl());
+        startElement("define", nameAttribute(defineName));
+
+        try {
+            final PureOddTranslator pureOdd = new PureOddTranslator();
+            while (xml.hasNext()) {
+                final XMLEvent event = xml.nextEvent();
+                location = event.getLocation();
+                if (event.isEndElement() && container.equals(event.asEndElement().getName())) {
+                    break;
+                }
+                for (XMLEvent translated : pureOdd.translate(event)) {
+                    replay(translated);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        } finally {
+            location = null;
+        }
+
+        endElement("define");
+        startElement("start", new AttributesImpl());
+        startElement("ref", nameAttribute(defineName));
+        endElement("ref");
+        endElement("start");
+        endElement("grammar");
+        contentHandler.endPrefixMapping("");
+        contentHandler.endDocument();
+    }
+
+    protected void replay(XMLEvent event) throws SAXException {
+        if (event.isStartElement()) {
+            final StartElement element = event.asStartElement();
+            for (Iterator<?> it = element.getNamespaces(); it.hasNext(); ) {
+                final Namespace namespace = (Namespace) it.next();
+                contentHandler.startPrefixMapping(namespace.getPrefix(), namespace.getNamespaceURI());
+            }
+            final AttributesImpl attributes = new AttributesImpl();
+            for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+                final Attribute attribute = (Attribute) it.next();
+                final QName name = attribute.getName();
+                attributes.addAttribute(name.getNamespaceURI(), name.getLocalPart(), qName(name), "CDATA", attribute.getValue());
+            }
+            final QName name = element.getName();
+            contentHandler.startElement(name.getNamespaceURI(), name.getLocalPart(), qName(name), attributes);
+        } else if (event.isEndElement()) {
+            final EndElement element = event.asEndElement();
+            final QName name = element.getName();
+            contentHandler.endElement(name.getNamespaceURI(), name.getLocalPart(), qName(name));
+            for (Iterator<?> it = element.getNamespaces(); it.hasNext(); ) {
+                contentHandler.endPrefixMapping(((Namespace) it.next()).getPrefix());
+            }
+        } else if (event.isCharacters()) {
+            final char[] data = event.asCharacters().getData().toCharArray();
+            contentHandler.characters(data, 0, data.length);
+        }
+    }
+
+    private void startElement(String localName, AttributesImpl attributes) throws SAXException {
+        contentHandler.startElement(RELAX_NG, localName, localName, attributes);
+    }
+
+    private void endElement(String localName) throws SAXException {
+        contentHandler.endElement(RELAX_NG, localName, localName);
+    }
+
+    private static AttributesImpl nameAttribute(String name) {
+        final AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "name", "name", "CDATA", name);
+        return attributes;
+    }
+
+    private static String qName(QName name) {
+        final String prefix = name.getPrefix();
+        return (prefix == null || prefix.isEmpty() ? name.getLocalPart() : prefix + ":" + name.getLocalPart());
+    }
+
+    @Override
+    public void parse(String systemId) throws IOException, SAXException {
+        parse(new InputSource(systemId));
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException {
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public Object getProperty(String name) throws SAXNotRecognizedException {
+        if (!LEXICAL_HANDLER.equals(name)) {
+            throw new SAXNotRecognizedException(name);
+        }
+        return properties.get(name);
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+        if (!LEXICAL_HANDLER.equals(name)) {
+            throw new SAXNotRecognizedException(name);
+        }
+        properties.put(name, value);
+    }
+
+    @Override
+    public void setEntityResolver(EntityResolver resolver) {
+        this.entityResolver = resolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(DTDHandler handler) {
+        this.dtdHandler = handler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler handler) {
+        this.errorHandler = handler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    @Override
+    public String getPublicId() {
+        return (location == null ? null : location.getPublicId());
+    }
+
+    @Override
+    public String getSystemId() {
+        return (location == null ? null : location.getSystemId());
+    }
+
+    @Override
+    public int getLineNumber() {
+        return (location == null ? -1 : location.getLineNumber());
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return (location == null ? -1 : location.getColumnNumber());
+    }
+}
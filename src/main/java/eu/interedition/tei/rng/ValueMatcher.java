@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.rng;
+
+import org.kohsuke.rngom.nc.NameClass;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static eu.interedition.tei.rng.Pattern.Binary.CHOICE;
+import static eu.interedition.tei.rng.Pattern.Binary.GROUP;
+import static eu.interedition.tei.rng.Pattern.Binary.INTERLEAVE;
+
+/**
+ * Matches attribute values against a compiled value {@link Pattern pattern}, without computing derivatives.
+ * <p>
+ * Choices of literal values, as generated from closed value lists, are matched by binary search in a sorted array of
+ * the normalized literals; datatypes are matched on regions of the value, so that neither matching a value nor the
+ * tokens of a list allocates as long as the value is normalized already. Lists, whose tokens all match the same item
+ * pattern, are matched token by token, with the number of tokens being bounded by the list's structure; all other
+ * lists are matched by deriving their pattern.
+ * <p>
+ * Matchers are immutable and can be shared between threads.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public abstract class ValueMatcher {
+
+    public static final ValueMatcher ANY = new ValueMatcher(true) {
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return true;
+        }
+    };
+
+    public static final ValueMatcher NONE = new ValueMatcher(false) {
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return false;
+        }
+    };
+
+    static final ValueMatcher EMPTY = new ValueMatcher(true) {
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return false;
+        }
+    };
+
+    final boolean nullable;
+
+    ValueMatcher(boolean nullable) {
+        this.nullable = nullable;
+    }
+
+    public boolean matches(CharSequence value) {
+        return matches(value, 0, value.length());
+    }
+
+    public boolean matches(CharSequence value, int start, int end) {
+        return (nullable && isWhitespace(value, start, end)) || text(value, start, end);
+    }
+
+    /**
+     * @return whether the derivative of the underlying pattern with respect to the given region is nullable
+     */
+    abstract boolean text(CharSequence value, int start, int end);
+
+    public ValueMatcher or(ValueMatcher other) {
+        if (this == other || other == NONE || this == ANY) {
+            return this;
+        } else if (this == NONE || other == ANY) {
+            return other;
+        }
+        return new Choice(new ValueMatcher[] { this, other });
+    }
+
+    public static ValueMatcher compile(Pattern value) {
+        if (value == Pattern.TEXT) {
+            return ANY;
+        } else if (value == Pattern.EMPTY) {
+            return EMPTY;
+        } else if (value instanceof Pattern.Value || value instanceof Pattern.Data) {
+            return choice(Collections.singletonList(value));
+        } else if (value instanceof Pattern.OneOrMore) {
+            return compile(((Pattern.OneOrMore) value).p);
+        } else if (value instanceof Pattern.ListPattern) {
+            final List<Pattern> items = new ArrayList<>();
+            final int[] occurrences = occurrences(((Pattern.ListPattern) value).p, items);
+            final List<Pattern> item = items.stream().distinct().collect(Collectors.toList());
+            return (occurrences == null || item.size() > 1
+                    ? new DerivativeMatcher(value)
+                    : new ListMatcher(choice(item), occurrences[0], occurrences[1]));
+        } else if (value instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) value;
+            switch (binary.kind) {
+                case CHOICE: {
+                    final List<Pattern> alternatives = new ArrayList<>();
+                    alternatives(binary, alternatives);
+                    return choice(alternatives);
+                }
+                case GROUP:
+                case INTERLEAVE:
+                    return new Sequence(compile(binary.p1), compile(binary.p2));
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Visits the attribute declarations of all elements reachable from the given pattern, with the value matcher of
+     * each declaration. Value matchers are compiled once per attribute pattern, even if it is shared between elements.
+     */
+    public static void forEachAttribute(Pattern start, AttributeConsumer consumer) {
+        final Set<Pattern.Element> elements = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Pattern.Element> pending = new ArrayDeque<>();
+        attributes(start, null, Collections.newSetFromMap(new IdentityHashMap<>()), elements, pending, consumer);
+        while (!pending.isEmpty()) {
+            final Pattern.Element element = pending.remove();
+            if (element.content != null) {
+                attributes(element.content, element.name, Collections.newSetFromMap(new IdentityHashMap<>()), elements, pending, consumer);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface AttributeConsumer {
+        void accept(NameClass element, NameClass attribute, ValueMatcher value);
+    }
+
+    private static void attributes(Pattern p, NameClass element, Set<Pattern> visited, Set<Pattern.Element> elements,
+                                   Deque<Pattern.Element> pending, AttributeConsumer consumer) {
+        if (!visited.add(p)) {
+            return;
+        }
+        if (p instanceof Pattern.Element) {
+            if (elements.add((Pattern.Element) p)) {
+                pending.add((Pattern.Element) p);
+            }
+        } else if (p instanceof Pattern.Attribute) {
+            if (element != null) {
+                final Pattern.Attribute attribute = (Pattern.Attribute) p;
+                consumer.accept(element, attribute.name, attribute.matcher());
+            }
+        } else if (p instanceof Pattern.OneOrMore) {
+            attributes(((Pattern.OneOrMore) p).p, element, visited, elements, pending, consumer);
+        } else if (p instanceof Pattern.Binary) {
+            attributes(((Pattern.Binary) p).p1, element, visited, elements, pending, consumer);
+            attributes(((Pattern.Binary) p).p2, element, visited, elements, pending, consumer);
+        }
+    }
+
+    private static void alternatives(Pattern p, List<Pattern> alternatives) {
+        if (p instanceof Pattern.Binary && ((Pattern.Binary) p).kind == CHOICE) {
+            alternatives(((Pattern.Binary) p).p1, alternatives);
+            alternatives(((Pattern.Binary) p).p2, alternatives);
+        } else {
+            alternatives.add(p);
+        }
+    }
+
+    /**
+     * Compiles a choice, merging the literal alternatives of each datatype into one sorted array.
+     */
+    private static ValueMatcher choice(List<Pattern> alternatives) {
+        final Map<Datatype, List<String>> literals = new LinkedHashMap<>();
+        final List<ValueMatcher> matchers = new ArrayList<>();
+        boolean nullable = false;
+        for (Pattern alternative : alternatives) {
+            if (alternative instanceof Pattern.Value) {
+                final Pattern.Value value = (Pattern.Value) alternative;
+                literals.computeIfAbsent(value.datatype, dt -> new ArrayList<>()).add(value.datatype.normalize(value.value));
+            } else if (alternative instanceof Pattern.Data) {
+                final Pattern.Data data = (Pattern.Data) alternative;
+                matchers.add(new DataMatcher(data.datatype, data.except == null ? null : compile(data.except)));
+            } else if (alternative == Pattern.EMPTY) {
+                nullable = true;
+            } else {
+                final ValueMatcher matcher = compile(alternative);
+                if (matcher == ANY) {
+                    return ANY;
+                } else if (matcher != NONE) {
+                    matchers.add(matcher);
+                }
+            }
+        }
+        for (Map.Entry<Datatype, List<String>> literal : literals.entrySet()) {
+            final String[] sorted = literal.getValue().stream().distinct().sorted().toArray(String[]::new);
+            matchers.add(new Literals(literal.getKey(), sorted));
+        }
+        if (matchers.size() == 1 && (!nullable || matchers.get(0).nullable)) {
+            return matchers.get(0);
+        } else if (matchers.isEmpty()) {
+            return (nullable ? EMPTY : NONE);
+        }
+        final ValueMatcher choice = new Choice(matchers.toArray(new ValueMatcher[matchers.size()]));
+        return (nullable && !choice.nullable ? new Choice(new ValueMatcher[] { choice, EMPTY }) : choice);
+    }
+
+    /**
+     * Collects the item patterns of a list and determines the bounds of its number of tokens. A choice between patterns,
+     * which match exactly one token each, counts as one item pattern.
+     *
+     * @return the minimum and maximum number of tokens, the latter possibly being {@link Integer#MAX_VALUE}, or
+     * <code>null</code> if not every number of tokens within these bounds is allowed
+     */
+    private static int[] occurrences(Pattern p, List<Pattern> items) {
+        if (p == Pattern.EMPTY) {
+            return new int[] { 0, 0 };
+        } else if (p == Pattern.NOT_ALLOWED) {
+            return null;
+        } else if (token(p)) {
+            items.add(p);
+            return new int[] { 1, 1 };
+        } else if (p instanceof Pattern.OneOrMore) {
+            final int[] occurrences = occurrences(((Pattern.OneOrMore) p).p, items);
+            if (occurrences == null || (occurrences[1] != Integer.MAX_VALUE && 2L * occurrences[0] > occurrences[1] + 1L)) {
+                return null;
+            }
+            return new int[] { occurrences[0], occurrences[1] == 0 ? 0 : Integer.MAX_VALUE };
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            final int[] o1 = occurrences(binary.p1, items);
+            final int[] o2 = occurrences(binary.p2, items);
+            if (o1 == null || o2 == null) {
+                return null;
+            } else if (binary.kind == CHOICE) {
+                if (Math.max(o1[0], o2[0]) > Math.min(o1[1], o2[1]) + 1L) {
+                    return null;
+                }
+                return new int[] { Math.min(o1[0], o2[0]), Math.max(o1[1], o2[1]) };
+            }
+            return new int[] { sum(o1[0], o2[0]), sum(o1[1], o2[1]) };
+        }
+        items.add(p);
+        return new int[] { 1, 1 };
+    }
+
+    /**
+     * @return whether the given pattern matches exactly one token of a list
+     */
+    private static boolean token(Pattern p) {
+        if (p instanceof Pattern.Value || p instanceof Pattern.Data) {
+            return true;
+        } else if (p instanceof Pattern.Binary) {
+            final Pattern.Binary binary = (Pattern.Binary) p;
+            return binary.kind == CHOICE && token(binary.p1) && token(binary.p2);
+        }
+        return false;
+    }
+
+    private static int sum(int a, int b) {
+        return (a == Integer.MAX_VALUE || b == Integer.MAX_VALUE ? Integer.MAX_VALUE : a + b);
+    }
+
+    static boolean isWhitespace(CharSequence value, int start, int end) {
+        for (int cc = start; cc < end; cc++) {
+            if (!Derivatives.isWhitespace(value.charAt(cc))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final class Choice extends ValueMatcher {
+        final ValueMatcher[] alternatives;
+
+        Choice(ValueMatcher[] alternatives) {
+            super(Arrays.stream(alternatives).anyMatch(alternative -> alternative.nullable));
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            for (ValueMatcher alternative : alternatives) {
+                if (alternative.text(value, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Group or interleave of two patterns, of which a single text can only match one, with the other being nullable.
+     */
+    static final class Sequence extends ValueMatcher {
+        final ValueMatcher m1;
+        final ValueMatcher m2;
+
+        Sequence(ValueMatcher m1, ValueMatcher m2) {
+            super(m1.nullable && m2.nullable);
+            this.m1 = m1;
+            this.m2 = m2;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return (m2.nullable && m1.text(value, start, end)) || (m1.nullable && m2.text(value, start, end));
+        }
+    }
+
+    static final class Literals extends ValueMatcher {
+        final Datatype datatype;
+        final String[] sorted;
+
+        Literals(Datatype datatype, String[] sorted) {
+            super(false);
+            this.datatype = datatype;
+            this.sorted = sorted;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            if (!datatype.isNormalized(value, start, end)) {
+                final String normalized = datatype.normalize(value.subSequence(start, end));
+                return Arrays.binarySearch(sorted, normalized) >= 0;
+            }
+            int low = 0;
+            int high = sorted.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(sorted[mid], value, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int compare(String literal, CharSequence value, int start, int end) {
+            final int length = Math.min(literal.length(), end - start);
+            for (int cc = 0; cc < length; cc++) {
+                final int diff = literal.charAt(cc) - value.charAt(start + cc);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return literal.length() - (end - start);
+        }
+    }
+
+    static final class DataMatcher extends ValueMatcher {
+        final Datatype datatype;
+        final ValueMatcher except;
+
+        DataMatcher(Datatype datatype, ValueMatcher except) {
+            super(false);
+            this.datatype = datatype;
+            this.except = except;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return datatype.allows(value, start, end) && (except == null || !except.matches(value, start, end));
+        }
+    }
+
+    /**
+     * Matches a list by deriving its pattern with respect to the value, for lists whose tokens are constrained by their
+     * position.
+     */
+    static final class DerivativeMatcher extends ValueMatcher {
+        final Pattern list;
+
+        DerivativeMatcher(Pattern list) {
+            super(false);
+            this.list = list;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            return new Derivatives().textDeriv(list, value.subSequence(start, end)).nullable;
+        }
+    }
+
+    static final class ListMatcher extends ValueMatcher {
+        final ValueMatcher item;
+        final int minOccurs;
+        final int maxOccurs;
+
+        ListMatcher(ValueMatcher item, int minOccurs, int maxOccurs) {
+            super(false);
+            this.item = item;
+            this.minOccurs = minOccurs;
+            this.maxOccurs = maxOccurs;
+        }
+
+        @Override
+        boolean text(CharSequence value, int start, int end) {
+            int count = 0;
+            for (int ts = start; ts < end; ) {
+                if (Derivatives.isWhitespace(value.charAt(ts))) {
+                    ts++;
+                    continue;
+                }
+                int te = ts;
+                while (te < end && !Derivatives.isWhitespace(value.charAt(te))) {
+                    te++;
+                }
+                if (++count > maxOccurs || !item.text(value, ts, te)) {
+                    return false;
+                }
+                ts = te;
+            }
+            return count >= minOccurs;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.tools;
+
+import rx.Observable;
+import rx.Subscriber;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Optional;
+import java.util.Queue;
+
+/**
+ * Specification files of a GitHub repository, listed via the GitHub contents API. Entries are versioned by the
+ * SHA-1 of their Git blobs.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class GitHubSpecificationSource implements SpecificationSource {
+
+    private final String repository;
+    private final String ref;
+    private final String ghBasicAuth;
+
+    /**
+     * Reads credentials from the environment variables <code>GITHUB_USER</code> and <code>GITHUB_PASSWORD</code>, and
+     * the repository and its reference from the system properties <code>github.repo</code> and
+     * <code>github.repo.ref</code>.
+     */
+    public GitHubSpecificationSource() {
+        this(
+                System.getProperty("github.repo", "hcayless/TEI-Guidelines"),
+                System.getProperty("github.repo.ref", "master"),
+                Optional.ofNullable(System.getenv("GITHUB_USER")).orElseThrow(IllegalArgumentException::new),
+                Optional.ofNullable(System.getenv("GITHUB_PASSWORD")).orElseThrow(IllegalArgumentException::new)
+        );
+    }
+
+    public GitHubSpecificationSource(String repository, String ref, String user, String password) {
+        this.repository = repository;
+        this.ref = ref;
+        this.ghBasicAuth = "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Observable<Entry> entries() {
+        return Observable.create((Subscriber<? super Entry> subscriber) -> {
+            try {
+                final URL root = new URL(String.format("https://api.github.com/repos/%s/contents/P5/Source/Specs?ref=%s", repository, ref));
+                final String rootPath = root.getPath();
+
+                final Queue<URL> directories = new LinkedList<>(Collections.singleton(root));
+                while (!subscriber.isUnsubscribed() && !directories.isEmpty()) {
+                    try (JsonReader listing = Json.createReader(gitHub(directories.remove()).getInputStream())) {
+                        listing.readArray().forEach(ghEntry -> {
+                            try {
+                                final JsonObject ghEntryObject = (JsonObject) ghEntry;
+                                final URL entryUrl = new URL(ghEntryObject.getString("url"));
+                                switch (ghEntryObject.getString("type", "")) {
+                                    case "dir":
+                                        directories.add(entryUrl);
+                                        break;
+                                    case "file":
+                                        if (entryUrl.getPath().endsWith(".xml")) {
+                                            final URL downloadUrl = new URL(ghEntryObject.getString("download_url"));
+                                            subscriber.onNext(new Entry(entryUrl.getPath().substring(rootPath.length() + 1), ghEntryObject.getString("sha")) {
+                                                @Override
+                                                public InputStream open() throws IOException {
+                                                    return downloadUrl.openStream();
+                                                }
+                                            });
+                                        }
+                                }
+                            } catch (RuntimeException e) {
+                                throw e;
+                            } catch (Throwable t) {
+                                throw new RuntimeException(t);
+                            }
+                        });
+                    }
+                }
+                subscriber.onCompleted();
+            } catch (Throwable t) {
+                subscriber.onError(t);
+            }
+        });
+    }
+
+    private URLConnection gitHub(URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+        connection.setRequestProperty("Authorization", ghBasicAuth);
+        return connection;
+    }
+}
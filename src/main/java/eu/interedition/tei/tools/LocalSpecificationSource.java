@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.tools;
+
+import rx.Observable;
+import rx.Subscriber;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Specification files in a local directory, e.g. <code>P5/Source/Specs</code> of a checkout of the TEI Guidelines.
+ * Entries are versioned by their modification time and size.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class LocalSpecificationSource implements SpecificationSource {
+
+    private final Path directory;
+
+    public LocalSpecificationSource(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Observable<Entry> entries() {
+        return Observable.create((Subscriber<? super Entry> subscriber) -> {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Iterator<Path> it = files.iterator(); it.hasNext() && !subscriber.isUnsubscribed(); ) {
+                    final Path file = it.next();
+                    if (!file.getFileName().toString().endsWith(".xml")) {
+                        continue;
+                    }
+                    final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    final String path = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    final String version = attributes.lastModifiedTime().toMillis() + "-" + attributes.size();
+                    subscriber.onNext(new Entry(path, version) {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return Files.newInputStream(file);
+                        }
+                    });
+                }
+                subscriber.onCompleted();
+            } catch (Throwable t) {
+                subscriber.onError(t);
+            }
+        });
+    }
+}
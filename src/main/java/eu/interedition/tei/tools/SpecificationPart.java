@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.tools;
+
+import eu.interedition.tei.util.XML;
+import eu.interedition.tei.util.XMLEventBuffer;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+
+/**
+ * The root element of a specification file, recorded as StAX events.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SpecificationPart implements Comparable<SpecificationPart> {
+
+    final String ident;
+    final XMLEventBuffer events;
+
+    SpecificationPart(String ident, XMLEventBuffer events) {
+        this.ident = ident;
+        this.events = events;
+    }
+
+    public static SpecificationPart parse(InputStream xmlStream) throws XMLStreamException {
+        final XMLEventReader xml = XML.inputFactory().createXMLEventReader(xmlStream);
+        try {
+            while (xml.hasNext()) {
+                final XMLEvent event = xml.nextEvent();
+                if (event.isStartElement()) {
+                    final StartElement root = event.asStartElement();
+                    final XMLEventBuffer events = new XMLEventBuffer();
+                    events.add(root);
+                    events.addAll(XMLEventBuffer.element(root, xml));
+                    return new SpecificationPart(XML.attr(root, "ident").orElse(""), events);
+                }
+            }
+            throw new XMLStreamException("No root element");
+        } finally {
+            xml.close();
+        }
+    }
+
+    public String getIdent() {
+        return ident;
+    }
+
+    public XMLEventReader reader() {
+        return events.reader();
+    }
+
+    public void write(XMLEventWriter out) throws XMLStreamException {
+        for (XMLEvent event : events) {
+            out.add(event);
+        }
+    }
+
+    @Override
+    public int compareTo(SpecificationPart o) {
+        return ident.compareTo(o.ident);
+    }
+
+    @Override
+    public String toString() {
+        return ident;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.tools;
+
+import eu.interedition.tei.util.XML;
+
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Specification parts of a previous run, so that only specification files, which changed since, have to be read and
+ * parsed again.
+ * <p>
+ * Each part is stored in the cache directory as serialized XML, in a file named after the SHA-256 hash of its source.
+ * An index maps the path of each source file to its version, the hash and the identifier of its specification. A part
+ * is reused, if the version of its source is unchanged, or if the source's content still has the same hash. The index
+ * is only replaced, when a complete run is {@link #commit() committed}; parts no longer referenced are removed then.
+ * <p>
+ * The cache is safe for concurrent use within a run.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SpecificationPartCache {
+
+    static final String INDEX_FILE = "index.tsv";
+    static final String PART_SUFFIX = ".xml";
+
+    final Path directory;
+
+    private final Map<String, Record> previous;
+    private final ConcurrentMap<String, Record> current = new ConcurrentHashMap<>();
+
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+
+    SpecificationPartCache(Path directory, Map<String, Record> previous) {
+        this.directory = directory;
+        this.previous = previous;
+    }
+
+    public static SpecificationPartCache open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final Map<String, Record> records = new HashMap<>();
+        final Path index = directory.resolve(INDEX_FILE);
+        if (Files.isRegularFile(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                final String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    records.put(fields[0], new Record(fields[1], fields[2], fields[3]));
+                }
+            }
+        }
+        return new SpecificationPartCache(directory, records);
+    }
+
+    /**
+     * @return the part of the given entry, read from the cache if possible
+     */
+    public SpecificationPart part(SpecificationSource.Entry entry) throws IOException, XMLStreamException {
+        final Update update = update(entry);
+        if (update.parsed != null) {
+            return update.parsed;
+        }
+        try (InputStream partStream = Files.newInputStream(file(update.record))) {
+            return SpecificationPart.parse(partStream);
+        }
+    }
+
+    /**
+     * Stores the part of the given entry, unless it is cached already; in the latter case, the part is not parsed at
+     * all.
+     *
+     * @return the identifier of the part along with the file holding it
+     */
+    public StoredPart store(SpecificationSource.Entry entry) throws IOException, XMLStreamException {
+        final Record record = update(entry).record;
+        return new StoredPart(record.ident, file(record));
+    }
+
+    private Update update(SpecificationSource.Entry entry) throws IOException, XMLStreamException {
+        final Record record = previous.get(entry.path);
+        if (record != null && record.version.equals(entry.version) && Files.isRegularFile(file(record))) {
+            current.put(entry.path, record);
+            reused.incrementAndGet();
+            return new Update(record, null);
+        }
+
+        final byte[] source;
+        try (InputStream sourceStream = entry.open()) {
+            source = read(sourceStream);
+        }
+        final String hash = hash(source);
+        if (record != null && record.hash.equals(hash) && Files.isRegularFile(file(record))) {
+            final Record updated = new Record(entry.version, hash, record.ident);
+            current.put(entry.path, updated);
+            reused.incrementAndGet();
+            return new Update(updated, null);
+        }
+
+        final SpecificationPart part = SpecificationPart.parse(new ByteArrayInputStream(source));
+        final Record updated = new Record(entry.version, hash, part.ident);
+        store(updated, part);
+        current.put(entry.path, updated);
+        parsed.incrementAndGet();
+        return new Update(updated, part);
+    }
+
+    /**
+     * Replaces the index by the entries of the current run and removes stored parts no longer referenced.
+     */
+    public void commit() throws IOException {
+        final Path index = directory.resolve(INDEX_FILE);
+        final Path tmp = Files.createTempFile(directory, INDEX_FILE, null);
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Record> entry : new TreeMap<>(current).entrySet()) {
+                    final Record record = entry.getValue();
+                    out.write(String.join("\t", entry.getKey(), record.version, record.hash, record.ident));
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        final Set<String> referenced = new HashSet<>();
+        current.values().forEach(record -> referenced.add(record.hash + PART_SUFFIX));
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, "*" + PART_SUFFIX)) {
+            for (Path part : parts) {
+                if (!referenced.contains(part.getFileName().toString())) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of parts taken from the cache in this run
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of parts read and parsed from their source in this run
+     */
+    public long getParsed() {
+        return parsed.get();
+    }
+
+    private Path file(Record record) {
+        return directory.resolve(record.hash + PART_SUFFIX);
+    }
+
+    /**
+     * Writes the part without an XML declaration, so that the stored file can be copied into a document as is.
+     */
+    private void store(Record record, SpecificationPart part) throws IOException, XMLStreamException {
+        final Path stored = file(record);
+        final Path tmp = Files.createTempFile(directory, record.hash, null);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                final XMLEventWriter xml = XML.copyingOutputFactory().createXMLEventWriter(out, "UTF-8");
+                part.write(xml);
+                xml.close();
+            }
+            Files.move(tmp, stored, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            bytes.write(buf, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String hash(byte[] source) {
+        try {
+            final StringBuilder hash = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(source)) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A stored part, holding its root element as UTF-8 encoded XML without a declaration.
+     */
+    public static class StoredPart implements Comparable<StoredPart> {
+        final String ident;
+        final Path file;
+
+        StoredPart(String ident, Path file) {
+            this.ident = ident;
+            this.file = file;
+        }
+
+        public String getIdent() {
+            return ident;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public int compareTo(StoredPart o) {
+            return ident.compareTo(o.ident);
+        }
+
+        @Override
+        public String toString() {
+            return ident;
+        }
+    }
+
+    private static class Update {
+        final Record record;
+        final SpecificationPart parsed;
+
+        Update(Record record, SpecificationPart parsed) {
+            this.record = record;
+            this.parsed = parsed;
+        }
+    }
+
+    static class Record {
+        final String version;
+        final String hash;
+        final String ident;
+
+        Record(String version, String hash, String ident) {
+            this.version = version;
+            this.hash = hash;
+            this.ident = ident;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.tools;
+
+import rx.Observable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The specification files of the TEI Guidelines, i.e. the contents of <code>P5/Source/Specs</code>, each holding
+ * one <code>elementSpec</code>, <code>classSpec</code>, <code>macroSpec</code> or <code>dataSpec</code>.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public interface SpecificationSource {
+
+    /**
+     * @return all specification files, in no particular order
+     */
+    Observable<Entry> entries();
+
+    /**
+     * A specification file, along with a version, which changes whenever the file's content might have changed.
+     */
+    abstract class Entry {
+        final String path;
+        final String version;
+
+        protected Entry(String path, String version) {
+            this.path = path;
+            this.version = version;
+        }
+
+        /**
+         * @return the path of the file relative to the specification directory
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public abstract InputStream open() throws IOException;
+
+        @Override
+        public String toString() {
+            return path + "@" + version;
+        }
+    }
+}
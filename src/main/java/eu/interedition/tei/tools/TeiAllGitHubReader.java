@@ -16,150 +16,292 @@
  * You should have received a copy of the GNU General Public License
  * along with the project. If not, see <http://www.gnu.org/licenses/>.
  */
-
 package eu.interedition.tei.tools;
 
 import eu.interedition.tei.Namespaceable;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+import eu.interedition.tei.Schema;
+import eu.interedition.tei.Specification;
+import eu.interedition.tei.util.XML;
+import org.kohsuke.rngom.parse.IllegalSchemaException;
 import rx.Observable;
-import rx.Subscriber;
+import rx.Scheduler;
 import rx.schedulers.Schedulers;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
-import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
+ * Assembles a <code>schemaSpec</code> of all specifications in the TEI Guidelines, read from GitHub or from a local
+ * checkout.
+ * <p>
+ * Specification files are read and parsed concurrently, by at most a given number of threads. Given a
+ * {@link SpecificationPartCache cache}, only files which changed since the last run are read again.
+ *
  * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
  */
 public class TeiAllGitHubReader {
 
-    private final String ghBasicAuth;
-    private final DocumentBuilderFactory documentBuilderFactory;
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+    private final SpecificationSource source;
+    private final int parallelism;
+    private final Optional<SpecificationPartCache> cache;
 
     public TeiAllGitHubReader() {
-        final String ghUser = Optional.ofNullable(System.getenv("GITHUB_USER")).orElseThrow(IllegalArgumentException::new);
-        final String ghPassword = Optional.ofNullable(System.getenv("GITHUB_PASSWORD")).orElseThrow(IllegalArgumentException::new);
-        
-        this.ghBasicAuth = "Basic " + Base64.getEncoder().encodeToString((ghUser + ":" + ghPassword).getBytes(StandardCharsets.UTF_8));
-
-        this.documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        this.documentBuilderFactory.setValidating(false);
-        this.documentBuilderFactory.setNamespaceAware(true);
-        this.documentBuilderFactory.setExpandEntityReferences(true);
-        this.documentBuilderFactory.setIgnoringComments(true);
-        this.documentBuilderFactory.setXIncludeAware(true);
+        this(new GitHubSpecificationSource(), DEFAULT_PARALLELISM, Optional.empty());
+    }
+
+    /**
+     * @param parallelism the maximum number of specification files read concurrently
+     */
+    public TeiAllGitHubReader(SpecificationSource source, int parallelism, Optional<SpecificationPartCache> cache) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(Integer.toString(parallelism));
+        }
+        this.source = source;
+        this.parallelism = parallelism;
+        this.cache = cache;
     }
 
+    /**
+     * Usage: <code>[--specs &lt;directory&gt;] [--cache &lt;directory&gt;] [--parallelism &lt;n&gt;] [--streaming]
+     * &lt;source&gt; &lt;output file&gt;</code>; without a local specification directory, specifications are read from
+     * GitHub.
+     */
     public static void main(String... args) {
         try {
-            final ArrayDeque<String> argDeque = Arrays.stream(args).collect(Collectors.toCollection(ArrayDeque::new));
-            final String source = Optional.ofNullable(argDeque.pop()).orElseThrow(IllegalArgumentException::new);
-            final File outputFile = Optional.ofNullable(argDeque.pop()).map(File::new).orElseThrow(IllegalArgumentException::new);
-
-            try (PrintWriter outputWriter = new PrintWriter(Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8))) {
-                final Transformer transformer = TransformerFactory.newInstance().newTransformer();
-                transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-                transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-                transformer.transform(new DOMSource(new TeiAllGitHubReader().specification(source)), new StreamResult(outputWriter));
+            final Deque<String> argDeque = Arrays.stream(args).collect(Collectors.toCollection(ArrayDeque::new));
+            SpecificationSource specificationSource = null;
+            SpecificationPartCache cache = null;
+            int parallelism = DEFAULT_PARALLELISM;
+            boolean streaming = false;
+            while (!argDeque.isEmpty() && argDeque.peek().startsWith("--")) {
+                final String option = argDeque.pop();
+                if ("--streaming".equals(option)) {
+                    streaming = true;
+                    continue;
+                }
+                final String value = Optional.ofNullable(argDeque.poll()).orElseThrow(IllegalArgumentException::new);
+                switch (option) {
+                    case "--specs":
+                        specificationSource = new LocalSpecificationSource(Paths.get(value));
+                        break;
+                    case "--cache":
+                        cache = SpecificationPartCache.open(Paths.get(value));
+                        break;
+                    case "--parallelism":
+                        parallelism = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(option);
+                }
+            }
+            final String source = Optional.ofNullable(argDeque.poll()).orElseThrow(IllegalArgumentException::new);
+            final File outputFile = Optional.ofNullable(argDeque.poll()).map(File::new).orElseThrow(IllegalArgumentException::new);
+
+            final TeiAllGitHubReader reader = new TeiAllGitHubReader(
+                    Optional.ofNullable(specificationSource).orElseGet(GitHubSpecificationSource::new),
+                    parallelism,
+                    Optional.ofNullable(cache)
+            );
+            try (OutputStream out = Files.newOutputStream(outputFile.toPath())) {
+                if (streaming) {
+                    reader.writeStreaming(source, out);
+                } else {
+                    reader.write(source, out);
+                }
+            }
+            if (cache != null) {
+                cache.commit();
             }
         } catch (Throwable t) {
             t.printStackTrace();
         }
     }
 
-    public Document specification(String source) throws ParserConfigurationException {
-        final Document specification = documentBuilderFactory.newDocumentBuilder().newDocument();
-        final Element schemaSpec = (Element) specification.appendChild(specification.createElementNS(Namespaceable.DEFAULT_NS_STR, "schemaSpec"));
-        schemaSpec.setAttribute("ident", "tei_all");
-        schemaSpec.setAttribute("start", "TEI teiCorpus");
-        schemaSpec.setAttribute("prefix", "TEI_");
-        schemaSpec.setAttribute("source", source);
-        
-        specificationDocuments()
-                .toSortedList((d1, d2) -> d1.getDocumentElement().getAttribute("ident").compareTo(d2.getDocumentElement().getAttribute("ident")))
-                .toBlocking()
-                .single()
-                .forEach(part -> schemaSpec.appendChild(specification.importNode(part.getDocumentElement(), true)));
-        
-        return specification;
+    /**
+     * Writes a <code>schemaSpec</code> holding all specifications, ordered by their identifiers.
+     */
+    public void write(String source, OutputStream out) throws XMLStreamException {
+        final List<SpecificationPart> parts = specificationParts().toSortedList().toBlocking().single();
+
+        final XMLEventWriter xml = XML.copyingOutputFactory().createXMLEventWriter(out, "UTF-8");
+        startSchemaSpec(xml, source);
+        for (SpecificationPart part : parts) {
+            xml.add(EVENTS.createCharacters("\n  "));
+            part.write(xml);
+        }
+        endSchemaSpec(xml);
     }
-    
-    public Observable<Document> specificationDocuments() {
-        return specificationParts().flatMap(url -> Observable.<Document>create(subscriber -> {
-            try (InputStream xmlStream = url.openStream()) {
-                subscriber.onNext(documentBuilderFactory.newDocumentBuilder().parse(xmlStream));
-                subscriber.onCompleted();
-            } catch (IOException | SAXException | ParserConfigurationException e) {
-                subscriber.onError(e);
+
+    /**
+     * Writes a <code>schemaSpec</code> like {@link #write(String, OutputStream)}, without holding the parsed
+     * specifications in memory.
+     * <p>
+     * Each specification is stored in the {@link SpecificationPartCache cache} as soon as it has been parsed, or in a
+     * temporary one if there is none; only the identifiers and files of stored specifications are kept and sorted.
+     * The sorted files are then copied into the output one after the other, without parsing them again.
+     */
+    public void writeStreaming(String source, OutputStream out) throws IOException, XMLStreamException {
+        final SpecificationPartCache partCache = (cache.isPresent() ? cache.get() : SpecificationPartCache.open(Files.createTempDirectory("tei-parts")));
+        try {
+            final List<SpecificationPartCache.StoredPart> parts = storedParts(partCache).toSortedList().toBlocking().single();
+
+            final XMLEventWriter xml = XML.copyingOutputFactory().createXMLEventWriter(out, "UTF-8");
+            startSchemaSpec(xml, source);
+            for (SpecificationPartCache.StoredPart part : parts) {
+                xml.add(EVENTS.createCharacters("\n  "));
+                xml.flush();
+                Files.copy(part.getFile(), out);
             }
-        }).subscribeOn(Schedulers.io()));
+            endSchemaSpec(xml);
+        } finally {
+            if (!cache.isPresent()) {
+                try (Stream<Path> files = Files.walk(partCache.directory)) {
+                    for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
     }
-    
-    public Observable<URL> specificationParts() {
-        return Observable.create((Subscriber<? super URL> subscriber) -> {
-            try {
-                final URL root = new URL(String.format("https://api.github.com/repos/%s/contents/P5/Source/Specs?ref=%s",
-                        System.getProperty("github.repo", "hcayless/TEI-Guidelines"),
-                        System.getProperty("github.repo.ref", "master")
-                ));
-                
-                final Queue<URL> directories = new LinkedList<>(Collections.singleton(root));
-                while (!subscriber.isUnsubscribed() && !directories.isEmpty()) {
-                    Json.createReader(gitHub(directories.remove()).getInputStream()).readArray().forEach(ghEntry -> {
+
+    /**
+     * Reads all specifications straight into a schema, without assembling a <code>schemaSpec</code> and parsing it
+     * again.
+     * <p>
+     * Each specification file is parsed into a {@link Specification} concurrently; given a
+     * {@link SpecificationPartCache cache}, unchanged files are parsed from their cached events instead. Files of
+     * other specification types than those of a {@link Schema} are skipped.
+     *
+     * @param lazyContent whether to defer compiling content models to their first use
+     * @see Specification#from(StartElement, XMLEventReader, boolean)
+     */
+    public Schema schema(boolean lazyContent) {
+        final List<Specification> specifications = concurrently(entry -> specification(entry, lazyContent))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .toList().toBlocking().single();
+        return Schema.of("tei_all", "TEI_", new HashSet<>(Arrays.asList("TEI", "teiCorpus")), specifications);
+    }
+
+    private static void startSchemaSpec(XMLEventWriter xml, String source) throws XMLStreamException {
+        xml.add(EVENTS.createStartDocument("UTF-8", "1.0"));
+        xml.add(EVENTS.createStartElement("", Namespaceable.DEFAULT_NS_STR, "schemaSpec"));
+        xml.add(EVENTS.createNamespace(Namespaceable.DEFAULT_NS_STR));
+        xml.add(EVENTS.createAttribute("ident", "tei_all"));
+        xml.add(EVENTS.createAttribute("start", "TEI teiCorpus"));
+        xml.add(EVENTS.createAttribute("prefix", "TEI_"));
+        xml.add(EVENTS.createAttribute("source", source));
+    }
+
+    private static void endSchemaSpec(XMLEventWriter xml) throws XMLStreamException {
+        xml.add(EVENTS.createCharacters("\n"));
+        xml.add(EVENTS.createEndElement("", Namespaceable.DEFAULT_NS_STR, "schemaSpec"));
+        xml.add(EVENTS.createEndDocument());
+        xml.close();
+    }
+
+    /**
+     * @return the parsed specification files, in the order of their completion
+     */
+    public Observable<SpecificationPart> specificationParts() {
+        return concurrently(this::part);
+    }
+
+    /**
+     * @return the stored specification files, in the order of their completion
+     */
+    public Observable<SpecificationPartCache.StoredPart> storedParts(SpecificationPartCache partCache) {
+        return concurrently(partCache::store);
+    }
+
+    private <T> Observable<T> concurrently(EntryFunction<T> function) {
+        return Observable.using(
+                () -> Executors.newFixedThreadPool(parallelism),
+                executor -> {
+                    final Scheduler scheduler = Schedulers.from(executor);
+                    return source.entries().flatMap(entry -> Observable.defer(() -> {
                         try {
-                            final JsonObject ghEntryObject = (JsonObject) ghEntry;
-                            final URL entryUrl = new URL(ghEntryObject.getString("url"));
-                            switch (ghEntryObject.getString("type", "")) {
-                                case "dir":
-                                    directories.add(entryUrl);
-                                    break;
-                                case "file":
-                                    if (entryUrl.getPath().endsWith(".xml")) {
-                                        subscriber.onNext(new URL(ghEntryObject.getString("download_url")));
-                                    }
-                            }
-                        } catch (RuntimeException e) {
-                            throw e;
-                        } catch (Throwable t) {
-                            throw new RuntimeException(t);
+                            return Observable.just(function.apply(entry));
+                        } catch (IOException | XMLStreamException | IllegalSchemaException e) {
+                            return Observable.<T>error(e);
                         }
-                    });
+                    }).subscribeOn(scheduler));
+                },
+                ExecutorService::shutdown
+        );
+    }
+
+    @FunctionalInterface
+    private interface EntryFunction<T> {
+        T apply(SpecificationSource.Entry entry) throws IOException, XMLStreamException, IllegalSchemaException;
+    }
+
+    private SpecificationPart part(SpecificationSource.Entry entry) throws IOException, XMLStreamException {
+        if (cache.isPresent()) {
+            return cache.get().part(entry);
+        }
+        try (InputStream xmlStream = entry.open()) {
+            return SpecificationPart.parse(xmlStream);
+        }
+    }
+
+    private Optional<Specification> specification(SpecificationSource.Entry entry, boolean lazyContent) throws IOException, XMLStreamException, IllegalSchemaException {
+        if (cache.isPresent()) {
+            return specification(cache.get().part(entry).reader(), lazyContent);
+        }
+        try (InputStream xmlStream = entry.open()) {
+            return specification(XML.inputFactory().createXMLEventReader(xmlStream), lazyContent);
+        }
+    }
+
+    private static Optional<Specification> specification(XMLEventReader xml, boolean lazyContent) throws XMLStreamException, IllegalSchemaException {
+        try {
+            while (xml.hasNext()) {
+                final XMLEvent event = xml.nextEvent();
+                if (event.isStartElement()) {
+                    final StartElement root = event.asStartElement();
+                    if (!Namespaceable.DEFAULT_NS_STR.equals(root.getName().getNamespaceURI())) {
+                        return Optional.empty();
+                    }
+                    switch (root.getName().getLocalPart()) {
+                        case "elementSpec":
+                        case "classSpec":
+                        case "macroSpec":
+                            return Optional.of(Specification.from(root, xml, lazyContent));
+                        default:
+                            return Optional.empty();
+                    }
                 }
-                subscriber.onCompleted();
-            } catch (Throwable t) {
-                subscriber.onError(t);
             }
-        });
-    }
-    
-    private URLConnection gitHub(URL url) throws IOException {
-        final URLConnection connection = url.openConnection();
-        connection.setRequestProperty("Authorization", ghBasicAuth);
-        return connection;
+            throw new XMLStreamException("No root element");
+        } finally {
+            xml.close();
+        }
     }
 }
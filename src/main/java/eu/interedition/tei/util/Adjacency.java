@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Directed graph over dense integer vertices, stored in compressed sparse row form: the targets of all edges in one
+ * array, ordered by source vertex, and per vertex the offset of its first edge.
+ * <p>
+ * The targets of each vertex are sorted and free of duplicates. Vertices and edges can be added and edges removed in
+ * place; the targets of vertices updated that way are held in arrays of their own, leaving the compressed ones
+ * untouched. Updates are not safe for concurrent access.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class Adjacency {
+
+    private static final int[] EMPTY = new int[0];
+
+    final int[] offsets;
+    final int[] targets;
+    private int size;
+    private int edges;
+
+    /**
+     * Targets of the vertices updated in place, by source vertex; <code>null</code> until the first update.
+     */
+    private int[][] rows;
+
+    Adjacency(int[] offsets, int[] targets) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.size = offsets.length - 1;
+        this.edges = targets.length;
+    }
+
+    /**
+     * Creates an adjacency structure from string-keyed edges. Edges whose source or target is not part of the
+     * respective symbol table are omitted.
+     */
+    public static Adjacency of(Map<String, ? extends Collection<String>> edges, SymbolTable sources, SymbolTable targets) {
+        final Builder builder = new Builder(sources.size());
+        for (Map.Entry<String, ? extends Collection<String>> edge : edges.entrySet()) {
+            final int source = sources.id(edge.getKey());
+            if (source == SymbolTable.NONE) {
+                continue;
+            }
+            for (String targetSymbol : edge.getValue()) {
+                final int target = targets.id(targetSymbol);
+                if (target != SymbolTable.NONE) {
+                    builder.add(source, target);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int edges() {
+        return edges;
+    }
+
+    public int degree(int source) {
+        final int[] row = row(source);
+        return (row == null ? offsets[source + 1] - offsets[source] : row.length);
+    }
+
+    public int target(int source, int index) {
+        final int[] row = row(source);
+        return (row == null ? targets[offsets[source] + index] : row[index]);
+    }
+
+    public int[] targets(int source) {
+        final int[] row = row(source);
+        return (row == null ? Arrays.copyOfRange(targets, offsets[source], offsets[source + 1]) : row.clone());
+    }
+
+    public boolean contains(int source, int target) {
+        final int[] row = row(source);
+        return (row == null
+                ? Arrays.binarySearch(targets, offsets[source], offsets[source + 1], target) >= 0
+                : Arrays.binarySearch(row, target) >= 0);
+    }
+
+    public void forEach(int source, IntConsumer consumer) {
+        final int[] row = row(source);
+        if (row == null) {
+            for (int ec = offsets[source], end = offsets[source + 1]; ec < end; ec++) {
+                consumer.accept(targets[ec]);
+            }
+        } else {
+            for (int target : row) {
+                consumer.accept(target);
+            }
+        }
+    }
+
+    /**
+     * Adds vertices without edges, up to the given number of vertices.
+     */
+    public void grow(int size) {
+        if (size <= this.size) {
+            return;
+        }
+        if (rows == null || rows.length < size) {
+            rows = Arrays.copyOf(rows == null ? new int[0][] : rows, Math.max(size, this.size * 2));
+        }
+        Arrays.fill(rows, this.size, size, EMPTY);
+        this.size = size;
+    }
+
+    /**
+     * @return whether the edge has not been part of the graph
+     */
+    public boolean add(int source, int target) {
+        if (target < 0) {
+            throw new IndexOutOfBoundsException(source + " -> " + target);
+        }
+        final int[] row = update(source);
+        final int index = Arrays.binarySearch(row, target);
+        if (index >= 0) {
+            return false;
+        }
+        final int insertion = -index - 1;
+        final int[] added = new int[row.length + 1];
+        System.arraycopy(row, 0, added, 0, insertion);
+        added[insertion] = target;
+        System.arraycopy(row, insertion, added, insertion + 1, row.length - insertion);
+        rows[source] = added;
+        edges++;
+        return true;
+    }
+
+    /**
+     * @return whether the edge has been part of the graph
+     */
+    public boolean remove(int source, int target) {
+        final int[] row = update(source);
+        final int index = Arrays.binarySearch(row, target);
+        if (index < 0) {
+            return false;
+        }
+        final int[] removed = new int[row.length - 1];
+        System.arraycopy(row, 0, removed, 0, index);
+        System.arraycopy(row, index + 1, removed, index, removed.length - index);
+        rows[source] = removed;
+        edges--;
+        return true;
+    }
+
+    /**
+     * Removes all edges of the given source vertex.
+     */
+    public void clear(int source) {
+        edges -= update(source).length;
+        rows[source] = EMPTY;
+    }
+
+    private int[] row(int source) {
+        if (rows == null) {
+            return null;
+        }
+        if (source < 0 || source >= size) {
+            throw new IndexOutOfBoundsException(Integer.toString(source));
+        }
+        return rows[source];
+    }
+
+    private int[] update(int source) {
+        if (rows == null) {
+            rows = new int[size][];
+        }
+        int[] row = row(source);
+        if (row == null) {
+            rows[source] = row = Arrays.copyOfRange(targets, offsets[source], offsets[source + 1]);
+        }
+        return row;
+    }
+
+    /**
+     * @return a read-only view of the edges by the symbols of their vertices, keyed by all source vertices with at
+     * least one edge, in the order of their identifiers
+     */
+    public Map<String, Set<String>> asMap(SymbolTable sources, SymbolTable targets) {
+        return new AbstractMap<String, Set<String>>() {
+            @Override
+            public Set<String> get(Object key) {
+                final int source = (key instanceof String ? sources.id((String) key) : SymbolTable.NONE);
+                return (source == SymbolTable.NONE || source >= Adjacency.this.size() || degree(source) == 0 ? null : targets(source, targets));
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Entry<String, Set<String>>> entrySet() {
+                return new AbstractSet<Entry<String, Set<String>>>() {
+                    @Override
+                    public Iterator<Entry<String, Set<String>>> iterator() {
+                        return new Iterator<Entry<String, Set<String>>>() {
+                            int next = advance(0);
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < Adjacency.this.size();
+                            }
+
+                            @Override
+                            public Entry<String, Set<String>> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final int source = next;
+                                next = advance(source + 1);
+                                return new SimpleImmutableEntry<>(sources.symbol(source), targets(source, targets));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        int size = 0;
+                        for (int source = 0; source < Adjacency.this.size(); source++) {
+                            if (degree(source) > 0) {
+                                size++;
+                            }
+                        }
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    private int advance(int source) {
+        while (source < size() && degree(source) == 0) {
+            source++;
+        }
+        return source;
+    }
+
+    private Set<String> targets(int source, SymbolTable symbols) {
+        return new AbstractSet<String>() {
+            @Override
+            public boolean contains(Object o) {
+                final int target = (o instanceof String ? symbols.id((String) o) : SymbolTable.NONE);
+                return target != SymbolTable.NONE && Adjacency.this.contains(source, target);
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    final int degree = degree(source);
+                    int ec = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return ec < degree;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return symbols.symbol(target(source, ec++));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return degree(source);
+            }
+        };
+    }
+
+    public Adjacency transpose() {
+        return transpose(size());
+    }
+
+    /**
+     * @param size the number of target vertices, i.e. the number of vertices of the transposed graph
+     */
+    public Adjacency transpose(int size) {
+        final Builder builder = new Builder(size);
+        for (int vc = 0; vc < size(); vc++) {
+            final int source = vc;
+            forEach(source, target -> builder.add(target, source));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects edges in arbitrary order.
+     */
+    public static class Builder {
+
+        private final int size;
+        private long[] edges = new long[64];
+        private int count;
+
+        public Builder(int size) {
+            this.size = size;
+        }
+
+        public Builder add(int source, int target) {
+            if (source < 0 || source >= size || target < 0) {
+                throw new IndexOutOfBoundsException(source + " -> " + target);
+            }
+            if (count == edges.length) {
+                edges = Arrays.copyOf(edges, count * 2);
+            }
+            edges[count++] = ((long) source << 32) | (target & 0xffffffffL);
+            return this;
+        }
+
+        public Adjacency build() {
+            final long[] sorted = Arrays.copyOf(edges, count);
+            Arrays.sort(sorted);
+
+            final int[] offsets = new int[size + 1];
+            final int[] targets = new int[count];
+            int edgeCount = 0;
+            long last = -1;
+            for (long edge : sorted) {
+                if (edge == last) {
+                    continue;
+                }
+                last = edge;
+                offsets[(int) (edge >>> 32) + 1]++;
+                targets[edgeCount++] = (int) edge;
+            }
+            for (int vc = 0; vc < size; vc++) {
+                offsets[vc + 1] += offsets[vc];
+            }
+            return new Adjacency(offsets, Arrays.copyOf(targets, edgeCount));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes characters UTF-8-encoded to a byte channel.
+ * <p>
+ * Characters are copied in bulk into a char buffer, which is encoded in one go and written to the channel whenever it
+ * holds more than the flush threshold, so that encoding does not take place per written token. Buffers and encoders are
+ * pooled and returned to the pool when the writer is closed, so that writers can be created cheaply for each of many
+ * outputs. Closing a writer does not close the underlying channel.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class ChannelWriter extends Writer {
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 32 * 1024;
+
+    private static final ConcurrentLinkedQueue<Buffers> POOL = new ConcurrentLinkedQueue<>();
+    private static final int POOL_LIMIT = 16;
+
+    private final WritableByteChannel channel;
+    private final int flushThreshold;
+    private Buffers buffers;
+    private char[] chars;
+    private int position;
+
+    public ChannelWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * @param flushThreshold the number of buffered characters, beyond which they are encoded and written to the channel
+     */
+    public ChannelWriter(WritableByteChannel channel, int flushThreshold) {
+        if (flushThreshold < 1) {
+            throw new IllegalArgumentException(Integer.toString(flushThreshold));
+        }
+        this.channel = channel;
+        this.flushThreshold = flushThreshold;
+        this.buffers = Buffers.acquire(flushThreshold);
+        this.chars = buffers.chars;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        chars[position++] = (char) c;
+        if (position >= flushThreshold) {
+            drain(false);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            final int chunk = Math.min(len, chars.length - position);
+            str.getChars(off, off + chunk, chars, position);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+            if (position >= flushThreshold) {
+                drain(false);
+            }
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            final int chunk = Math.min(len, chars.length - position);
+            System.arraycopy(cbuf, off, chars, position, chunk);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+            if (position >= flushThreshold) {
+                drain(false);
+            }
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        final String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffers != null) {
+            try {
+                drain(true);
+            } finally {
+                buffers.release();
+                buffers = null;
+                chars = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes and writes all buffered characters; unless at the end of input, a trailing high surrogate is kept
+     * in the buffer until its low surrogate has been written.
+     */
+    private void drain(boolean endOfInput) throws IOException {
+        final CharsetEncoder encoder = buffers.encoder;
+        final ByteBuffer bytes = buffers.bytes;
+        final CharBuffer in = CharBuffer.wrap(chars, 0, position);
+        while (true) {
+            final CoderResult result = encoder.encode(in, bytes, endOfInput);
+            write(bytes);
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                write(bytes);
+            }
+            write(bytes);
+            encoder.reset();
+        }
+        final int remaining = in.remaining();
+        System.arraycopy(chars, in.position(), chars, 0, remaining);
+        position = remaining;
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffers == null) {
+            throw new IOException("Writer closed");
+        }
+    }
+
+    private static class Buffers {
+        final char[] chars;
+        final ByteBuffer bytes;
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private Buffers(int size) {
+            // one slot beyond the threshold for a high surrogate kept back from encoding
+            this.chars = new char[size + 1];
+            this.bytes = ByteBuffer.allocate(size * 3 + 16);
+        }
+
+        static Buffers acquire(int flushThreshold) {
+            for (Buffers pooled = POOL.poll(); pooled != null; pooled = POOL.poll()) {
+                if (pooled.chars.length > flushThreshold) {
+                    pooled.bytes.clear();
+                    pooled.encoder.reset();
+                    return pooled;
+                }
+            }
+            return new Buffers(Math.max(flushThreshold, DEFAULT_FLUSH_THRESHOLD));
+        }
+
+        void release() {
+            if (POOL.size() < POOL_LIMIT) {
+                POOL.offer(this);
+            }
+        }
+    }
+}
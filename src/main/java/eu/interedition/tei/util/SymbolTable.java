@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns dense integer identifiers to strings, in the order of their addition.
+ * <p>
+ * Lookups go through an open-addressing hash table of primitive slots, so neither lookups nor the table itself box
+ * any identifiers. Tables are meant to be filled once and then shared; they are not safe for concurrent updates.
+ * Removed symbols leave their identifier unassigned, as identifiers are never reused.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class SymbolTable {
+
+    public static final int NONE = -1;
+
+    private String[] symbols;
+    private int[] slots;
+    private int size;
+
+    public SymbolTable() {
+        this(16);
+    }
+
+    public SymbolTable(int expectedSize) {
+        this.symbols = new String[Math.max(expectedSize, 1)];
+        this.slots = new int[tableSize(expectedSize)];
+    }
+
+    public static SymbolTable of(Iterable<String> symbols) {
+        final SymbolTable table = new SymbolTable();
+        for (String symbol : symbols) {
+            table.add(symbol);
+        }
+        return table;
+    }
+
+    /**
+     * @return the identifier of the given symbol, which is assigned the next free one if it has not been added before
+     */
+    public int add(String symbol) {
+        int slot = slot(symbol);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        symbols[size] = symbol;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * @return the identifier of the given symbol or {@link #NONE}
+     */
+    public int id(String symbol) {
+        return slots[slot(symbol)] - 1;
+    }
+
+    public boolean contains(String symbol) {
+        return id(symbol) != NONE;
+    }
+
+    /**
+     * @return whether the symbol has been part of the table
+     */
+    public boolean remove(String symbol) {
+        final int slot = slot(symbol);
+        if (slots[slot] == 0) {
+            return false;
+        }
+        symbols[slots[slot] - 1] = null;
+        slots[slot] = 0;
+
+        // re-insert the remainder of the probe sequence, which may have passed the freed slot
+        final int mask = slots.length - 1;
+        for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            final int entry = slots[next];
+            slots[next] = 0;
+            slots[slot(symbols[entry - 1])] = entry;
+        }
+        return true;
+    }
+
+    /**
+     * @return the symbol with the given identifier, or <code>null</code> if it has been removed
+     */
+    public String symbol(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException(Integer.toString(id));
+        }
+        return symbols[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<String> symbols() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return symbol(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return a table assigning the same identifiers, to which symbols can be added independently of this one
+     */
+    public SymbolTable copy() {
+        final SymbolTable copy = new SymbolTable(0);
+        copy.symbols = symbols.clone();
+        copy.slots = slots.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private int slot(String symbol) {
+        final int mask = slots.length - 1;
+        int slot = mix(symbol.hashCode()) & mask;
+        while (slots[slot] != 0 && !symbols[slots[slot] - 1].equals(symbol)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        final int mask = slots.length - 1;
+        for (int sc = 0; sc < size; sc++) {
+            if (symbols[sc] == null) {
+                continue;
+            }
+            int slot = mix(symbols[sc].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = sc + 1;
+        }
+    }
+
+    private static int tableSize(int expectedSize) {
+        return Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+    }
+
+    private static int mix(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return symbols().toString();
+    }
+}
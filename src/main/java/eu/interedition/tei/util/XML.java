@@ -38,6 +38,7 @@ import java.util.regex.Pattern;
 public class XML {
 
     private static XMLOutputFactory outputFactory;
+    private static XMLOutputFactory copyingOutputFactory;
     private static XMLInputFactory inputFactory;
 
     public static String requiredAttr(StartElement element, String attributeName) {
@@ -49,7 +50,7 @@ public class XML {
         return Optional.ofNullable(attribute).map(Attribute::getValue).filter(s -> !s.isEmpty());
     }
 
-    public static XMLOutputFactory outputFactory() {
+    public static synchronized XMLOutputFactory outputFactory() {
         if (outputFactory == null) {
             outputFactory = XMLOutputFactory.newInstance();
             outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
@@ -57,7 +58,19 @@ public class XML {
         return outputFactory;
     }
 
-    public static XMLInputFactory inputFactory() {
+    /**
+     * @return a factory of writers, which declare namespaces exactly as the written events do, e.g. to copy recorded
+     * events verbatim
+     */
+    public static synchronized XMLOutputFactory copyingOutputFactory() {
+        if (copyingOutputFactory == null) {
+            copyingOutputFactory = XMLOutputFactory.newInstance();
+            copyingOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, false);
+        }
+        return copyingOutputFactory;
+    }
+
+    public static synchronized XMLInputFactory inputFactory() {
         if (inputFactory == null) {
             inputFactory = XMLInputFactory.newFactory();
             inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 The Interedition Development Group.
+ *
+ * This file is part of TEI Schema Tools.
+ *
+ * TEI Schema Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TEI Schema Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the project. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.interedition.tei.util;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * A recorded slice of a StAX event stream, which can be replayed any number of times and from any thread.
+ *
+ * @author <a href="http://gregor.middell.net/" title="Homepage">Gregor Middell</a>
+ */
+public class XMLEventBuffer extends ArrayList<XMLEvent> {
+
+    public XMLEventBuffer() {
+        super();
+    }
+
+    public XMLEventBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * Records all events up to and including the end tag matching the given, already consumed start element.
+     */
+    public static XMLEventBuffer element(StartElement element, XMLEventReader xml) throws XMLStreamException {
+        final XMLEventBuffer buffer = new XMLEventBuffer();
+        int depth = 0;
+        while (xml.hasNext()) {
+            final XMLEvent event = xml.nextEvent();
+            buffer.add(event);
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                if (depth-- == 0) {
+                    break;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    public XMLEventReader reader() {
+        return new Reader();
+    }
+
+    private class Reader implements XMLEventReader {
+
+        private int position = 0;
+
+        @Override
+        public XMLEvent nextEvent() throws XMLStreamException {
+            if (position >= size()) {
+                throw new NoSuchElementException();
+            }
+            return get(position++);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < size();
+        }
+
+        @Override
+        public XMLEvent peek() throws XMLStreamException {
+            return (position < size() ? get(position) : null);
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            final StringBuilder text = new StringBuilder();
+            while (hasNext()) {
+                final XMLEvent event = nextEvent();
+                if (event.isEndElement()) {
+                    return text.toString();
+                } else if (event.isCharacters()) {
+                    text.append(event.asCharacters().getData());
+                } else if (event.isStartElement()) {
+                    throw new XMLStreamException("Element text contains markup", event.getLocation());
+                }
+            }
+            throw new XMLStreamException("Unexpected end of buffer");
+        }
+
+        @Override
+        public XMLEvent nextTag() throws XMLStreamException {
+            while (hasNext()) {
+                final XMLEvent event = nextEvent();
+                switch (event.getEventType()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                    case XMLStreamConstants.END_ELEMENT:
+                        return event;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        if (!event.asCharacters().isWhiteSpace()) {
+                            throw new XMLStreamException("Non-whitespace text before next tag", event.getLocation());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        break;
+                    default:
+                        throw new XMLStreamException("Unexpected event before next tag", event.getLocation());
+                }
+            }
+            throw new XMLStreamException("Unexpected end of buffer");
+        }
+
+        @Override
+        public Object getProperty(String name) throws IllegalArgumentException {
+            throw new IllegalArgumentException(name);
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            position = size();
+        }
+
+        @Override
+        public Object next() {
+            try {
+                return nextEvent();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
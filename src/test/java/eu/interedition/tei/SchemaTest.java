@@ -19,14 +19,63 @@
 
 package eu.interedition.tei;
 
+import eu.interedition.tei.rng.Datatype;
+import eu.interedition.tei.rng.NamespaceCollector;
+import eu.interedition.tei.rng.Pattern;
+import eu.interedition.tei.rng.PatternBuilder;
+import eu.interedition.tei.rng.RelaxCompactSerializer;
+import eu.interedition.tei.rng.ValueMatcher;
+import eu.interedition.tei.tools.LocalSpecificationSource;
+import eu.interedition.tei.tools.SpecificationPartCache;
+import eu.interedition.tei.tools.TeiAllGitHubReader;
+import eu.interedition.tei.util.Adjacency;
+import eu.interedition.tei.util.ChannelWriter;
+import eu.interedition.tei.util.LocalizedStrings;
+import eu.interedition.tei.util.SymbolTable;
+import eu.interedition.tei.util.XML;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.kohsuke.rngom.digested.DSchemaBuilderImpl;
+import org.kohsuke.rngom.parse.compact.CompactParseable;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.InputSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -36,13 +85,727 @@ public class SchemaTest {
 
     private static final Logger LOG = Logger.getLogger(SchemaTest.class.getName());
 
+    private static Schema teiAll;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void readTeiAll() throws Exception {
+        try (InputStream xmlStream = SchemaTest.class.getResourceAsStream("/tei-all.xml")) {
+            teiAll = Schema.read(xmlStream);
+        }
+    }
+
     @Test
     public void readSchema() throws Exception {
+        SpecificationGraph.create(teiAll)
+                .specificationDependencies
+                .forEach((id, dependencies) -> LOG.fine(() -> Stream.of(id, dependencies).map(Object::toString).collect(Collectors.joining(" - "))));
+    }
+
+    @Test
+    public void indexGraph() throws Exception {
+        final SpecificationGraph graph = SpecificationGraph.create(teiAll);
+        final SymbolTable ids = graph.getSpecificationIds();
+        final Adjacency dependencies = graph.getSpecificationDependencies();
+        graph.specificationDependencies.forEach((id, targets) -> {
+            final int source = ids.id(id);
+            Assert.assertEquals(targets.size(), dependencies.degree(source));
+            targets.forEach(target -> Assert.assertTrue(dependencies.contains(source, ids.id(target))));
+        });
+        graph.moduleMembers.forEach((module, members) -> Assert.assertEquals(
+                members.size(),
+                graph.getModuleMembers().degree(graph.getModuleIds().id(module))
+        ));
+    }
+
+    @Test
+    public void reachability() throws Exception {
+        final Schema schema = teiAll;
+        final SpecificationGraph graph = SpecificationGraph.create(schema);
+        final Adjacency references = graph.getReferences();
+        final Reachability reachability = graph.getReachability();
+
+        final BitSet visited = new BitSet();
+        final Deque<Integer> queue = new ArrayDeque<>();
+        schema.getStart().stream().mapToInt(schema.getIdentifiers()::id).forEach(queue::add);
+        while (!queue.isEmpty()) {
+            final int id = queue.remove();
+            if (!visited.get(id)) {
+                visited.set(id);
+                references.forEach(id, queue::add);
+            }
+        }
+        final SortedSet<String> reachable = reachability.reachableFromStart();
+        Assert.assertEquals(visited.cardinality(), reachable.size());
+        visited.stream().forEach(id -> Assert.assertTrue(reachable.contains(schema.getIdentifiers().symbol(id))));
+
+        Assert.assertTrue(reachability.isReachable("TEI", "p"));
+        Assert.assertTrue(reachability.isReachable("p", "att.global"));
+        Assert.assertTrue(reachability.dependingOn(Collections.singleton("p")).contains("TEI"));
+
+        // physDesc refers to objectDesc only via model.physDescPart_sequenceOptional
+        Assert.assertTrue(reachability.isReachable("physDesc", "objectDesc"));
+        Assert.assertTrue(reachable.contains("objectDesc"));
+        Assert.assertTrue(reachability.dependingOn(Collections.singleton("objectDesc")).contains("physDesc"));
+    }
+
+    @Test
+    public void cacheReferences() throws Exception {
+        final Schema schema = teiAll;
+        final ContentModel content = schema.getSpecifications().get("p").getContent();
+        Assert.assertSame(content.getReferences(), content.getReferences());
+        Assert.assertSame(schema.getReferences(), schema.getReferences());
+
+        final SymbolTable ids = schema.getIdentifiers();
+        final int p = ids.id("p");
+        content.getReferences().stream().filter(ids::contains).forEach(ref -> Assert.assertTrue(schema.getReferences().contains(p, ids.id(ref))));
+    }
+
+    @Test
+    public void updateGraph() throws Exception {
+        final Schema schema = teiAll;
+        final SpecificationGraph graph = SpecificationGraph.create(schema);
+        final Adjacency dependencies = graph.getSpecificationDependencies();
+        final Adjacency references = graph.getReferences();
+        final List<String> updated = Arrays.asList("p", "model.pLike", "att.global", "macro.paraContent");
+        final SymbolTable ids = graph.getSpecificationIds();
+        final int unrelated = IntStream.range(0, ids.size())
+                .filter(id -> dependencies.degree(id) > 0 && !updated.contains(ids.symbol(id)))
+                .filter(id -> Arrays.stream(dependencies.targets(id)).mapToObj(ids::symbol).noneMatch(updated::contains))
+                .findFirst().getAsInt();
+        final int[] unrelatedDependencies = dependencies.targets(unrelated);
+
+        for (String ident : updated) {
+            final Map<String, Specification> specifications = new HashMap<>(schema.specifications);
+            final Specification removed = specifications.remove(ident);
+            final SpecificationGraph expected = SpecificationGraph.create(new Schema(
+                    schema.ident, schema.prefix, schema.start, Optional.of(schema.namespace),
+                    schema.modules, schema.elements, schema.macros, schema.classes,
+                    specifications
+            ));
+
+            Assert.assertEquals(Optional.of(removed), graph.remove(ident));
+            assertGraphEquals(expected, graph);
+            Assert.assertFalse(graph.getSpecificationIds().contains(ident));
+
+            Assert.assertEquals(Optional.empty(), graph.put(removed));
+            assertGraphEquals(SpecificationGraph.create(schema), graph);
+        }
+
+        final Specification p = schema.specifications.get("p");
+        final Specification para = new Specification(
+                "para", p.module, p.namespace, p.type, p.specType, p.editOperation, p.descriptions, p.altIdents,
+                p.classesEditOperation, p.classes, p.attributes, p.getContent()
+        );
+        graph.put(para);
+        Assert.assertTrue(graph.classMembers.get("model.pLike").contains("para"));
+        Assert.assertTrue(graph.getReachability().isReachable("TEI", "para"));
+        Assert.assertEquals(Optional.of(para), graph.put(para));
+        Assert.assertEquals(Optional.of(para), graph.remove("para"));
+        assertGraphEquals(SpecificationGraph.create(schema), graph);
+
+        // updated in place, leaving the neighborhoods of unrelated specifications as they are
+        Assert.assertSame(dependencies, graph.getSpecificationDependencies());
+        Assert.assertSame(references, graph.getReferences());
+        Assert.assertEquals(unrelated, graph.getSpecificationIds().id(ids.symbol(unrelated)));
+        Assert.assertArrayEquals(unrelatedDependencies, graph.getSpecificationDependencies().targets(unrelated));
+        Assert.assertTrue(graph.getReachability().isReachable("TEI", "p"));
+    }
+
+    private static void assertGraphEquals(SpecificationGraph expected, SpecificationGraph actual) {
+        Assert.assertEquals(expected.moduleMembers, actual.moduleMembers);
+        Assert.assertEquals(expected.classMembers, actual.classMembers);
+        Assert.assertEquals(expected.specificationDependencies, actual.specificationDependencies);
+        Assert.assertEquals(expected.moduleDependencies, actual.moduleDependencies);
+        Assert.assertEquals(
+                expected.getReferences().asMap(expected.getSpecificationIds(), expected.getSpecificationIds()),
+                actual.getReferences().asMap(actual.getSpecificationIds(), actual.getSpecificationIds())
+        );
+    }
+
+    @Test
+    public void streamSpecifications() throws Exception {
+        final Set<Specification> specifications;
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            specifications = Specification.read(XML.inputFactory().createXMLEventReader(xmlStream));
+        }
         try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
-            SpecificationGraph.create(Schema.read(xmlStream))
-                    .specificationDependencies
-                    .forEach((id, dependencies) -> LOG.fine(() -> Stream.of(id, dependencies).map(Object::toString).collect(Collectors.joining(" - "))));
+            Assert.assertEquals(
+                    specifications,
+                    Specification.stream(XML.inputFactory().createXMLEventReader(xmlStream)).collect(Collectors.toSet())
+            );
         }
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            final Iterator<Specification> it = Specification.iterate(XML.inputFactory().createXMLEventReader(xmlStream));
+            Assert.assertTrue(it.hasNext());
+            Assert.assertTrue(specifications.contains(it.next()));
+        }
+    }
+
+    @Test
+    public void serializeToChannel() throws Exception {
+        for (Specification spec : teiAll.getSpecifications().values()) {
+            final ContentModel content = spec.getContent();
+            if (content == null) {
+                continue;
+            }
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            RelaxCompactSerializer.write(content.grammar, Channels.newChannel(buf), 7);
+            Assert.assertEquals(RelaxCompactSerializer.toString(content.grammar), new String(buf.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        final String str = "ASCII, \u00e4\u00f6\u00fc, \u20ac, \ud834\udd1e";
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ChannelWriter writer = new ChannelWriter(Channels.newChannel(buf), 1)) {
+            writer.write(str);
+        }
+        Assert.assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), buf.toByteArray());
+    }
+
+    @Test
+    public void writeCompactSchema() throws Exception {
+        final Schema schema = teiAll;
+        final SpecificationGraph graph = SpecificationGraph.create(schema);
+        final String rnc = RelaxCompactSchemaWriter.toString(schema, graph);
+
+        new CompactParseable(new InputSource(new StringReader(rnc)), XML.STRICT_ERROR_HANDLER).parse(new DSchemaBuilderImpl());
+
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        RelaxCompactSchemaWriter.write(schema, graph, Channels.newChannel(buf), ForkJoinPool.commonPool());
+        Assert.assertEquals(rnc, new String(buf.toByteArray(), StandardCharsets.UTF_8));
+
+        final Schema renamed = Schema.read(new ByteArrayInputStream(("<schemaSpec ident='test' xmlns='http://www.tei-c.org/ns/1.0' xmlns:rng='http://relaxng.org/ns/structure/1.0'>" +
+                "<classSpec ident='att.rendition' type='atts' module='core'><attList>" +
+                "<attDef ident='rend'><datatype><rng:data type='token'/></datatype></attDef>" +
+                "<attDef ident='style'><datatype><rng:text/></datatype></attDef>" +
+                "</attList></classSpec>" +
+                "<elementSpec ident='p' module='core'><altIdent>para</altIdent><content><rng:text/></content>" +
+                "<attList><attRef class='att.rendition' name='rend'/></attList></elementSpec>" +
+                "</schemaSpec>").getBytes(StandardCharsets.UTF_8)));
+        final String renamedRnc = RelaxCompactSchemaWriter.toString(renamed, SpecificationGraph.create(renamed));
+        Assert.assertTrue(renamedRnc, renamedRnc.contains("element tei:para {"));
+        Assert.assertTrue(renamedRnc, renamedRnc.contains("(text), (attribute rend { xsd:token }?)"));
+    }
+
+    @Test
+    public void namespacePrefixes() throws Exception {
+        final Schema schema = teiAll;
+        final Map<String, String> prefixes = schema.getNamespacePrefixes();
+        Assert.assertSame(prefixes, schema.getNamespacePrefixes());
+        Assert.assertEquals("tei", prefixes.get(Namespaceable.DEFAULT_NS_STR));
+        Assert.assertEquals("teix", prefixes.get("http://www.tei-c.org/ns/Examples"));
+        Assert.assertEquals(prefixes.size(), new HashSet<>(prefixes.values()).size());
+
+        final NamespaceCollector collector = new NamespaceCollector();
+        collector.getNamespaces().add("http://www.w3.org/1998/Math/MathML");
+        collector.getNamespaces().add("http://example.org/ns/custom");
+        collector.getNamespaces().add("http://example.com/custom");
+        Assert.assertEquals("mml", collector.toMapping().get("http://www.w3.org/1998/Math/MathML"));
+        Assert.assertEquals("custom", collector.toMapping().get("http://example.com/custom"));
+        Assert.assertEquals("custom1", collector.toMapping().get("http://example.org/ns/custom"));
+    }
+
+    @Test
+    public void compileCustomization() throws Exception {
+        final Schema base = teiAll;
+        final Schema customization;
+        try (InputStream xmlStream = new FileInputStream(new File(System.getProperty("tei.data", "data"), "tei_bare.odd"))) {
+            customization = Schema.read(xmlStream);
+        }
+
+        final Schema bare = Customization.compile(base, customization);
+        Assert.assertEquals("tei_bare", bare.getIdent());
+        Assert.assertEquals(base.getStart(), bare.getStart());
+
+        final Map<String, Specification> specifications = bare.getSpecifications();
+        Assert.assertTrue(specifications.containsKey("p"));
+        Assert.assertTrue(specifications.containsKey("att.global"));
+        Assert.assertFalse(specifications.containsKey("table"));
+        Assert.assertFalse(specifications.containsKey("att.fragmentable"));
+        Assert.assertSame(base.getSpecifications().get("p"), specifications.get("p"));
+
+        final Set<String> globalAttributes = attributeIdents(specifications.get("att.global").getAttributes());
+        Assert.assertTrue(globalAttributes.contains("xml:id"));
+        Assert.assertFalse(globalAttributes.contains("xml:space"));
+        Assert.assertFalse(globalAttributes.contains("xml:base"));
+        Assert.assertTrue(attributeIdents(base.getSpecifications().get("att.global").getAttributes()).contains("xml:space"));
+        Assert.assertFalse(attributeIdents(specifications.get("title").getAttributes()).contains("level"));
+        Assert.assertSame(base.getSpecifications().get("title").getContent(), specifications.get("title").getContent());
+
+        final Schema parallel = Customization.compile(base, customization, ForkJoinPool.commonPool());
+        Assert.assertEquals(specifications.keySet(), parallel.getSpecifications().keySet());
+        Assert.assertEquals(globalAttributes, attributeIdents(parallel.getSpecifications().get("att.global").getAttributes()));
+
+        try (InputStream xmlStream = new FileInputStream(new File(System.getProperty("tei.data", "data"), "tei_math.odd"))) {
+            final Schema math = Customization.compile(base, Schema.read(xmlStream));
+            Assert.assertTrue(math.getModules().stream().anyMatch(module -> module.getUrl().isPresent()));
+        }
+    }
+
+    @Test
+    public void selectModules() throws Exception {
+        final SpecificationGraph graph = SpecificationGraph.create(teiAll);
+        final SymbolTable ids = graph.getSpecificationIds();
+        for (String odd : Arrays.asList("tei_bare.odd", "tei_lite.odd", "tei_math.odd")) {
+            final Set<ModuleReference> modules;
+            try (InputStream xmlStream = new FileInputStream(new File(System.getProperty("tei.data", "data"), odd))) {
+                modules = Schema.read(xmlStream).getModules();
+            }
+            final BitSet expected = new BitSet();
+            for (int id = 0; id < ids.size(); id++) {
+                final Specification specification = graph.getSpecifications().get(ids.symbol(id));
+                final Reference reference = new Reference(specification.getIdent());
+                for (ModuleReference module : modules) {
+                    if (!module.getUrl().isPresent()
+                            && specification.getModule().filter(module.getKey()::equals).isPresent()
+                            && (!Specification.Type.ELEMENT.equals(specification.getType())
+                            || ((module.included.isEmpty() || module.included.contains(reference))
+                            && !module.excluded.contains(reference)))) {
+                        expected.set(id);
+                    }
+                }
+            }
+            final BitSet selected = graph.select(modules);
+            Assert.assertFalse(odd, expected.isEmpty());
+            Assert.assertEquals(odd, expected, selected);
+            if ("tei_lite.odd".equals(odd)) {
+                // the linking module is restricted to anchor and seg, but its classes are kept
+                Assert.assertTrue(selected.get(ids.id("seg")));
+                Assert.assertFalse(selected.get(ids.id("link")));
+                Assert.assertTrue(selected.get(ids.id("att.global.linking")));
+            }
+        }
+    }
+
+    @Test
+    public void pruneUnreachable() throws Exception {
+        final Schema base = teiAll;
+        final Schema bare;
+        try (InputStream xmlStream = new FileInputStream(new File(System.getProperty("tei.data", "data"), "tei_bare.odd"))) {
+            bare = Customization.compile(base, Schema.read(xmlStream));
+        }
+
+        final Pruning pruning = Pruning.prune(bare);
+        LOG.fine(pruning::toString);
+        final Map<String, Specification> pruned = pruning.getSchema().getSpecifications();
+        Assert.assertFalse(pruning.getRemovedSpecifications().isEmpty());
+        Assert.assertTrue(pruning.getRemovedAttributes() > 0);
+        Assert.assertEquals(bare.getSpecifications().size(), pruned.size() + pruning.getRemovedSpecifications().size());
+        Assert.assertTrue(pruned.containsKey("TEI"));
+        Assert.assertTrue(pruned.containsKey("p"));
+        Assert.assertTrue(pruned.containsKey("att.global"));
+        Assert.assertTrue(pruned.containsKey("att.global.rendition"));
+        Assert.assertSame(bare.getSpecifications().get("p"), pruned.get("p"));
+
+        final SpecificationGraph graph = SpecificationGraph.create(pruning.getSchema());
+        Assert.assertEquals(pruned.keySet(), graph.getReachability().reachableFromStart());
+        Assert.assertTrue(Pruning.prune(graph).getRemovedSpecifications().isEmpty());
+
+        final Pruning all = Pruning.prune(teiAll);
+        LOG.fine(all::toString);
+        Assert.assertTrue(all.getSchema().getSpecifications().containsKey("physDesc"));
+        Assert.assertTrue(all.getSchema().getSpecifications().containsKey("objectDesc"));
+        Assert.assertTrue(all.getSchema().getSpecifications().containsKey("channel"));
+    }
+
+    @Test
+    public void cacheCustomizations() throws Exception {
+        final File data = new File(System.getProperty("tei.data", "data"));
+        final byte[] bare = Files.readAllBytes(new File(data, "tei_bare.odd").toPath());
+        final byte[] math = Files.readAllBytes(new File(data, "tei_math.odd").toPath());
+
+        final Path directory = temporaryFolder.newFolder("tei-customizations").toPath();
+        final CustomizationCache cache;
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            cache = new CustomizationCache(xmlStream, 1, directory);
+        }
+        final CustomizationCache.Compiled compiled = cache.compile(bare);
+        Assert.assertSame(compiled, cache.compile(bare));
+        Assert.assertSame(compiled.getGraph(), cache.compile(bare).getGraph());
+        Assert.assertEquals(2, cache.getHits());
+
+        cache.compile(math);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertNotSame(compiled, cache.compile(bare));
+        Assert.assertEquals(3, cache.getMisses());
+
+        final CustomizationCache restarted;
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            restarted = new CustomizationCache(xmlStream, 16, directory);
+        }
+        Assert.assertArrayEquals(cache.baseHash, restarted.baseHash);
+        Assert.assertEquals(
+                compiled.getSchema().getSpecifications().keySet(),
+                restarted.compile(bare).getSchema().getSpecifications().keySet()
+        );
+        try (Stream<Path> snapshots = Files.list(directory)) {
+            Assert.assertEquals(2, snapshots.count());
+        }
+
+        final Path snapshot = directory.resolve(cache.key(math) + CustomizationCache.SNAPSHOT_SUFFIX);
+        final long snapshotSize = Files.size(snapshot);
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.truncate(snapshotSize / 2);
+        }
+        try {
+            SchemaSnapshot.read(snapshot);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("schema snapshot"));
+        }
+        Assert.assertNotNull(restarted.compile(math).getSchema().getSpecifications().get("formula"));
+        Assert.assertEquals(snapshotSize, Files.size(snapshot));
+    }
+
+    private static Set<String> attributeIdents(AttributeList attributes) {
+        final Set<String> idents = new HashSet<>();
+        for (AttributeNode attribute : attributes) {
+            if (attribute instanceof AttributeList) {
+                idents.addAll(attributeIdents((AttributeList) attribute));
+            } else if (attribute instanceof AttributeDefinition) {
+                idents.add(((AttributeDefinition) attribute).getIdent());
+            }
+        }
+        return idents;
+    }
+
+    @Test
+    public void assembleLocalSpecifications() throws Exception {
+        final String tei = " xmlns='http://www.tei-c.org/ns/1.0' xmlns:rng='http://relaxng.org/ns/structure/1.0'";
+        final String lb = "<elementSpec" + tei + " ident='lb' module='core'>" +
+                "<classes><memberOf key='att.x'/><memberOf key='model.y'/></classes>" +
+                "<content><rng:empty/></content></elementSpec>";
+        final Path specs = temporaryFolder.newFolder("tei-specs").toPath();
+        final Path cacheDirectory = temporaryFolder.newFolder("tei-parts").toPath();
+        Files.createDirectories(specs.resolve("classes"));
+        Files.write(specs.resolve("lb.xml"), lb.getBytes(StandardCharsets.UTF_8));
+        Files.write(specs.resolve("classes/att.x.xml"), ("<classSpec" + tei + " ident='att.x' type='atts' module='core'>" +
+                "<attList><attDef ident='x' usage='opt'><datatype><rng:text/></datatype></attDef></attList></classSpec>").getBytes(StandardCharsets.UTF_8));
+        Files.write(specs.resolve("classes/model.y.xml"), ("<classSpec" + tei + " ident='model.y' type='model' module='core'/>").getBytes(StandardCharsets.UTF_8));
+
+        SpecificationPartCache cache = SpecificationPartCache.open(cacheDirectory);
+        ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+        new TeiAllGitHubReader(new LocalSpecificationSource(specs), 2, Optional.of(cache)).write("test", assembled);
+        cache.commit();
+        Assert.assertEquals(3, cache.getParsed());
+
+        final String xml = new String(assembled.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.indexOf("ident=\"att.x\"") < xml.indexOf("ident=\"lb\""));
+        Assert.assertTrue(xml.indexOf("ident=\"lb\"") < xml.indexOf("ident=\"model.y\""));
+        Schema schema = Schema.read(new ByteArrayInputStream(assembled.toByteArray()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("att.x", "lb", "model.y")), schema.getSpecifications().keySet());
+        Assert.assertTrue(schema.getSpecifications().get("lb").getAttributes().isEmpty());
+
+        final Path lbFile = specs.resolve("lb.xml");
+        Files.write(lbFile, lb.replace("</classes>", "</classes><attList><attDef ident='y'/></attList>").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(lbFile, FileTime.fromMillis(Files.getLastModifiedTime(lbFile).toMillis() + 60000));
+        final Path modelFile = specs.resolve("classes/model.y.xml");
+        Files.setLastModifiedTime(modelFile, FileTime.fromMillis(Files.getLastModifiedTime(modelFile).toMillis() + 60000));
+
+        cache = SpecificationPartCache.open(cacheDirectory);
+        assembled = new ByteArrayOutputStream();
+        new TeiAllGitHubReader(new LocalSpecificationSource(specs), 2, Optional.of(cache)).write("test", assembled);
+        cache.commit();
+        Assert.assertEquals(1, cache.getParsed());
+        Assert.assertEquals(2, cache.getReused());
+
+        schema = Schema.read(new ByteArrayInputStream(assembled.toByteArray()));
+        Assert.assertEquals(1, schema.getSpecifications().get("lb").getAttributes().size());
+        try (Stream<Path> parts = Files.list(cacheDirectory)) {
+            Assert.assertEquals(4, parts.count());
+        }
+    }
+
+    @Test
+    public void assembleSpecificationsStreaming() throws Exception {
+        final Path specs = temporaryFolder.newFolder("tei-specs").toPath();
+        for (int sc = 0; sc < 64; sc++) {
+            Files.write(specs.resolve("e" + sc + ".xml"), ("<elementSpec xmlns='http://www.tei-c.org/ns/1.0' " +
+                    "xmlns:rng='http://relaxng.org/ns/structure/1.0' ident='e" + sc + "' module='core'>" +
+                    "<content><rng:text/></content></elementSpec>").getBytes(StandardCharsets.UTF_8));
+        }
+        final TeiAllGitHubReader reader = new TeiAllGitHubReader(new LocalSpecificationSource(specs), 4, Optional.empty());
+
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        reader.writeStreaming("test", streamed);
+        final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        reader.write("test", buffered);
+        Assert.assertEquals(new String(buffered.toByteArray(), StandardCharsets.UTF_8), new String(streamed.toByteArray(), StandardCharsets.UTF_8));
+
+        final Schema schema = Schema.read(new ByteArrayInputStream(streamed.toByteArray()));
+        Assert.assertEquals(64, schema.getSpecifications().size());
+        Assert.assertNotNull(schema.getSpecifications().get("e63").getContent());
+    }
+
+    @Test
+    public void readSpecificationsIntoSchema() throws Exception {
+        final String tei = " xmlns='http://www.tei-c.org/ns/1.0' xmlns:rng='http://relaxng.org/ns/structure/1.0'";
+        final Path specs = temporaryFolder.newFolder("tei-specs").toPath();
+        for (int sc = 0; sc < 16; sc++) {
+            Files.write(specs.resolve("e" + sc + ".xml"), ("<elementSpec" + tei + " ident='e" + sc + "' module='core'>" +
+                    "<classes><memberOf key='att.x'/></classes><content><rng:text/></content></elementSpec>").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(specs.resolve("att.x.xml"), ("<classSpec" + tei + " ident='att.x' type='atts' module='core'>" +
+                "<attList><attDef ident='x' usage='opt'><datatype><rng:text/></datatype></attDef></attList></classSpec>").getBytes(StandardCharsets.UTF_8));
+        Files.write(specs.resolve("teidata.x.xml"), ("<dataSpec" + tei + " ident='teidata.x' module='tei'>" +
+                "<content><rng:text/></content></dataSpec>").getBytes(StandardCharsets.UTF_8));
+
+        final TeiAllGitHubReader reader = new TeiAllGitHubReader(new LocalSpecificationSource(specs), 4, Optional.empty());
+        final ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+        reader.write("test", assembled);
+        final Schema parsed = Schema.read(new ByteArrayInputStream(assembled.toByteArray()));
+
+        final Schema schema = reader.schema(false);
+        Assert.assertEquals(parsed.getIdent(), schema.getIdent());
+        Assert.assertEquals(parsed.getPrefix(), schema.getPrefix());
+        Assert.assertEquals(parsed.getStart(), schema.getStart());
+        Assert.assertEquals(17, schema.getSpecifications().size());
+        Assert.assertEquals(parsed.getSpecifications().keySet(), schema.getSpecifications().keySet());
+        Assert.assertEquals(parsed.getReferences().edges(), schema.getReferences().edges());
+        Assert.assertNotNull(schema.getSpecifications().get("e15").getContent());
+        Assert.assertNotNull(reader.schema(true).getSpecifications().get("e15").getContent());
+    }
+
+    @Test
+    public void readModulesConcurrently() throws Exception {
+        final Path guidelines = temporaryFolder.newFolder("tei-guidelines").toPath();
+        for (int mc = 0; mc < 16; mc++) {
+            Files.write(guidelines.resolve("m" + mc + ".xml"), ("<div xmlns='http://www.tei-c.org/ns/1.0'><p/>" +
+                    "<moduleSpec ident='m" + mc + "'><desc>Module " + mc + "</desc></moduleSpec><p/></div>").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(guidelines.resolve("intro.xml"), "<div xmlns='http://www.tei-c.org/ns/1.0'><p/></div>".getBytes(StandardCharsets.UTF_8));
+
+        final Map<String, Module> modules = Module.read(guidelines.toFile());
+        Assert.assertEquals(16, modules.size());
+        Assert.assertEquals("Module 7", modules.get("m7").getDescriptions().get(LocalizedStrings.DEFAULT_LANG));
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Map<String, Module> parallel = Module.read(guidelines.toFile(), pool);
+            Assert.assertEquals(modules.keySet(), parallel.keySet());
+            Assert.assertEquals(modules.get("m7").getDescriptions(), parallel.get("m7").getDescriptions());
+
+            Files.write(guidelines.resolve("duplicate.xml"), "<moduleSpec xmlns='http://www.tei-c.org/ns/1.0' ident='m3'/>".getBytes(StandardCharsets.UTF_8));
+            try {
+                Module.read(guidelines.toFile(), pool);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage().startsWith("m3 "));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void indexSpecifications() throws Exception {
+        final String odd = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<!-- <elementSpec ident='commented'/> -->\n" +
+                "<TEI xmlns='http://www.tei-c.org/ns/1.0'><text><body>" +
+                "<p>Paragraphs, e.g. <egXML xmlns='http://www.tei-c.org/ns/Examples'><elementSpec ident='example'/></egXML>" +
+                "<![CDATA[<macroSpec ident='cdata'>]]></p>" +
+                "<schemaSpec ident='test' xmlns:rng='http://relaxng.org/ns/structure/1.0'>" +
+                "<moduleSpec ident='core'><desc>Common elements</desc></moduleSpec>" +
+                "<elementSpec ident='p' module='core'><classes><memberOf key='model.pLike'/></classes>" +
+                "<content><rng:zeroOrMore><rng:text/></rng:zeroOrMore></content>" +
+                "<attList><attDef ident='rend' usage='opt'><datatype><rng:text/></datatype></attDef></attList></elementSpec>" +
+                "<classSpec ident='model.pLike' type='model' module='core'/>" +
+                "</schemaSpec></body></text></TEI>";
+        final Path directory = temporaryFolder.newFolder("tei-index").toPath();
+        final Path file = directory.resolve("test.odd");
+        Files.write(file, odd.getBytes(StandardCharsets.UTF_8));
+
+        SpecificationIndex index = SpecificationIndex.open(file);
+        Assert.assertTrue(Files.isRegularFile(SpecificationIndex.indexFile(file)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("p", "model.pLike")), index.getSpecifications());
+        Assert.assertEquals(Collections.singleton("core"), index.getModules());
+
+        final Specification paragraph = index.specification("p").get();
+        Assert.assertEquals(Specification.Type.ELEMENT, paragraph.getType());
+        Assert.assertNotNull(paragraph.getContent());
+        Assert.assertEquals(1, paragraph.getAttributes().size());
+        Assert.assertEquals(Specification.Type.CLASS, index.specification("model.pLike", true).get().getType());
+        Assert.assertFalse(index.specification("example").isPresent());
+        Assert.assertEquals("Common elements", index.module("core").get().getDescriptions().get(LocalizedStrings.DEFAULT_LANG));
+
+        index = SpecificationIndex.open(file);
+        Assert.assertEquals(2, index.getSpecifications().size());
+        Assert.assertNotNull(index.specification("p").get().getContent());
+
+        Files.write(file, odd.replace("</schemaSpec>", "<macroSpec ident='macro.paraContent' module='core'>" +
+                "<content><rng:text/></content></macroSpec></schemaSpec>").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60000));
+        try {
+            index.specification("p");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().endsWith("changed since it has been indexed"));
+        }
+        index = SpecificationIndex.open(file);
+        Assert.assertEquals(Specification.Type.MACRO, index.specification("macro.paraContent").get().getType());
+
+        final Path indexFile = SpecificationIndex.indexFile(file);
+        final String header = Files.readAllLines(indexFile, StandardCharsets.UTF_8).get(0);
+        Files.write(indexFile, (header + "\nelementSpec\tp\t1\tx\t0\n").getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(3, SpecificationIndex.open(file).getSpecifications().size());
+        Assert.assertTrue(SpecificationIndex.read(file, indexFile).isPresent());
+
+        Files.delete(indexFile);
+        Files.createDirectory(indexFile);
+        Files.write(indexFile.resolve("occupied"), new byte[0]);
+        Assert.assertEquals(3, SpecificationIndex.open(file).getSpecifications().size());
+    }
+
+    @Test
+    public void resolveAttributes() throws Exception {
+        final Schema schema = teiAll;
+        final SpecificationGraph graph = SpecificationGraph.create(schema);
+        final AttributeResolver resolver = graph.getAttributeResolver();
+
+        final Map<String, AttributeDefinition> paragraph = resolver.getAttributes("p");
+        Assert.assertTrue(paragraph.keySet().containsAll(Arrays.asList("xml:id", "n", "rend", "part")));
+        Assert.assertSame(paragraph, resolver.getAttributes("p"));
+        Assert.assertTrue(resolver.getAttributes("undefined").isEmpty());
+
+        final Map<String, AttributeDefinition> binaryObject = resolver.getAttributes("binaryObject");
+        Assert.assertTrue(binaryObject.containsKey("width"));
+        Assert.assertTrue(binaryObject.containsKey("encoding"));
+        Assert.assertFalse(binaryObject.containsKey("url"));
+
+        final Specification media = graph.remove("att.media").get();
+        Assert.assertFalse(resolver.getAttributes("binaryObject").containsKey("width"));
+        Assert.assertSame(paragraph, resolver.getAttributes("p"));
+
+        graph.put(media);
+        Assert.assertTrue(resolver.getAttribute("binaryObject", "width").isPresent());
+        Assert.assertSame(paragraph, resolver.getAttributes("p"));
+    }
+
+    @Test
+    public void checkAttributes() throws Exception {
+        final SchemaValidator validator = SchemaValidator.create(teiAll);
+        final AttributeChecker checker = validator.getAttributeChecker();
+        Assert.assertSame(checker, validator.getAttributeChecker());
+        Assert.assertTrue(checker.getElements().contains("p"));
+
+        Assert.assertTrue(checker.check("p", "xml:space", "preserve"));
+        Assert.assertTrue(checker.check("p", "xml:space", " preserve\n"));
+        Assert.assertFalse(checker.check("p", "xml:space", "keep"));
+
+        Assert.assertTrue(checker.check("p", "xml:id", "p1"));
+        Assert.assertFalse(checker.check("p", "xml:id", "p 1"));
+        Assert.assertTrue(checker.check("p", "ana", "#a #b"));
+        Assert.assertTrue(checker.check("date", "when", new StringBuilder("2015-03-02")));
+        Assert.assertFalse(checker.check("date", "when", "yesterday"));
+        Assert.assertTrue(checker.check("div", "type", "chapter"));
+
+        Assert.assertTrue(checker.isDeclared("p", "rend"));
+        Assert.assertFalse(checker.isDeclared("p", "when"));
+        Assert.assertFalse(checker.check("p", "when", "2015-03-02"));
+        Assert.assertFalse(checker.check("paragraph", "rend", "italic"));
+
+        final PatternBuilder patterns = new PatternBuilder();
+        final Pattern integer = patterns.data(Datatype.of(Datatype.XSD_LIBRARY, "integer"), null);
+        final Pattern name = patterns.data(Datatype.of(Datatype.XSD_LIBRARY, "NCName"), null);
+        final ValueMatcher tokens = ValueMatcher.compile(patterns.list(patterns.oneOrMore(patterns.choice(integer, name))));
+        Assert.assertTrue(tokens.matches("abc 1"));
+        final ValueMatcher pair = ValueMatcher.compile(patterns.list(patterns.group(integer, name)));
+        Assert.assertTrue(pair.matches(" 1 abc "));
+        Assert.assertFalse(pair.matches("abc 1"));
+        final ValueMatcher pairs = ValueMatcher.compile(patterns.list(patterns.oneOrMore(patterns.group(integer, integer))));
+        Assert.assertTrue(pairs.matches("1 2 3 4"));
+        Assert.assertFalse(pairs.matches("1 2 3"));
+    }
+
+    @Test
+    public void validateDocuments() throws Exception {
+        final SchemaValidator validator = SchemaValidator.create(teiAll);
+
+        final String document = "<TEI xmlns='http://www.tei-c.org/ns/1.0'><teiHeader><fileDesc>" +
+                "<titleStmt><title>Title</title></titleStmt>" +
+                "<publicationStmt><p>Unpublished</p></publicationStmt>" +
+                "<sourceDesc><p>Born digital</p></sourceDesc>" +
+                "</fileDesc></teiHeader><text><body><div type='chapter' n='1'><head>Heading</head>" +
+                "<p rend='italic' xml:id='p1' ana='#a #b'>Hello <hi>world</hi>, <date when='2015-03-02'>today</date>.</p>" +
+                "<list><item>Item</item></list></div></body></text></TEI>";
+        Assert.assertTrue(validator.isValid(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8))));
+
+        final String invalid = document
+                .replace("<title>Title</title>", "")
+                .replace("<head>Heading</head>", "<heading/>")
+                .replace("when='2015-03-02'", "when='yesterday'");
+        final List<String> errors = new ArrayList<>();
+        Assert.assertFalse(validator.validate(new ByteArrayInputStream(invalid.getBytes(StandardCharsets.UTF_8)), errors::add));
+        Assert.assertEquals(errors.toString(), 3, errors.size());
+        Assert.assertTrue(errors.get(0).contains("titleStmt"));
+        Assert.assertTrue(errors.get(1).contains("heading"));
+        Assert.assertTrue(errors.get(2).contains("when"));
+
+        final byte[] odd = Files.readAllBytes(new File(System.getProperty("tei.data", "data"), "tei-epidoc-full.odd").toPath());
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Assert.assertTrue(pool.submit(() -> Stream.generate(() -> odd).limit(8).parallel().allMatch(bytes -> {
+                try {
+                    return validator.validate(new ByteArrayInputStream(bytes), LOG::warning);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            })).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void readSchemaInParallel() throws Exception {
+        final Schema serial = teiAll;
+        final Schema parallel;
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            parallel = Schema.read(xmlStream, ForkJoinPool.commonPool());
+        }
+        Assert.assertEquals(serial.getSpecifications().keySet(), parallel.getSpecifications().keySet());
+        serial.getSpecifications().forEach((id, spec) -> Assert.assertEquals(
+                Objects.toString(spec.getContent()),
+                Objects.toString(parallel.getSpecifications().get(id).getContent())
+        ));
+    }
+
+    @Test
+    public void readSchemaLazily() throws Exception {
+        final Schema eager = teiAll;
+        final Schema lazy;
+        try (InputStream xmlStream = getClass().getResourceAsStream("/tei-all.xml")) {
+            lazy = Schema.readLazily(xmlStream);
+        }
+        Assert.assertEquals(eager.getSpecifications().keySet(), lazy.getSpecifications().keySet());
+        eager.getSpecifications().forEach((id, spec) -> Assert.assertEquals(
+                Objects.toString(spec.getContent()),
+                Objects.toString(lazy.getSpecifications().get(id).getContent())
+        ));
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        final Schema schema = teiAll;
+        final Path snapshotFile = temporaryFolder.newFile("tei-all.snapshot").toPath();
+        SchemaSnapshot.write(schema, snapshotFile);
+        final Schema snapshot = SchemaSnapshot.read(snapshotFile);
+        Assert.assertEquals(schema.getIdent(), snapshot.getIdent());
+        Assert.assertEquals(schema.getStart(), snapshot.getStart());
+        Assert.assertEquals(schema.getSpecifications().keySet(), snapshot.getSpecifications().keySet());
+        schema.getSpecifications().forEach((id, spec) -> {
+            final Specification restored = snapshot.getSpecifications().get(id);
+            Assert.assertEquals(spec.getModule(), restored.getModule());
+            Assert.assertEquals(spec.getDescriptions(), restored.getDescriptions());
+            Assert.assertEquals(spec.getAttributes().size(), restored.getAttributes().size());
+            Assert.assertEquals(Objects.toString(spec.getContent()), Objects.toString(restored.getContent()));
+            Assert.assertEquals(
+                    Optional.ofNullable(spec.getContent()).map(ContentModel::getReferences),
+                    Optional.ofNullable(restored.getContent()).map(ContentModel::getReferences)
+            );
+        });
     }
 
     @Test